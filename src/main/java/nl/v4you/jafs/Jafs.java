@@ -5,6 +5,13 @@ import nl.v4you.jafs.internal.*;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.OpenOption;
+import java.util.Collection;
+import java.util.concurrent.ForkJoinPool;
 
 // https://www.linuxjournal.com/article/2151
 
@@ -12,17 +19,29 @@ public class Jafs implements AutoCloseable {
 
 	private static final int CACHE_BLOCK_MAX = 16 * 1024;
 	private static final int CACHE_DIR_MAX   = 256 * 256;
+	private static final int CACHE_DIR_INDEX_MAX = 16;
+	private static final int CACHE_LOOKUP_MISSES_MAX = 16 * 1024;
+	private static final int CACHE_LOOKUP_FILTERS_MAX = 16;
+	private static final int PAGE_SIZE = 4096;
+	private static final long GROW_SIZE_DEFAULT = 1024 * 1024;
+	private static final int ZERO_FILL_BUF_SIZE = 64 * 1024;
 
 	private JafsBlockCache blockCache;
 	private JafsDirEntryCache dirCache;
+	private JafsDirIndexCache dirIndexCache;
+	private JafsLookupCache lookupCache;
 	private JafsSuper superBlock;
 	private File myFile;
 	private RandomAccessFile raf;
 	private JafsInodeContext ctx;
 	private JafsUnusedMap um;
+	private JafsFragments fragments;
 	private JafsDirEntry rootEntry = null;
 	private JafsInodePool inodePool = null;
 	private JafsDirPool dirPool = null;
+	private long growSize = GROW_SIZE_DEFAULT;
+	private boolean growZeroFilled = false;
+	private long blocksReserved = 0; // blocks that fit in the archive file, headroom included
 
 	/*
 	 * Public
@@ -42,14 +61,22 @@ public class Jafs implements AutoCloseable {
 
 	public Jafs(String fname) throws IOException, JafsException {
 		myFile = new File(fname);
-		init(fname, 0);
+		init(fname, 0, JafsSuper.DEFAULT_FEATURES);
 	}
 
 	public Jafs(String fname, int blockSize) throws JafsException, IOException {
+		this(fname, blockSize, JafsSuper.DEFAULT_FEATURES);
+	}
+
+	/*
+	 * The features (see JafsSuper.FEATURE_*) only apply when a new archive is created,
+	 * an existing archive keeps the features it was created with.
+	 */
+	public Jafs(String fname, int blockSize, int features) throws JafsException, IOException {
 		if (!isSupportedSize(blockSize, 64, 4096)) {
 			throw new JafsException("block size " + blockSize + " not supported");
 		}
-		init(fname, blockSize);
+		init(fname, blockSize, features);
 	}
 
 	public JafsFile getFile(String name) throws JafsException {
@@ -81,9 +108,182 @@ public class Jafs implements AutoCloseable {
 		return new JafsOutputStream(this, f, append);
 	}
 
+	/*
+	 * Creates the files names in directory dir with one pass over the directory
+	 * and one flush. Names that exist already are skipped, returns the number
+	 * of files created.
+	 */
+	public int createFiles(JafsFile dir, Collection<String> names) throws JafsException, IOException {
+		return dir.createEntries(names, JafsInode.INODE_FILE);
+	}
+
+	/*
+	 * As createFiles(), it creates the directories names in directory dir
+	 */
+	public int mkdirs(JafsFile dir, Collection<String> names) throws JafsException, IOException {
+		return dir.createEntries(names, JafsInode.INODE_DIR);
+	}
+
+	/*
+	 * Calls visitor for every entry below the directory root that is accepted by
+	 * filter (null accepts all). The tree is walked by inode without resolving
+	 * paths, directories are descended into also when they are not accepted.
+	 * Name, type and size of an entry are known to the filter.
+	 */
+	public void walk(JafsFile root, DirectoryStream.Filter<? super JafsDirEntry> filter, JafsVisitor visitor) throws JafsException, IOException {
+		walk(root, filter, visitor, null);
+	}
+
+	/*
+	 * As walk(), the subdirectories are walked by tasks on pool when it is not
+	 * null. The visitor is then called from several threads at once, it may
+	 * read files with pread() but no thread may change the archive during the
+	 * walk. The directories are read while holding the lock of this archive.
+	 */
+	public void walk(JafsFile root, DirectoryStream.Filter<? super JafsDirEntry> filter, JafsVisitor visitor, ForkJoinPool pool) throws JafsException, IOException {
+		JafsDirEntry entry;
+		synchronized (this) {
+			entry = root.getEntry(root.getCanonicalPath());
+		}
+		if (entry == null) {
+			throw new JafsException(root.getCanonicalPath() + " does not exist");
+		}
+		if (!entry.isDirectory()) {
+			throw new JafsException(root.getCanonicalPath() + " should be a directory");
+		}
+		if (entry.getBpos() == 0) {
+			return;
+		}
+		JafsWalk walk = new JafsWalk(this, root.getCanonicalPath(), entry.getBpos(), filter, visitor, pool != null);
+		if (pool == null) {
+			walk.walk();
+		} else {
+			try {
+				pool.invoke(walk);
+			} catch (RuntimeException e) {
+				JafsWalk.WalkFailed.rethrow(e);
+			}
+		}
+	}
+
+	/*
+	 * Opens a channel for random access to a file. The options are those of
+	 * Files.newByteChannel: READ (the default), WRITE, APPEND, CREATE,
+	 * CREATE_NEW and TRUNCATE_EXISTING.
+	 */
+	public SeekableByteChannel newByteChannel(JafsFile f, OpenOption... options) throws JafsException, IOException {
+		return new JafsByteChannel(this, f, options);
+	}
+
+	/*
+	 * Reads from position of the file into dst, returns the number of bytes
+	 * read or -1 at the end of the file. Nothing is kept between calls and
+	 * concurrent calls are safe, also on the same file, as long as no other
+	 * thread changes the archive: the file is mapped onto blocks while
+	 * holding the lock of this archive, the blocks are then read with
+	 * positional reads on the archive file outside of the lock.
+	 */
+	public int pread(JafsFile f, long position, ByteBuffer dst) throws JafsException, IOException {
+		if (position < 0) {
+			throw new JafsException("position must be >= 0, got: " + position);
+		}
+		JafsBlockRuns runs = new JafsBlockRuns();
+		int len;
+		synchronized (this) {
+			JafsDirEntry entry = f.getEntry(f.getCanonicalPath());
+			if (entry == null) {
+				throw new JafsException(f.getCanonicalPath() + " does not exist");
+			}
+			if (!entry.isFile()) {
+				throw new JafsException(f.getCanonicalPath() + " should be a file");
+			}
+			if (entry.getBpos() == 0) {
+				return -1;
+			}
+			JafsInode inode = inodePool.claim();
+			try {
+				inode.openInode(entry.getBpos());
+				if (position >= inode.getSize()) {
+					return -1;
+				}
+				len = (int)Math.min(dst.remaining(), inode.getSize() - position);
+				if (!inode.mapClean(position, len, runs)) {
+					inode.seekSet(position);
+					int limit = dst.limit();
+					dst.limit(dst.position() + len);
+					inode.read(dst);
+					dst.limit(limit);
+					return len;
+				}
+			}
+			finally {
+				inodePool.release(inode);
+			}
+		}
+		FileChannel channel = raf.getChannel();
+		int blockSize = superBlock.getBlockSize();
+		int limit = dst.limit();
+		long skip = position & (blockSize - 1);
+		long todo = len;
+		try {
+			for (int r = 0; r < runs.size(); r++) {
+				long n = Math.min(runs.getBlocks(r) * blockSize - skip, todo);
+				dst.limit(dst.position() + (int)n);
+				if (runs.isHole(r)) {
+					while (dst.hasRemaining()) {
+						dst.put((byte)0);
+					}
+				} else {
+					long filePos = (1 /* superblock */ + runs.getVpos(r)) * blockSize + skip;
+					while (dst.hasRemaining()) {
+						int read = channel.read(dst, filePos);
+						if (read < 0) {
+							throw new JafsException("Malformed jafs file, block " + runs.getVpos(r) + " is beyond the end of the file");
+						}
+						filePos += read;
+					}
+				}
+				todo -= n;
+				skip = 0;
+			}
+		}
+		finally {
+			dst.limit(limit);
+		}
+		return len;
+	}
+
+	/*
+	 * The archive file is extended with growSize bytes at a time when it runs out of blocks.
+	 * The headroom is either preallocated with setLength (sparse on most file systems)
+	 * or written with zeros (zeroFilled) so the host file system allocates it right away.
+	 */
+	public void setGrowSize(long growSize, boolean zeroFilled) throws JafsException {
+		if (growSize < PAGE_SIZE) {
+			throw new JafsException("grow size must be at least " + PAGE_SIZE + " bytes");
+		}
+		this.growSize = growSize;
+		this.growZeroFilled = zeroFilled;
+	}
+
+	public long getGrowSize() {
+		return growSize;
+	}
+
+	/*
+	 * Hashed directories get an in-memory Bloom filter of their names, so that
+	 * most lookups of names that do not exist read no directory blocks
+	 */
+	public void setBloomFilters(boolean enabled) {
+		lookupCache.setFiltersEnabled(enabled);
+	}
+
 	public void close() throws IOException {
 		if (superBlock != null) {
 			try {
+				fragments.store();
+				flushBlockCache();
+				trimArchive();
 				superBlock.close();
 			}
 			catch (Exception e) {}
@@ -102,6 +302,10 @@ public class Jafs implements AutoCloseable {
 		return um;
 	}
 
+	public JafsFragments getFragments() {
+		return fragments;
+	}
+
 	public RandomAccessFile getRaf() {
 		return raf;
 	}
@@ -119,13 +323,23 @@ public class Jafs implements AutoCloseable {
 	}
 
 	public void flushBlockCache() throws JafsException, IOException {
+		inodePool.flush();
 		blockCache.flushBlocks();
+		um.flush();
 	}
 
 	public JafsDirEntryCache getDirCache() {
 		return dirCache;
 	}
 
+	public JafsDirIndexCache getDirIndexCache() {
+		return dirIndexCache;
+	}
+
+	public JafsLookupCache getLookupCache() {
+		return lookupCache;
+	}
+
 	private long appendNewBlockToArchive() throws JafsException, IOException {
 		superBlock.incBlocksTotal();
 		long bpos = (superBlock.getBlocksTotal() - 1);
@@ -135,9 +349,53 @@ public class Jafs implements AutoCloseable {
 			um.initializeUnusedMap(unusedMapBpos);
 			bpos++;
 		}
+		if (bpos >= blocksReserved) {
+			growArchive();
+		}
 		return bpos;
 	}
 
+	private static long alignToPage(long pos) {
+		return (pos + PAGE_SIZE - 1) & ~(long)(PAGE_SIZE - 1);
+	}
+
+	private long getArchiveEnd() {
+		return alignToPage((1 /* superblock */ + superBlock.getBlocksTotal()) * superBlock.getBlockSize());
+	}
+
+	private void growArchive() throws JafsException, IOException {
+		int blockSize = superBlock.getBlockSize();
+		long oldLength = raf.length();
+		long newLength = alignToPage(Math.max(oldLength, getArchiveEnd()) + growSize);
+		if (growZeroFilled) {
+			byte[] zeros = new byte[ZERO_FILL_BUF_SIZE];
+			raf.seek(oldLength);
+			for (long pos = oldLength; pos < newLength; pos += zeros.length) {
+				raf.write(zeros, 0, (int)Math.min(zeros.length, newLength - pos));
+			}
+		} else {
+			raf.setLength(newLength);
+		}
+		blocksReserved = newLength / blockSize - 1;
+
+		// Initialize the unused maps in the headroom, when the archive is not closed
+		// properly the headroom becomes part of the archive as available blocks.
+		long blocksPerUnusedMap = um.getBlocksPerUnusedMap();
+		long blocksTotal = superBlock.getBlocksTotal();
+		long mapBpos = um.getUnusedMapBpos(blocksTotal + blocksPerUnusedMap - 1);
+		for (; mapBpos < blocksReserved; mapBpos += blocksPerUnusedMap) {
+			um.initializeUnusedMap(mapBpos);
+		}
+	}
+
+	private void trimArchive() throws IOException {
+		long archiveEnd = getArchiveEnd();
+		if (raf.length() > archiveEnd) {
+			raf.setLength(archiveEnd);
+		}
+		blocksReserved = archiveEnd / superBlock.getBlockSize() - 1;
+	}
+
 	public long getAvailableVpos() throws JafsException, IOException {
 		long bpos = getUnusedMap().getUnusedBpos();
 		if (bpos == 0) bpos = appendNewBlockToArchive();
@@ -146,6 +404,26 @@ public class Jafs implements AutoCloseable {
 		return bpos;
 	}
 
+	/*
+	 * Returns block goal when it is available, otherwise any available block
+	 */
+	public long getAvailableVpos(long goal) throws JafsException, IOException {
+		long blocksTotal = superBlock.getBlocksTotal();
+		if (goal > 0 && goal < blocksTotal && um.isAvailable(goal)) {
+			getSuper().incBlocksUsed();
+			um.setUnavailable(goal);
+			return goal;
+		}
+		if (goal > 0 && goal == blocksTotal && goal < blocksReserved && um.getUnusedMapBpos(goal) != goal) {
+			// goal is the first block of the headroom
+			long bpos = appendNewBlockToArchive();
+			getSuper().incBlocksUsed();
+			um.setUnavailable(bpos);
+			return bpos;
+		}
+		return getAvailableVpos();
+	}
+
 	JafsDirEntry getRootEntry() {
 		if (rootEntry != null) {
 			return rootEntry;
@@ -164,32 +442,37 @@ public class Jafs implements AutoCloseable {
 	 */
 	private void initInodeContext(int blockSize) {
 		um = new JafsUnusedMap(this);
+		fragments = new JafsFragments(this);
 		ctx = new JafsInodeContext(this, blockSize);
 	}
 
 
-	private void open(int blockSize) throws IOException, JafsException {
+	private void open(int blockSize, int features) throws IOException, JafsException {
 		if (!myFile.exists() && blockSize < 0) {
 			throw new JafsException("[" + myFile.getName() + "] does not exist");
 		}
 		raf = new RandomAccessFile(myFile, "rw");
 		blockCache = new JafsBlockCache(this, CACHE_BLOCK_MAX);
 		dirCache = new JafsDirEntryCache(CACHE_DIR_MAX);
+		dirIndexCache = new JafsDirIndexCache(CACHE_DIR_INDEX_MAX);
+		lookupCache = new JafsLookupCache(CACHE_LOOKUP_MISSES_MAX, CACHE_LOOKUP_FILTERS_MAX);
 		inodePool = new JafsInodePool(this);
 		dirPool = new JafsDirPool(this);
 		boolean isNewFile = myFile.length() == 0;
-		superBlock = new JafsSuper(raf, blockSize);
+		superBlock = new JafsSuper(raf, blockSize, features);
 		initInodeContext(superBlock.getBlockSize());
+		blocksReserved = raf.length() / superBlock.getBlockSize() - 1;
 		if (isNewFile) {
 			JafsDir.createRootDir(this);
-			blockCache.flushBlocks();
+			flushBlockCache();
 		}
 		superBlock.lock(myFile, getUnusedMap());
+		fragments.load();
 	}
 
-	private void init(String fname, int blockSize) throws JafsException, IOException {
+	private void init(String fname, int blockSize, int features) throws JafsException, IOException {
 		myFile = new File(fname);
-		open(blockSize);
+		open(blockSize, features);
 	}
 
 	public JafsInodePool getInodePool() {
@@ -211,20 +494,30 @@ public class Jafs implements AutoCloseable {
 	public String stats() {
 		StringBuilder sb = new StringBuilder();
 		sb.append("blocksUsed         : "+superBlock.getBlocksUsed()+"\n");
-		sb.append("blocksTotal        : "+superBlock.getBlocksTotal()+"\n\n");
+		sb.append("blocksTotal        : "+superBlock.getBlocksTotal()+"\n");
+		sb.append("blocksReserved     : "+blocksReserved+"\n\n");
 		sb.append(ctx.toString()+"\n");
 		sb.append("blockCache:\n"+ blockCache.stats());
+		sb.append("unusedMap:\n"+um.stats());
 		sb.append("inodePool:\n"+inodePool.stats());
 		sb.append("dirPool:\n"+dirPool.stats());
 		sb.append("dirCache:\n"+dirCache.stats());
+		sb.append("dirIndexCache:\n"+dirIndexCache.stats());
+		sb.append("lookupCache:\n"+lookupCache.stats());
 		return sb.toString();
 	}
 
-	private void adviceBlockSizeScan(Fsize fsize, JafsFile f) throws JafsException, IOException {
-		JafsFile[] l = f.listFiles();
-		for (JafsFile g : l) {
-			if (g.isFile()) {
-				long size = g.length();
+	private void adviceBlockSizeScan(final Fsize fsize, JafsFile f) throws JafsException, IOException {
+		DirectoryStream.Filter<JafsDirEntry> files = new DirectoryStream.Filter<JafsDirEntry>() {
+			@Override
+			public boolean accept(JafsDirEntry entry) {
+				return entry.isFile();
+			}
+		};
+		walk(f, files, new JafsVisitor() {
+			@Override
+			public void visit(String path, JafsDirEntry entry) {
+				long size = entry.getSize();
 				for (int n=0; n<fsize.sizes.length; n++) {
 					long bs = fsize.sizes[n];
 					long mod = (size % bs);
@@ -235,10 +528,8 @@ public class Jafs implements AutoCloseable {
 					}
 					fsize.lost[n] += bs - mod;
 				}
-			} else {
-				adviceBlockSizeScan(fsize, g);
 			}
-		}
+		});
 	}
 
 	public void adviceBlockSize() throws JafsException, IOException {
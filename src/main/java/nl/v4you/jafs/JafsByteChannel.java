@@ -0,0 +1,184 @@
+package nl.v4you.jafs;
+
+import nl.v4you.jafs.internal.JafsDirEntry;
+import nl.v4you.jafs.internal.JafsInode;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonReadableChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.OpenOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * Random access to a file, see Jafs.newByteChannel()
+ */
+public class JafsByteChannel implements SeekableByteChannel {
+	private final Jafs vfs;
+	private final JafsFile file;
+	private final boolean readable;
+	private final boolean writable;
+	private final boolean append;
+	private JafsInode inode = null; // null for an empty file that is only read, its size is written on truncate() and close()
+	private long position = 0;
+	private boolean open = true;
+
+	JafsByteChannel(Jafs vfs, JafsFile f, OpenOption... options) throws JafsException, IOException {
+		this.vfs = vfs;
+		this.file = f;
+		List<OpenOption> opts = Arrays.asList(options);
+		append = opts.contains(StandardOpenOption.APPEND);
+		writable = append || opts.contains(StandardOpenOption.WRITE);
+		readable = !writable || opts.contains(StandardOpenOption.READ);
+		if (writable && opts.contains(StandardOpenOption.CREATE_NEW) && f.exists()) {
+			throw new JafsException(f.getCanonicalPath() + " already exists");
+		}
+		if (!f.exists()) {
+			boolean create = opts.contains(StandardOpenOption.CREATE) || opts.contains(StandardOpenOption.CREATE_NEW);
+			if (!writable || !create) {
+				throw new JafsException(f.getCanonicalPath() + " does not exist");
+			}
+			if (!f.createNewFile()) {
+				throw new JafsException("Could not create new file: " + f.getCanonicalPath());
+			}
+		}
+		JafsDirEntry entry = f.getEntry(f.getCanonicalPath());
+		if (!entry.isFile()) {
+			throw new JafsException(f.getCanonicalPath() + " should be a file");
+		}
+		if (writable || entry.getBpos() != 0) {
+			inode = vfs.getInodePool().claim();
+			inode.openInode(writable ? f.getInodeBpos(entry) : entry.getBpos());
+			if (writable && opts.contains(StandardOpenOption.TRUNCATE_EXISTING)) {
+				inode.truncate(0);
+				f.storeLength(0);
+				vfs.flushBlockCache();
+			}
+		}
+	}
+
+	private void ensureOpen() throws ClosedChannelException {
+		if (!open) {
+			throw new ClosedChannelException();
+		}
+	}
+
+	@Override
+	public int read(ByteBuffer dst) throws IOException {
+		ensureOpen();
+		if (!readable) {
+			throw new NonReadableChannelException();
+		}
+		if (inode == null || position >= inode.getSize()) {
+			return -1;
+		}
+		try {
+			inode.seekSet(position);
+			int n = inode.read(dst);
+			if (n > 0) {
+				position += n;
+			}
+			return n;
+		} catch (JafsException e) {
+			throw new IOException("VFSException wrapper: " + e.getMessage());
+		}
+	}
+
+	@Override
+	public int write(ByteBuffer src) throws IOException {
+		ensureOpen();
+		if (!writable) {
+			throw new NonWritableChannelException();
+		}
+		try {
+			if (append) {
+				position = inode.getSize();
+			}
+			inode.seekSet(position);
+			int n = inode.write(src);
+			position += n;
+			return n;
+		} catch (JafsException e) {
+			throw new IOException("VFSException wrapper: " + e.getMessage());
+		}
+	}
+
+	@Override
+	public long position() throws IOException {
+		ensureOpen();
+		return position;
+	}
+
+	@Override
+	public SeekableByteChannel position(long newPosition) throws IOException {
+		ensureOpen();
+		if (newPosition < 0) {
+			throw new IllegalArgumentException("position must be >= 0");
+		}
+		position = newPosition;
+		return this;
+	}
+
+	@Override
+	public long size() throws IOException {
+		ensureOpen();
+		return inode == null ? 0 : inode.getSize();
+	}
+
+	@Override
+	public SeekableByteChannel truncate(long size) throws IOException {
+		ensureOpen();
+		if (size < 0) {
+			throw new IllegalArgumentException("size must be >= 0");
+		}
+		if (!writable) {
+			throw new NonWritableChannelException();
+		}
+		try {
+			if (size < inode.getSize()) {
+				inode.truncate(size);
+			}
+			inode.flush();
+			file.storeLength(inode.getSize());
+			vfs.flushBlockCache();
+		} catch (JafsException e) {
+			throw new IOException("VFSException wrapper: " + e.getMessage());
+		}
+		if (position > size) {
+			position = size;
+		}
+		return this;
+	}
+
+	@Override
+	public boolean isOpen() {
+		return open;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (!open) {
+			return;
+		}
+		open = false;
+		if (inode == null) {
+			return;
+		}
+		try {
+			if (writable) {
+				inode.packTail();
+				inode.flush();
+				file.storeLength(inode.getSize());
+			}
+			vfs.getInodePool().release(inode);
+			inode = null;
+			vfs.flushBlockCache();
+		} catch (JafsException e) {
+			throw new IOException("VFSException wrapper: " + e.getMessage());
+		}
+	}
+}
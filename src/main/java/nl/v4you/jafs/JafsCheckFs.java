@@ -37,7 +37,7 @@ public class JafsCheckFs {
         try {
             JafsFile[] lst = base.listFiles();
             for (JafsFile f : lst) {
-                JafsDirEntry entry = f.getEntry(f.getName());
+                JafsDirEntry entry = f.getEntry(f.getCanonicalPath());
                 if (f.isDirectory()) {
                     walkTree(f);
                 } else {
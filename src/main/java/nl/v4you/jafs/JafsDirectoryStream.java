@@ -0,0 +1,111 @@
+package nl.v4you.jafs;
+
+import nl.v4you.jafs.internal.JafsDir;
+import nl.v4you.jafs.internal.JafsDirEntry;
+import nl.v4you.jafs.internal.JafsInode;
+
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/*
+ * Iterates over the entries of a directory, see JafsFile.newDirectoryStream().
+ * The entries are read in small batches while iterating, the filter is applied
+ * while reading them.
+ */
+public class JafsDirectoryStream implements DirectoryStream<JafsDirEntry> {
+	private static final int BATCH_SIZE = 64;
+
+	private final Jafs vfs;
+	private final long bpos;
+	private final Filter<? super JafsDirEntry> filter;
+	private final ArrayDeque<JafsDirEntry> batch = new ArrayDeque<>();
+	private JafsDirEntry last = null; // the last entry read
+	private boolean more;
+	private boolean open = true;
+	private boolean iterating = false;
+
+	JafsDirectoryStream(Jafs vfs, long bpos, Filter<? super JafsDirEntry> filter) {
+		this.vfs = vfs;
+		this.bpos = bpos;
+		this.filter = filter;
+		// a directory without inode has no entries
+		more = bpos != 0;
+		if (more) {
+			vfs.getDirPool().pin(bpos);
+		}
+	}
+
+	private void end() {
+		if (more) {
+			more = false;
+			vfs.getDirPool().unpin(bpos);
+		}
+	}
+
+	private void readBatch() throws JafsException, IOException {
+		JafsInode inode = vfs.getInodePool().claim();
+		JafsDir dir = vfs.getDirPool().claim();
+		try {
+			inode.openInode(bpos);
+			dir.setInode(inode);
+			if (!dir.readEntries(last, BATCH_SIZE, filter, batch)) {
+				end();
+			}
+			last = batch.peekLast();
+		}
+		finally {
+			vfs.getInodePool().release(inode);
+			vfs.getDirPool().release(dir);
+		}
+	}
+
+	@Override
+	public Iterator<JafsDirEntry> iterator() {
+		if (!open) {
+			throw new IllegalStateException("Directory stream is closed");
+		}
+		if (iterating) {
+			throw new IllegalStateException("Directory stream has an iterator already");
+		}
+		iterating = true;
+		return new Iterator<JafsDirEntry>() {
+			@Override
+			public boolean hasNext() {
+				while (open && batch.isEmpty() && more) {
+					try {
+						readBatch();
+					} catch (JafsException e) {
+						throw new DirectoryIteratorException(new IOException("VFSException wrapper: " + e.getMessage()));
+					} catch (IOException e) {
+						throw new DirectoryIteratorException(e);
+					}
+				}
+				return !batch.isEmpty();
+			}
+
+			@Override
+			public JafsDirEntry next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				return batch.removeFirst();
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	@Override
+	public void close() {
+		open = false;
+		batch.clear();
+		end();
+	}
+}
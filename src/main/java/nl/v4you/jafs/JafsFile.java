@@ -3,8 +3,13 @@ package nl.v4you.jafs;
 import nl.v4you.jafs.internal.*;
 
 import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
-import java.util.regex.Pattern;
+import java.nio.file.DirectoryStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 
 public class JafsFile {
     public static final String SEPARATOR = "/";
@@ -15,12 +20,6 @@ public class JafsFile {
 	private final String canonicalPath;
     private final JafsDirEntryCache dc;
 
-    private static final Pattern SLASH = Pattern.compile(SEPARATOR);
-    private static final Pattern MULTIPLE_SLASH = Pattern.compile("/+/");
-    private static final Pattern FILENAME_IN_PATH = Pattern.compile("/[^/]*$");
-    private static final Pattern SLASH_DOT_SLASH = Pattern.compile("/[.]/");
-	private static final Pattern FILE_CANCELS_ITSELF = Pattern.compile("[^/]+/[.][.]/");
-
 	JafsFile(Jafs vfs, String path) throws JafsException {
 		if (path == null) {
 			throw new NullPointerException("path cannot be null");
@@ -32,7 +31,7 @@ public class JafsFile {
 		this.vfs = vfs;
 		this.dc = vfs.getDirCache();
 		this.path = normalizePath(path);
-		this.canonicalPath = getCanonicalPath(this.path);
+		this.canonicalPath = getCanonicalPath(path);
     }
 
     JafsFile(Jafs vfs, JafsFile parent, String child) throws JafsException {
@@ -59,7 +58,8 @@ public class JafsFile {
 	}
 
 	public String getAbsolutePath() {
-		return getAbsolutePath(path);
+		// The working dir is always the root (/)
+		return path;
 	}
 
 	public String getCanonicalPath() {
@@ -85,6 +85,14 @@ public class JafsFile {
 		if (entry == null || entry.getBpos() == 0) {
 			return 0;
 		}
+		// an open output stream writes the size when it is flushed or closed
+		JafsInode open = vfs.getInodePool().getUnflushed(entry.getBpos());
+		if (open != null) {
+			return open.getSize();
+		}
+		if (entry.isFile() && vfs.getSuper().hasFeature(JafsSuper.FEATURE_DIR_SIZES)) {
+			return entry.getSize();
+		}
         JafsInode inode = vfs.getInodePool().claim();
 		try {
             inode.openInode(entry.getBpos());
@@ -118,7 +126,7 @@ public class JafsFile {
 			try {
                 inode.openInode(parent.getBpos());
                 dir.setInode(inode);
-                dir.createNewEntry(canonicalPath, getName().getBytes(StandardCharsets.UTF_8), JafsInode.INODE_FILE, 0);
+                dir.createNewEntry(getName().getBytes(StandardCharsets.UTF_8), JafsInode.INODE_FILE, 0);
                 return true;
             }
             catch (Throwable t) {
@@ -169,6 +177,94 @@ public class JafsFile {
 		return new String[0];
 	}
 
+	/*
+	 * Creates an entry of type in this directory for every name that does not
+	 * exist yet, see Jafs.createFiles()
+	 */
+	int createEntries(Collection<String> names, int type) throws JafsException, IOException {
+		JafsDirEntry entry = getEntry(canonicalPath);
+		if (entry == null) {
+			throw new JafsException(canonicalPath + " does not exist");
+		}
+		if (!entry.isDirectory()) {
+			throw new JafsException(canonicalPath + " should be a directory");
+		}
+		List<byte[]> l = new ArrayList<>(names.size());
+		for (String name : names) {
+			l.add(name.getBytes(StandardCharsets.UTF_8));
+		}
+		JafsInode inode = vfs.getInodePool().claim();
+		JafsDir dir = vfs.getDirPool().claim();
+		try {
+			if (entry.getBpos() == 0) {
+				inode.openInode(entry.getParentBpos());
+				dir.setInode(inode);
+				dir.mkinode(entry, JafsInode.INODE_DIR);
+			}
+			inode.openInode(entry.getBpos());
+			dir.setInode(inode);
+			return dir.createNewEntries(l, type);
+		}
+		finally {
+			vfs.flushBlockCache();
+			vfs.getInodePool().release(inode);
+			vfs.getDirPool().release(dir);
+		}
+	}
+
+	/*
+	 * Returns the entries of this directory with their name, type and inode,
+	 * they are read while iterating. Close the stream when done.
+	 */
+	public JafsDirectoryStream newDirectoryStream() throws JafsException, IOException {
+		return newDirectoryStream(null);
+	}
+
+	/*
+	 * As newDirectoryStream(), only the entries accepted by filter are returned
+	 */
+	public JafsDirectoryStream newDirectoryStream(DirectoryStream.Filter<? super JafsDirEntry> filter) throws JafsException, IOException {
+		JafsDirEntry entry = getEntry(canonicalPath);
+		if (entry == null) {
+			throw new JafsException(canonicalPath + " does not exist");
+		}
+		if (!entry.isDirectory()) {
+			throw new JafsException(canonicalPath + " should be a directory");
+		}
+		return new JafsDirectoryStream(vfs, entry.getBpos(), filter);
+	}
+
+	/*
+	 * Rewrites the entries of this directory without the space of deleted
+	 * entries and frees the blocks that are no longer used. Large directories
+	 * are compacted automatically as well. Returns false when the directory
+	 * is read by an open JafsDirectoryStream.
+	 */
+	public boolean compact() throws JafsException, IOException {
+		JafsDirEntry entry = getEntry(canonicalPath);
+		if (entry == null) {
+			throw new JafsException(canonicalPath + " does not exist");
+		}
+		if (!entry.isDirectory()) {
+			throw new JafsException(canonicalPath + " should be a directory");
+		}
+		if (entry.getBpos() == 0) {
+			return true;
+		}
+		JafsInode inode = vfs.getInodePool().claim();
+		JafsDir dir = vfs.getDirPool().claim();
+		try {
+			inode.openInode(entry.getBpos());
+			dir.setInode(inode);
+			return dir.compact();
+		}
+		finally {
+			vfs.flushBlockCache();
+			vfs.getInodePool().release(inode);
+			vfs.getDirPool().release(dir);
+		}
+	}
+
 	public boolean resetSize() throws JafsException, IOException{
 		JafsDirEntry entry = getEntry(canonicalPath);
 		if (entry != null) {
@@ -181,12 +277,139 @@ public class JafsFile {
 				finally {
 					vfs.getInodePool().release(inode);
 				}
+				storeLength(0);
 			}
 			return true;
 		}
 		return false;
 	}
 
+	/*
+	 * Sets the length of the file. A longer file reads zeros beyond the old
+	 * length, these holes take no blocks until they are written.
+	 */
+	public void truncate(long newLength) throws JafsException, IOException {
+		JafsDirEntry entry = getEntry(canonicalPath);
+		if (entry == null) {
+			throw new JafsException(canonicalPath + " does not exist");
+		}
+		if (!entry.isFile()) {
+			throw new JafsException(canonicalPath + " should be a file");
+		}
+		if (entry.getBpos() == 0 && newLength == 0) {
+			return;
+		}
+		JafsInode inode = vfs.getInodePool().claim();
+		try {
+			inode.openInode(getInodeBpos(entry));
+			inode.truncate(newLength);
+			inode.packTail();
+			storeLength(newLength);
+		}
+		finally {
+			vfs.flushBlockCache();
+			vfs.getInodePool().release(inode);
+		}
+	}
+
+	/*
+	 * Returns the inode of the file entry, a file without content gets one
+	 */
+	long getInodeBpos(JafsDirEntry entry) throws JafsException, IOException {
+		if (entry.getBpos() == 0) {
+			JafsInode inode = vfs.getInodePool().claim();
+			JafsDir dir = vfs.getDirPool().claim();
+			try {
+				inode.openInode(entry.getParentBpos());
+				dir.setInode(inode);
+				dir.mkinode(entry, JafsInode.INODE_FILE);
+			}
+			finally {
+				vfs.getInodePool().release(inode);
+				vfs.getDirPool().release(dir);
+			}
+		}
+		return entry.getBpos();
+	}
+
+	/*
+	 * Stores the length of the file in its directory entry (FEATURE_DIR_SIZES),
+	 * call it whenever the size of the inode changes
+	 */
+	void storeLength(long length) throws JafsException, IOException {
+		if (!vfs.getSuper().hasFeature(JafsSuper.FEATURE_DIR_SIZES)) {
+			return;
+		}
+		JafsDirEntry entry = getEntry(canonicalPath);
+		if (entry == null || entry.getSize() == length) {
+			return;
+		}
+		JafsInode inode = vfs.getInodePool().claim();
+		JafsDir dir = vfs.getDirPool().claim();
+		try {
+			inode.openInode(entry.getParentBpos());
+			dir.setInode(inode);
+			dir.setEntrySize(entry, length);
+		}
+		finally {
+			vfs.getInodePool().release(inode);
+			vfs.getDirPool().release(dir);
+		}
+	}
+
+	/*
+	 * Writes the content of this file to target. Blocks that are written to
+	 * the archive already are sent with FileChannel.transferTo(), without
+	 * copying them through the block cache.
+	 */
+	public long transferTo(WritableByteChannel target) throws JafsException, IOException {
+		JafsDirEntry entry = getEntry(canonicalPath);
+		if (entry == null) {
+			throw new JafsException(canonicalPath + " does not exist");
+		}
+		if (!entry.isFile()) {
+			throw new JafsException(canonicalPath + " should be a file");
+		}
+		if (entry.getBpos() == 0) {
+			return 0;
+		}
+		JafsInode inode = vfs.getInodePool().claim();
+		try {
+			inode.openInode(entry.getBpos());
+			return inode.transferTo(target);
+		}
+		finally {
+			vfs.getInodePool().release(inode);
+		}
+	}
+
+	/*
+	 * Replaces the content of this file with everything read from src,
+	 * whole blocks are filled with FileChannel.transferFrom().
+	 */
+	public long transferFrom(ReadableByteChannel src) throws JafsException, IOException {
+		if (!exists() && !createNewFile()) {
+			throw new JafsException("Could not create new file: " + canonicalPath);
+		}
+		JafsDirEntry entry = getEntry(canonicalPath);
+		if (!entry.isFile()) {
+			throw new JafsException(canonicalPath + " should be a file");
+		}
+		JafsInode inode = vfs.getInodePool().claim();
+		try {
+			inode.openInode(getInodeBpos(entry));
+			inode.truncate(0);
+			long n = inode.transferFrom(src);
+			inode.packTail();
+			storeLength(inode.getSize());
+			return n;
+		}
+		finally {
+			vfs.flushBlockCache();
+			vfs.getInodePool().release(inode);
+		}
+	}
+
 	public boolean delete() throws JafsException, IOException {
 		JafsDirEntry entry = getEntry(canonicalPath);
 		if (entry != null) {
@@ -213,11 +436,15 @@ public class JafsFile {
 			    // first remove the entry from the directory
                 inode.openInode(entry.getParentBpos());
                 parentDir.setInode(inode);
-				parentDir.deleteEntry(canonicalPath, entry);
+				parentDir.deleteEntry(entry);
 
                 // then free the inode, pointerblocks and datablocks
 				if (entry.getBpos() != 0) {
 					inode.openInode(entry.getBpos());
+					if (entry.isDirectory()) {
+						parentDir.setInode(inode);
+						parentDir.freeDir();
+					}
 					inode.resetSize();
 					inode.freeBlocksAndDeleteInode();
 				}
@@ -232,6 +459,43 @@ public class JafsFile {
 		return false;
 	}
 	
+	/*
+	 * Deletes this file, or this directory with everything below it. The
+	 * directory is removed from its parent with one write, then the inodes
+	 * and blocks below it are freed in one pass and flushed once.
+	 */
+	public boolean deleteTree() throws JafsException, IOException {
+		JafsDirEntry entry = getEntry(canonicalPath);
+		if (entry == null) {
+			return false;
+		}
+		if (entry == vfs.getRootEntry()) {
+			throw new JafsException("The root directory cannot be deleted");
+		}
+		JafsInode inode = vfs.getInodePool().claim();
+		JafsDir dir = vfs.getDirPool().claim();
+		try {
+			inode.openInode(entry.getParentBpos());
+			dir.setInode(inode);
+			dir.deleteEntry(entry);
+			if (entry.getBpos() != 0) {
+				inode.openInode(entry.getBpos());
+				if (entry.isDirectory()) {
+					dir.setInode(inode);
+					dir.freeTree();
+				}
+				inode.resetSize();
+				inode.freeBlocksAndDeleteInode();
+			}
+		}
+		finally {
+			vfs.flushBlockCache();
+			vfs.getInodePool().release(inode);
+			vfs.getDirPool().release(dir);
+		}
+		return true;
+	}
+
 	public JafsFile[] listFiles() throws JafsException, IOException {
 		String parent = canonicalPath;
 		if (!parent.endsWith(SEPARATOR)) {
@@ -276,16 +540,17 @@ public class JafsFile {
                     JafsDir dstDir = vfs.getDirPool().claim();
 					try {
                         inodeSrc.openInode(entry.getParentBpos());
-                        inodeDst.openInode(getEntry(target.getParent()).getBpos());
                         srcDir.setInode(inodeSrc);
+                        srcDir.deleteEntry(entry);
+                        // opened after the delete, which might have compacted the same directory
+                        inodeDst.openInode(getEntry(target.getParent()).getBpos());
                         dstDir.setInode(inodeDst);
-                        srcDir.deleteEntry(canonicalPath, entry);
                         entry.setName(target.getName().getBytes(StandardCharsets.UTF_8));
                         dstDir.createNewEntry(
-                                target.canonicalPath,
                                 target.getName().getBytes(StandardCharsets.UTF_8),
 								entry.getType(),
-								entry.getBpos());
+								entry.getBpos(),
+								entry.getSize());
                     }
                     finally {
 						vfs.flushBlockCache();
@@ -299,162 +564,141 @@ public class JafsFile {
 		}
 	}
 
+	/*
+	 * Resolves path one name at a time, the cache is probed with the bpos
+	 * of the parent directory and the name. A directory is only read when
+	 * a name is not in the cache. Resolving a canonical path that is fully
+	 * cached does not allocate.
+	 */
 	JafsDirEntry getEntry(String path) throws JafsException, IOException {
-	    String normPath = getCanonicalPath(normalizePath(path));
-
-        if (normPath.equals(SEPARATOR)) {
-            return vfs.getRootEntry();
-        }
-
-        String[] parts = SLASH.split(normPath); // first entry is always empty
-        int n = parts.length;
-
-        JafsDirEntry entry = null;
-
-        String curPath = normPath;
-        while (n > 0) {
-            entry = dc.get(curPath);
-            if (entry != null) {
-                break;
-            }
-            curPath = getParent(curPath);
-            n--;
-        }
-
-        if (n == parts.length) {
-            return entry;
-        }
-
-        if (n == 0) {
-            entry = vfs.getRootEntry();
-            curPath = "";
-            n = 1;
-        }
-
-        if (entry.getBpos() == 0) {
-            return null;
-        }
+	    String normPath = getCanonicalPath(path);
 
-        JafsInode inode = vfs.getInodePool().claim();
-        JafsDir dir = vfs.getDirPool().claim();
+        JafsDirEntry entry = vfs.getRootEntry();
+        JafsInode inode = null;
+        JafsDir dir = null;
         try {
-            inode.openInode(entry.getBpos());
-            dir.setInode(inode);
-            for (; n < parts.length; n++) {
-                String part = parts[n];
-                if (!part.isEmpty()) {
-                    curPath += SEPARATOR + part;
-                    entry = dir.getEntry(part.getBytes(StandardCharsets.UTF_8));
-                    if (entry == null) {
-                        break;
-                    } else {
-                        if (n == (parts.length - 1)) {
-                            // The last part of the path? Then it exists.
-                            dc.add(curPath, entry);
-                            break;
-                        } else if (entry.isFile()) {
-                            // Files should always be last part of the path.
-                            entry = null;
-                            break;
-                        } else {
-                            dc.add(curPath, entry);
-                            if (entry.getBpos() != 0) {
-                                inode.openInode(entry.getBpos());
-                                dir.setInode(inode);
-                            } else {
-                                entry = null;
-                                break;
-                            }
-                        }
+            int len = normPath.length();
+            int start = 1;
+            while (start < len) {
+                int end = normPath.indexOf(SEPARATOR_CHAR, start);
+                if (end < 0) {
+                    end = len;
+                }
+                if (!entry.isDirectory() || entry.getBpos() == 0) {
+                    // Files should always be last part of the path.
+                    return null;
+                }
+                JafsDirEntry child = dc.get(entry.getBpos(), normPath, start, end);
+                if (child == null) {
+                    byte[] name = normPath.substring(start, end).getBytes(StandardCharsets.UTF_8);
+                    if (dir == null) {
+                        inode = vfs.getInodePool().claim();
+                        dir = vfs.getDirPool().claim();
                     }
+                    inode.openInode(entry.getBpos());
+                    dir.setInode(inode);
+                    child = dir.getEntry(name);
+                    if (child == null) {
+                        return null;
+                    }
+                    dc.add(child);
                 }
+                entry = child;
+                start = end + 1;
             }
         }
         finally {
-            vfs.getInodePool().release(inode);
-            vfs.getDirPool().release(dir);
+            if (dir != null) {
+                vfs.getInodePool().release(inode);
+                vfs.getDirPool().release(dir);
+            }
         }
 		return entry;
 	}
 	
-	private static String normalizePath(String path) {
-		path = path.trim();
-		path = MULTIPLE_SLASH.matcher(path).replaceAll(SEPARATOR);
-		int len = path.length();
-		if (len > 1) {
-			// Remove trailing slash except when it is the root slash
-            if (path.charAt(len - 1) == SEPARATOR_CHAR) {
-                path = path.substring(0, len - 1);
-            }
-		}
-		return path;
+	/*
+	 * Drops empty names (//) and a trailing slash
+	 */
+	private static String normalizePath(String path) throws JafsException {
+		return parsePath(path, false);
 	}
-		
-	private String getName(String path) {
-		path = normalizePath(path);
-		if (path.length() == 1 && path.charAt(0) == SEPARATOR_CHAR) {
-			return "";
-		}
-		String[] names = SLASH.split(path);
-		return names[names.length - 1];
+
+	/*
+	 * Also drops . and resolves .. against the name before it
+	 */
+	private static String getCanonicalPath(String path) throws JafsException {
+		return parsePath(path, true);
 	}
-	
-	private String getParent(String path) {
-		boolean hasRoot = false;
-		path = normalizePath(path);
-		if (path.length() == 1 && path.charAt(0) == SEPARATOR_CHAR) {
-		    return null;
-        }
-		if (path.startsWith(SEPARATOR)) {
-			hasRoot = true;
-			path = path.substring(1);
+
+	/*
+	 * Single pass over the names of path, a path that needs no changes is
+	 * returned as is. Names are appended to sb, .. truncates sb to the
+	 * offset of the last name. A path without a leading slash is taken
+	 * relative to the root.
+	 */
+	private static String parsePath(String path, boolean canonical) throws JafsException {
+		if (isParsed(path, canonical)) {
+			return path;
 		}
-		if (!path.contains(SEPARATOR)) {
-			if (hasRoot) {
-				return SEPARATOR;
+		int len = path.length();
+		StringBuilder sb = new StringBuilder(len);
+		int start = 0;
+		while (start <= len) {
+			int end = path.indexOf(SEPARATOR_CHAR, start);
+			if (end < 0) {
+				end = len;
+			}
+			int n = end - start;
+			if (n == 0 || (canonical && n == 1 && path.charAt(start) == '.')) {
+				// skip
+			} else if (canonical && n == 2 && path.charAt(start) == '.' && path.charAt(start + 1) == '.') {
+				int last = sb.lastIndexOf(SEPARATOR);
+				if (last < 0) {
+					throw new JafsException("Parent directory (..) must not go beyond root");
+				}
+				sb.setLength(last);
 			} else {
-				return null;
+				sb.append(SEPARATOR_CHAR).append(path, start, end);
 			}
+			start = end + 1;
 		}
-		if (hasRoot) {
-			return SEPARATOR + FILENAME_IN_PATH.matcher(path).replaceAll("");
-		} else {
-			return FILENAME_IN_PATH.matcher(path).replaceAll("");
-		}
+		return sb.length() == 0 ? SEPARATOR : sb.toString();
 	}
 
-	private String getAbsolutePath(String path) {
-		path = normalizePath(path);
-		// The working dir is always the root (/)
-		if (!path.startsWith(SEPARATOR)) {
-			path = SEPARATOR + path;
+	private static boolean isParsed(String path, boolean canonical) {
+		int len = path.length();
+		if (len == 0 || path.charAt(0) != SEPARATOR_CHAR) {
+			return false;
 		}
-		return path;
+		int start = 1;
+		for (int end = 1; end <= len; end++) {
+			if (end == len || path.charAt(end) == SEPARATOR_CHAR) {
+				int n = end - start;
+				if (n == 0) {
+					return len == 1;
+				}
+				if (canonical && path.charAt(start) == '.' && (n == 1 || (n == 2 && path.charAt(start + 1) == '.'))) {
+					return false;
+				}
+				start = end + 1;
+			}
+		}
+		return true;
 	}
-		
-	private static String getCanonicalPath(String path) throws JafsException {
-	    // only call this method with a normalized path!
-	    if (path.charAt(path.length() - 1) != SEPARATOR_CHAR) {
-	        path = path + SEPARATOR;
-        }
-		int len = 0;
-		while (len != path.length()) {
-			len = path.length();
-			path = SLASH_DOT_SLASH.matcher(path).replaceAll(SEPARATOR);
-		}
-		len = 0;
-		while (len != path.length()) {
-			len = path.length();
-			path = FILE_CANCELS_ITSELF.matcher(path).replaceAll("");
-		}
-		if (path.startsWith(SEPARATOR + ".." + SEPARATOR)) {
-		    throw new JafsException("Parent directory (..) must not go beyond root");
-        }
-        if (path.equals(SEPARATOR)) {
-		    return path;
-        } else {
-            return path.substring(0, path.length() - 1);
+
+	/*
+	 * The methods below expect a normalized path
+	 */
+	private String getName(String path) {
+		return path.substring(path.lastIndexOf(SEPARATOR_CHAR) + 1);
+	}
+	
+	private String getParent(String path) {
+		if (path.length() == 1) {
+		    return null;
         }
+		int last = path.lastIndexOf(SEPARATOR_CHAR);
+		return last == 0 ? SEPARATOR : path.substring(0, last);
 	}
 		
 	private boolean exists(String path) throws JafsException, IOException {
@@ -485,7 +729,6 @@ public class JafsFile {
                 inode.openInode(entry.getBpos());
                 dir.setInode(inode);
                 dir.createNewEntry(
-                        getCanonicalPath(normalizePath(path)),
                         getName(path).getBytes(StandardCharsets.UTF_8),
                         JafsInode.INODE_DIR,
                         0);
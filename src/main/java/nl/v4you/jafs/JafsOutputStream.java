@@ -9,25 +9,29 @@ import java.io.OutputStream;
 
 public class JafsOutputStream extends OutputStream {
 	private final Jafs vfs;
+	private final JafsFile file;
 	private final String path;
 	private final long oldSize;
-	private JafsInode inode;
+	private JafsInode inode; // claimed from the pool, its size is written on flush() and close()
+	private boolean closed = false;
 
 	JafsOutputStream(Jafs vfs, JafsFile f, boolean append) throws JafsException, IOException {
 		this.vfs = vfs;
 		if (!f.exists() && !f.createNewFile()) {
 			throw new JafsException("Could not create new file: " + f.getCanonicalPath());
 		}
+		this.file = f;
 		this.path = f.getCanonicalPath();
 		JafsDirEntry entry = f.getEntry(f.getCanonicalPath());
 		if (entry != null && entry.getBpos() != 0) {
-			inode = new JafsInode(vfs);
+			inode = vfs.getInodePool().claim();
 			inode.openInode(entry.getBpos());
 			oldSize = inode.getSize();
 			if (append) {
 				inode.seekEnd(0);
 			} else {
 				inode.resetSize();
+				f.storeLength(0);
 				vfs.flushBlockCache();
 			}
 		} else {
@@ -38,6 +42,15 @@ public class JafsOutputStream extends OutputStream {
 	@Override
 	public void flush() throws IOException {
 		super.flush();
+		if (inode != null) {
+			try {
+				inode.flush();
+				file.storeLength(inode.getSize());
+				vfs.flushBlockCache();
+			} catch (JafsException e) {
+				throw new IOException("VFSExcepion wrapper: " + e.getMessage());
+			}
+		}
 	}
 
 	private void createInode() throws IOException {
@@ -53,7 +66,7 @@ public class JafsOutputStream extends OutputStream {
 					throw new JafsException("No entry found for [" + path + "]");
 				}
 				dir.mkinode(entry, JafsInode.INODE_FILE);
-				inode = new JafsInode(vfs);
+				inode = vfs.getInodePool().claim();
 				inode.openInode(entry.getBpos());
 			}
 			finally {
@@ -66,14 +79,20 @@ public class JafsOutputStream extends OutputStream {
 		}
 	}
 
+	private void ensureOpen() throws IOException {
+		if (closed) {
+			throw new IOException("Stream closed");
+		}
+	}
+
 	@Override
 	public void write(int b) throws IOException {
+		ensureOpen();
 		try {
 			if (inode == null) {
 				createInode();
 			}
 			inode.writeByte(b);
-			vfs.flushBlockCache();
 		} catch (JafsException e) {
 			e.printStackTrace();
 			throw new IOException("VFSExcepion wrapper: "+e.getMessage());
@@ -94,12 +113,12 @@ public class JafsOutputStream extends OutputStream {
 		if (len < 0) {
 			throw new IllegalStateException("length must be >= 0");
 		}
+		ensureOpen();
 		try {
 			if (inode == null) {
 				createInode();
 			}
 			inode.writeBytes(buf, start, len);
-			vfs.flushBlockCache();
 		} catch (JafsException e) {
 			e.printStackTrace();
 			throw new IOException("VFSExcepion wrapper: "+e.getMessage());
@@ -137,6 +156,10 @@ public class JafsOutputStream extends OutputStream {
 
 	@Override
 	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
 		if (inode != null) {
 			try {
 				if (inode.getSize() == 0) {
@@ -144,7 +167,12 @@ public class JafsOutputStream extends OutputStream {
 					inode.freeBlocksAndDeleteInode();
 				} else {
 					inode.freeBlocks(oldSize);
+					inode.packTail();
 				}
+				inode.flush();
+				file.storeLength(inode.getSize());
+				vfs.getInodePool().release(inode);
+				inode = null;
 				vfs.flushBlockCache();
 			} catch (JafsException e) {
 				throw new RuntimeException(e);
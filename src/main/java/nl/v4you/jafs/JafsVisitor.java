@@ -0,0 +1,13 @@
+package nl.v4you.jafs;
+
+import nl.v4you.jafs.internal.JafsDirEntry;
+
+import java.io.IOException;
+
+/*
+ * Called by Jafs.walk() for each entry that is accepted by the filter,
+ * path is the canonical path of the entry
+ */
+public interface JafsVisitor {
+	void visit(String path, JafsDirEntry entry) throws JafsException, IOException;
+}
@@ -0,0 +1,178 @@
+package nl.v4you.jafs;
+
+import nl.v4you.jafs.internal.JafsDir;
+import nl.v4you.jafs.internal.JafsDirEntry;
+import nl.v4you.jafs.internal.JafsInode;
+import nl.v4you.jafs.internal.JafsSuper;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RecursiveAction;
+
+/*
+ * Walks the tree below a directory by inode, see Jafs.walk(). The entries
+ * of a directory are read in batches while holding the lock of the archive,
+ * the visitor is called outside of it. When the archive stores file sizes
+ * in the directory entries the filter is applied while reading, otherwise
+ * the sizes are read from the inodes first. Either way a file with an open
+ * output stream gets the size it has in memory, as with JafsFile.length().
+ */
+class JafsWalk extends RecursiveAction {
+	private static final long serialVersionUID = 1L;
+	private static final int BATCH_SIZE = 64;
+
+	private final Jafs vfs;
+	private final String path;
+	private final long bpos;
+	private final DirectoryStream.Filter<? super JafsDirEntry> filter;
+	private final JafsVisitor visitor;
+	private final boolean fork;
+	private final boolean pushdown;
+	private final DirectoryStream.Filter<JafsDirEntry> scanFilter;
+
+	JafsWalk(Jafs vfs, String path, long bpos, DirectoryStream.Filter<? super JafsDirEntry> filter, JafsVisitor visitor, boolean fork) {
+		this.vfs = vfs;
+		this.path = path;
+		this.bpos = bpos;
+		this.filter = filter;
+		this.visitor = visitor;
+		this.fork = fork;
+		pushdown = filter != null && vfs.getSuper().hasFeature(JafsSuper.FEATURE_DIR_SIZES);
+		scanFilter = !pushdown ? null : new DirectoryStream.Filter<JafsDirEntry>() {
+			@Override
+			public boolean accept(JafsDirEntry entry) throws IOException {
+				// directories are always read, they are descended into also when not accepted
+				if (entry.isDirectory()) {
+					return true;
+				}
+				setUnflushedSize(entry);
+				return JafsWalk.this.filter.accept(entry);
+			}
+		};
+	}
+
+	private JafsWalk child(String childPath, long childBpos) {
+		return new JafsWalk(vfs, childPath, childBpos, filter, visitor, fork);
+	}
+
+	private boolean readBatch(JafsDirEntry last, List<JafsDirEntry> batch) throws JafsException, IOException {
+		JafsInode inode = vfs.getInodePool().claim();
+		JafsDir dir = vfs.getDirPool().claim();
+		try {
+			inode.openInode(bpos);
+			dir.setInode(inode);
+			boolean more = dir.readEntries(last, BATCH_SIZE, scanFilter, batch);
+			if (!vfs.getSuper().hasFeature(JafsSuper.FEATURE_DIR_SIZES)) {
+				for (JafsDirEntry entry : batch) {
+					if (entry.isFile() && entry.getBpos() != 0) {
+						// takes the size of an open output stream too
+						inode.openInode(entry.getBpos());
+						entry.setSize(inode.getSize());
+					}
+				}
+			} else if (!pushdown) {
+				for (JafsDirEntry entry : batch) {
+					if (entry.isFile()) {
+						setUnflushedSize(entry);
+					}
+				}
+			}
+			return more;
+		}
+		finally {
+			vfs.getInodePool().release(inode);
+			vfs.getDirPool().release(dir);
+		}
+	}
+
+	/*
+	 * An open output stream writes the size to the directory entry when it is flushed or closed
+	 */
+	private void setUnflushedSize(JafsDirEntry entry) {
+		if (entry.getBpos() != 0) {
+			JafsInode open = vfs.getInodePool().getUnflushed(entry.getBpos());
+			if (open != null) {
+				entry.setSize(open.getSize());
+			}
+		}
+	}
+
+	void walk() throws JafsException, IOException {
+		List<JafsWalk> subdirs = new ArrayList<>();
+		List<JafsDirEntry> batch = new ArrayList<>();
+		JafsDirEntry last = null;
+		boolean more = true;
+		synchronized (vfs) {
+			vfs.getDirPool().pin(bpos);
+		}
+		try {
+			while (more) {
+				batch.clear();
+				synchronized (vfs) {
+					more = readBatch(last, batch);
+				}
+				for (JafsDirEntry entry : batch) {
+					String name = entry.getName();
+					String childPath = path.length() == 1 ? path + name : path + JafsFile.SEPARATOR + name;
+					boolean accepted = filter == null || (pushdown && entry.isFile()) || filter.accept(entry);
+					if (accepted) {
+						visitor.visit(childPath, entry);
+					}
+					if (entry.isDirectory() && entry.getBpos() != 0) {
+						if (fork) {
+							subdirs.add(child(childPath, entry.getBpos()));
+						} else {
+							child(childPath, entry.getBpos()).walk();
+						}
+					}
+					last = entry;
+				}
+			}
+		}
+		finally {
+			synchronized (vfs) {
+				vfs.getDirPool().unpin(bpos);
+			}
+		}
+		if (!subdirs.isEmpty()) {
+			invokeAll(subdirs);
+		}
+	}
+
+	@Override
+	protected void compute() {
+		try {
+			walk();
+		} catch (JafsException | IOException e) {
+			throw new WalkFailed(e);
+		}
+	}
+
+	/*
+	 * Carries a checked exception out of a forked task
+	 */
+	static class WalkFailed extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		WalkFailed(Exception cause) {
+			super(cause);
+		}
+
+		/*
+		 * The pool may wrap the exception once more when it is rethrown in another thread
+		 */
+		static void rethrow(RuntimeException e) throws JafsException, IOException {
+			for (Throwable t = e; t != null; t = t.getCause()) {
+				if (t instanceof JafsException) {
+					throw (JafsException)t;
+				}
+				if (t instanceof IOException) {
+					throw (IOException)t;
+				}
+			}
+			throw e;
+		}
+	}
+}
@@ -12,14 +12,19 @@ public class JafsBlock {
 	private final byte[] buf;
 	private final RandomAccessFile raf;
 	private final JafsBlockCache blockCache;
+	private final JafsUnusedMap unusedMap;
+	private final int viewSize;
 
 	private long bpos;
 	private int byteIdx;
 	private boolean blockNeedsFlush = false;
+	boolean cached = false; // maintained by JafsBlockCache
 
 	JafsBlock(Jafs vfs, long bpos) {
 		this.blockCache = vfs.getBlockCache();
 		raf = vfs.getRaf();
+		unusedMap = vfs.getUnusedMap();
+		viewSize = vfs.getSuper().getBlockSize();
 		buf = new byte[blockSize];
 		this.bpos = bpos;
 		byteIdx = 0;
@@ -34,6 +39,13 @@ public class JafsBlock {
 		return bpos;
 	}
 
+	/*
+	 * False when this block was evicted from the cache, or reused for another page, since it was looked up
+	 */
+	boolean isCachedAs(long bpos) {
+		return cached && this.bpos == bpos;
+	}
+
 	boolean needsFlush() {
 		return blockNeedsFlush;
 	}
@@ -47,15 +59,6 @@ public class JafsBlock {
         markForFlush();
 	}
 
-	void initOnes(int len) {
-		if (len == 0) {
-			return;
-		}
-		Arrays.fill(buf, byteIdx, byteIdx + len, (byte)0xff);
-		byteIdx += len;
-		markForFlush();
-	}
-	
 	void seekSet(int b) {
 		byteIdx = b;
 	}
@@ -77,9 +80,31 @@ public class JafsBlock {
 		}
 	}
 	void writeToDisk() throws IOException {
+		// The super block and the unused maps are written by their owners (JafsSuper
+		// and JafsUnusedMap), the bytes in this block might be outdated so skip them
+		int skipFrom = 0;
+		int skipTo = (bpos == 0) ? viewSize : 0;
+		long firstVpos = bpos * blockSize / viewSize - 1;
+		long lastVpos = (bpos + 1) * blockSize / viewSize - 2;
+		if (lastVpos >= 0) {
+			long mapVpos = unusedMap.getUnusedMapBpos(lastVpos);
+			if (mapVpos >= firstVpos) {
+				int mapStart = (int)((1 + mapVpos) * viewSize - bpos * blockSize);
+				if (mapStart != skipTo) {
+					skipFrom = mapStart;
+				}
+				skipTo = mapStart + viewSize;
+			}
+		}
 		long start = bpos * blockSize;
-		raf.seek(start);
-		raf.write(buf);
+		if (skipFrom > 0) {
+			raf.seek(start);
+			raf.write(buf, 0, skipFrom);
+		}
+		if (skipTo < blockSize) {
+			raf.seek(start + skipTo);
+			raf.write(buf, skipTo, blockSize - skipTo);
+		}
 		blockNeedsFlush = false;
 	}
 
@@ -142,4 +167,33 @@ public class JafsBlock {
 		buf[byteIdx++] = (byte)(l & 0xffL);
 		markForFlush();
 	}
+
+	int readShort() {
+		int s = (buf[byteIdx++] & 0xff) << 8;
+		s |= (buf[byteIdx++] & 0xff);
+		return s;
+	}
+
+	long readLong() {
+		long l = readInt() << 32;
+		l |= readInt();
+		return l;
+	}
+
+	void writeLong(long l) {
+		writeInt(l >>> 32);
+		writeInt(l);
+	}
+
+	void readPtrs(long[] ptrs, int n, int ptrSize) {
+		if (ptrSize == 4) {
+			for (int i = 0; i < n; i++) {
+				ptrs[i] = readInt();
+			}
+		} else {
+			for (int i = 0; i < n; i++) {
+				ptrs[i] = readLong();
+			}
+		}
+	}
 }
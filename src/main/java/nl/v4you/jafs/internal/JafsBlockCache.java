@@ -29,8 +29,10 @@ public class JafsBlockCache {
                 free = null;
             }
             blk.readFromDisk();
+            blk.cached = true;
             JafsBlock evicted = gcache.add(bpos, blk);
             if (evicted != null) {
+                evicted.cached = false;
                 if (evicted.needsFlush()) {
                     evicted.writeToDisk();
                     flushList.remove(evicted.getBpos());
@@ -41,6 +43,26 @@ public class JafsBlockCache {
 		return blk;
 	}
 
+    /*
+     * True when one of the pages [from, to] has changes that are not written to the archive yet
+     */
+    boolean isDirty(long from, long to) {
+        return !flushList.subSet(from, true, to, true).isEmpty();
+    }
+
+    /*
+     * Drops the pages [from, to] after they were written to the archive
+     * directly, the pages must be clean.
+     */
+    void invalidate(long from, long to) {
+        for (long bpos = from; bpos <= to; bpos++) {
+            JafsBlock blk = gcache.remove(bpos);
+            if (blk != null) {
+                blk.cached = false;
+            }
+        }
+    }
+
     public void addToFlushList(long bpos) {
         flushList.add(bpos);
     }
@@ -0,0 +1,63 @@
+package nl.v4you.jafs.internal;
+
+import java.util.Arrays;
+
+/*
+ * A list of runs of consecutive blocks in the archive, as produced by
+ * JafsInodeContext.mapRange(). A run with vpos 0 is a hole, a part of
+ * the file that has no blocks (vpos 0 is always an unused map).
+ */
+public class JafsBlockRuns {
+	private long[] vpos = new long[8];
+	private long[] blocks = new long[8];
+	private int size = 0;
+
+	public int size() {
+		return size;
+	}
+
+	public long getVpos(int idx) {
+		return vpos[idx];
+	}
+
+	public long getBlocks(int idx) {
+		return blocks[idx];
+	}
+
+	public boolean isHole(int idx) {
+		return vpos[idx] == 0;
+	}
+
+	public void clear() {
+		size = 0;
+	}
+
+	void add(long bpos, long n) {
+		if (size > 0) {
+			int last = size - 1;
+			if (bpos == 0 ? vpos[last] == 0 : vpos[last] != 0 && vpos[last] + blocks[last] == bpos) {
+				blocks[last] += n;
+				return;
+			}
+		}
+		if (size == vpos.length) {
+			vpos = Arrays.copyOf(vpos, size * 2);
+			blocks = Arrays.copyOf(blocks, size * 2);
+		}
+		vpos[size] = bpos;
+		blocks[size] = n;
+		size++;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (int n = 0; n < size; n++) {
+			if (n > 0) {
+				sb.append(", ");
+			}
+			sb.append(vpos[n]).append("+").append(blocks[n]);
+		}
+		return sb.toString();
+	}
+}
@@ -5,28 +5,58 @@ import nl.v4you.jafs.JafsException;
 
 import java.io.IOException;
 
+/*
+ * A view on one archive block inside a page of the block cache. A view can be
+ * moved to another block with setVpos(), it keeps the page it resolved as long
+ * as it stays within the same page, so walking the blocks of a page does not
+ * look up the page again.
+ */
 public class JafsBlockView {
     private static final int SUPERBLOCK_SIZE = 1;
+    private static final int PAGE_SHIFT = 12; // pages of 4096 bytes
 
-    private final long blockId;
     private final int viewSize;
+    private final int viewShift;
+    private final int viewsPerBlockMask;
     private final JafsBlockCache blockCache;
-    private final int byteOffset;
 
+    private long blockId = -1;
+    private int byteOffset;
     private JafsBlock diskBlock;
     private int byteIdx;
 
-    JafsBlockView(Jafs vfs, long vpos) {
+    JafsBlockView(Jafs vfs) {
         blockCache = vfs.getBlockCache();
         viewSize = vfs.getSuper().getBlockSize();
-        int viewsPerBlock = 4096 / viewSize;
-        blockId = ((SUPERBLOCK_SIZE + vpos) * viewSize) / 4096;
-        byteOffset = (int)(((SUPERBLOCK_SIZE + vpos) % viewsPerBlock) * viewSize);
+        viewShift = Integer.numberOfTrailingZeros(viewSize);
+        viewsPerBlockMask = (4096 / viewSize) - 1;
+    }
+
+    JafsBlockView(Jafs vfs, long vpos) {
+        this(vfs);
+        setVpos(vpos);
+    }
+
+    /*
+     * The page of the block cache holding block vpos
+     */
+    static long getPage(long vpos, int blockSize) {
+        return ((SUPERBLOCK_SIZE + vpos) * blockSize) >>> PAGE_SHIFT;
+    }
+
+    void setVpos(long vpos) {
+        long id = ((SUPERBLOCK_SIZE + vpos) << viewShift) >>> PAGE_SHIFT;
+        if (id != blockId) {
+            blockId = id;
+            diskBlock = null;
+        }
+        byteOffset = (int)((SUPERBLOCK_SIZE + vpos) & viewsPerBlockMask) << viewShift;
         byteIdx = 0;
     }
 
     void loadDiskBlockIfNeeded() throws JafsException, IOException {
-        if (diskBlock == null) {
+        // the page might have been evicted since it was resolved
+        if (diskBlock == null || !diskBlock.isCachedAs(blockId)) {
             diskBlock = blockCache.get(blockId);
         }
     }
@@ -91,12 +121,6 @@ public class JafsBlockView {
         diskBlock.initZeros(viewSize);
     }
 
-    void initOnes() throws JafsException, IOException {
-        loadDiskBlockIfNeeded();
-        diskBlock.seekSet(byteOffset);
-        diskBlock.initOnes(viewSize);
-    }
-
     long readInt() throws JafsException, IOException {
         loadDiskBlockIfNeeded();
         diskBlock.seekSet(byteOffset + byteIdx);
@@ -111,15 +135,34 @@ public class JafsBlockView {
         byteIdx += 4;
     }
 
-    int peekSkipMapByte() throws JafsException, IOException {
+    int readShort() throws JafsException, IOException {
         loadDiskBlockIfNeeded();
-        diskBlock.seekSet(byteOffset);
-        return diskBlock.peekByte();
+        diskBlock.seekSet(byteOffset + byteIdx);
+        byteIdx += 2;
+        return diskBlock.readShort();
     }
 
-    void pokeSkipMapByte(int b) throws JafsException, IOException {
+    long readLong() throws JafsException, IOException {
         loadDiskBlockIfNeeded();
-        diskBlock.seekSet(byteOffset);
-        diskBlock.pokeByte(b);
+        diskBlock.seekSet(byteOffset + byteIdx);
+        byteIdx += 8;
+        return diskBlock.readLong();
+    }
+
+    void writeLong(long l) throws JafsException, IOException {
+        loadDiskBlockIfNeeded();
+        diskBlock.seekSet(byteOffset + byteIdx);
+        diskBlock.writeLong(l);
+        byteIdx += 8;
+    }
+
+    /*
+     * Reads n block pointers of ptrSize bytes
+     */
+    void readPtrs(long[] ptrs, int n, int ptrSize) throws JafsException, IOException {
+        loadDiskBlockIfNeeded();
+        diskBlock.seekSet(byteOffset + byteIdx);
+        diskBlock.readPtrs(ptrs, n, ptrSize);
+        byteIdx += n * ptrSize;
     }
 }
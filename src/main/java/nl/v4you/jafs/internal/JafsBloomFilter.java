@@ -0,0 +1,54 @@
+package nl.v4you.jafs.internal;
+
+/*
+ * Bloom filter on the name hashes of a hashed directory, see JafsLookupCache.
+ * The bit positions are derived from the 32-bit name hash by double hashing.
+ * Names are never removed, so a filter only tells for sure that a name is absent.
+ */
+public class JafsBloomFilter {
+	private static final int BITS_PER_NAME = 10;
+	private static final int HASHES = 7;
+	private static final int MIN_CAPACITY = 64;
+
+	private final long[] bits;
+	private final int nbits;
+	private final int capacity;
+	private int count = 0;
+
+	JafsBloomFilter(int capacity) {
+		this.capacity = Math.max(capacity, MIN_CAPACITY);
+		bits = new long[(this.capacity * BITS_PER_NAME + 63) / 64];
+		nbits = bits.length * 64;
+	}
+
+	private static int step(int hash) {
+		return Integer.rotateLeft(hash * 0x9e3779b9, 16) | 1;
+	}
+
+	void add(int hash) {
+		int step = step(hash);
+		for (int n = 0; n < HASHES; n++) {
+			int bit = ((hash + n * step) & 0x7fffffff) % nbits;
+			bits[bit >>> 6] |= 1L << bit;
+		}
+		count++;
+	}
+
+	boolean mightContain(int hash) {
+		int step = step(hash);
+		for (int n = 0; n < HASHES; n++) {
+			int bit = ((hash + n * step) & 0x7fffffff) % nbits;
+			if ((bits[bit >>> 6] & (1L << bit)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/*
+	 * More names were added than the filter was sized for, it should be rebuilt
+	 */
+	boolean isFull() {
+		return count > capacity;
+	}
+}
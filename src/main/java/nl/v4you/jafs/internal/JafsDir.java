@@ -5,29 +5,76 @@ import nl.v4you.jafs.*;
 
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
 
 /*
- * <ushort: entry size> = filename length + filename checksum + type + inode bpos + filename
+ * <ushort: entry size> = filename length + filename checksum + type + inode bpos + file size + filename
  * <byte: filename length> if bit 0x80 is set, the next byte contains 8 more bits
- * <byte: filename checksum> 1-byte filename checksum
+ * <byte: filename checksum> 1-byte filename checksum, with FEATURE_DIR_HASH32 the
+ *   full 4-byte hash of the filename so other names are almost never compared
  * <byte: type> (f=file, d=directory)
- * <uint: inode bpos> (must be 0 if not present)
+ * <uint: inode bpos> (must be 0 if not present, 8 bytes in archives with 64-bit pointers)
+ * <ulong: file size> (only with FEATURE_DIR_SIZES, 0 for directories)
  * <string: filename>
  *
+ * With FEATURE_HASHED_DIRS a directory that grows beyond hashedMinSize bytes is
+ * converted to a hashed directory (inode flag INODE_HASHED). Its entries are spread
+ * over buckets by extendible hashing on the name hash, the lowest 8 bits of the hash
+ * are skipped because they are the checksum. The directory holds the bucket table:
+ * <byte: global depth>
+ * 2^depth times:
+ * <uint: bucket inode bpos> (8 bytes in archives with 64-bit pointers)
+ * <byte: local depth of the bucket>
+ * A bucket is a directory inode in the format above. A bucket that grows beyond
+ * bucketMaxSize bytes is split in two, the table doubles when its local depth
+ * equals the global depth.
+ *
+ * Deleted entries are reused by new entries of the same size or smaller. A large
+ * linear directory that holds more deleted than active entries is compacted: its
+ * entries are rewritten without gaps and the blocks beyond them are freed. The same
+ * is done for a bucket larger than half of bucketMaxSize. A hashed directory as a
+ * whole is only compacted on request, it becomes linear again when its entries
+ * fit in half of hashedMinSize. Entries do not move while the directory is pinned
+ * by a JafsDirectoryStream.
  */
 public class JafsDir {
 	static final int ENTRY_SIZE_LENGTH = 2;
-    static final int ENTRY_OVERHEAD = 1 + 1 + 1 + 4; // length + checksum + type + bpos
     static final byte[] SLASH = {'/'};
 
 	final Jafs vfs;
 	JafsInode inode;
+	private final int ptrSize;
+	private final int sizeLength; // 8 with FEATURE_DIR_SIZES, 0 otherwise
+	private final int checksumLength; // 4 with FEATURE_DIR_HASH32, 1 otherwise
+	private final int entryOverhead; // length + checksum + type + bpos + size
 
 	private static final int BB_LEN = 512;
+	private static final int WRITE_BUF_LEN = 4096;
 	private static final int MAX_FILE_NAME_LENGTH = 0x7FFF;
+	private static final int HASH_SHIFT = 8;
+	private static final int MAX_DEPTH = 20;
+	private static final int FREE_TREE_BATCH = 1024;
 	private final byte[] bb = new byte[BB_LEN];
 
+	private final boolean hashedDirs;
+	private final int hashedMinSize;
+	private final int indexMinSize;
+	private final int bucketMaxSize;
+	private final int slotSize; // bucket bpos + local depth
+
+	// The bucket last opened by openBucket()
+	private JafsInode bucketInode = null;
+	private JafsDir bucket = null;
+	private int bucketIdx = 0;
+	private int bucketDepth = 0;
+
 	public static void createRootDir(Jafs vfs) throws JafsException, IOException {
         JafsInode rootInode = vfs.getInodePool().claim();
         JafsDir dir = vfs.getDirPool().claim();
@@ -45,6 +92,28 @@ public class JafsDir {
 	
 	JafsDir(Jafs vfs) {
 		this.vfs = vfs;
+		ptrSize = vfs.getINodeContext().getPtrSize();
+		sizeLength = vfs.getSuper().hasFeature(JafsSuper.FEATURE_DIR_SIZES) ? 8 : 0;
+		checksumLength = vfs.getSuper().hasFeature(JafsSuper.FEATURE_DIR_HASH32) ? 4 : 1;
+		entryOverhead = 1 + checksumLength + 1 + ptrSize + sizeLength;
+		int blockSize = vfs.getSuper().getBlockSize();
+		hashedDirs = vfs.getSuper().hasFeature(JafsSuper.FEATURE_HASHED_DIRS);
+		hashedMinSize = Math.max(8 * blockSize, 4096);
+		indexMinSize = Math.max(4 * blockSize, 2048);
+		bucketMaxSize = Math.max(2 * blockSize, 512);
+		slotSize = ptrSize + 1;
+	}
+
+	private long readBpos() throws JafsException, IOException {
+		return ptrSize == 8 ? inode.readLong() : inode.readInt();
+	}
+
+	private void writeBpos(long bpos) throws JafsException, IOException {
+		if (ptrSize == 8) {
+			inode.writeLong(bpos);
+		} else {
+			inode.writeInt((int)bpos);
+		}
 	}
 
 	public void setInode(JafsInode inode) throws JafsException {
@@ -56,9 +125,464 @@ public class JafsDir {
         }
     }
 
+	private boolean isHashed() {
+		return (inode.type & JafsInode.INODE_HASHED) != 0;
+	}
+
+	private static int bucketHash(byte[] name) {
+		return OneAtATimeHash.calcHash(name) >>> HASH_SHIFT;
+	}
+
+	private int checksum(byte[] name) {
+		int hash = OneAtATimeHash.calcHash(name);
+		return checksumLength == 4 ? hash : hash & 0xff;
+	}
+
+	private int readChecksum() throws JafsException, IOException {
+		return checksumLength == 4 ? (int)inode.readInt() : inode.readByte();
+	}
+
+	private int entrySize(byte[] name) {
+		return (name.length < 0x80 ? entryOverhead : entryOverhead + 1) + name.length;
+	}
+
+	/*
+	 * Opens the bucket at bpos, a new bucket is created when bpos is 0
+	 */
+	private JafsDir openBucket(long bpos) throws JafsException, IOException {
+		if (bucket == null) {
+			bucketInode = new JafsInode(vfs);
+			bucket = new JafsDir(vfs);
+		}
+		if (bpos == 0) {
+			bucketInode.createInode(JafsInode.INODE_DIR);
+		} else {
+			bucketInode.openInode(bpos);
+		}
+		bucket.setInode(bucketInode);
+		return bucket;
+	}
+
+	/*
+	 * Opens the bucket that holds name
+	 */
+	private JafsDir openBucket(byte[] name) throws JafsException, IOException {
+		inode.seekSet(0);
+		int depth = inode.readByte();
+		bucketIdx = bucketHash(name) & ((1 << depth) - 1);
+		inode.seekSet(1 + (long)bucketIdx * slotSize);
+		long bpos = readBpos();
+		bucketDepth = inode.readByte();
+		return openBucket(bpos);
+	}
+
+	/*
+	 * Returns the bpos of every bucket once, a bucket is referenced by
+	 * 2^(global depth - local depth) slots of which the first is below 2^(local depth)
+	 */
+	private long[] readBuckets() throws JafsException, IOException {
+		inode.seekSet(0);
+		int slots = 1 << inode.readByte();
+		long[] buckets = new long[slots];
+		int n = 0;
+		for (int idx = 0; idx < slots; idx++) {
+			long bpos = readBpos();
+			if (idx < (1 << inode.readByte())) {
+				buckets[n++] = bpos;
+			}
+		}
+		return Arrays.copyOf(buckets, n);
+	}
+
+	/*
+	 * Returns the directory that holds entry and updates its position,
+	 * in a hashed directory entries move when a bucket is split
+	 */
+	private JafsDir dirOf(JafsDirEntry entry) throws JafsException, IOException {
+		if (!isHashed()) {
+			return this;
+		}
+		JafsDir dir = openBucket(entry.name);
+		long startPos = dir.getEntryPos(entry.name);
+		if (startPos < 0) {
+			throw new JafsException("Entry [" + new String(entry.name, StandardCharsets.UTF_8) + "] not found");
+		}
+		entry.startPos = startPos;
+		return dir;
+	}
+
+	private void convertToHashed() throws JafsException, IOException {
+		List<JafsDirEntry> entries = readEntries();
+		dropIndex();
+		inode.truncate(0);
+		inode.type |= JafsInode.INODE_HASHED;
+		inode.flushInode();
+		inode.seekSet(0);
+		inode.writeByte(0); // global depth
+		writeBpos(0);
+		inode.writeByte(0);
+		splitBucket(entries, 0, 0, 0);
+	}
+
+	private void insertHashed(JafsDirEntry entry) throws JafsException, IOException {
+		JafsDir dir = openBucket(entry.name);
+		dir.createEntry(entry);
+		if (bucketInode.getSize() > bucketMaxSize && bucketDepth < MAX_DEPTH && !vfs.getDirPool().isPinned(inode.getVpos())) {
+			splitBucket(dir.readEntries(), bucketIdx & ((1 << bucketDepth) - 1), bucketDepth, bucketInode.getVpos());
+		}
+		bucketInode.flush();
+	}
+
+	/*
+	 * Writes entries, whose hashes all end in the depth bits of value, to buckets of
+	 * at most half the maximum size. The first bucket reuses bpos, if it is not 0.
+	 */
+	private void splitBucket(List<JafsDirEntry> entries, int value, int depth, long bpos) throws JafsException, IOException {
+		if (entriesSize(entries) > bucketMaxSize / 2 && depth < MAX_DEPTH) {
+			List<JafsDirEntry> low = new ArrayList<>();
+			List<JafsDirEntry> high = new ArrayList<>();
+			for (JafsDirEntry entry : entries) {
+				if ((bucketHash(entry.name) & (1 << depth)) == 0) {
+					low.add(entry);
+				} else {
+					high.add(entry);
+				}
+			}
+			splitBucket(low, value, depth + 1, bpos);
+			splitBucket(high, value | (1 << depth), depth + 1, 0);
+		} else {
+			openBucket(bpos).writeEntries(entries);
+			bucketInode.flush();
+			setBucket(value, depth, bucketInode.getVpos());
+		}
+	}
+
+	private void setBucket(int value, int depth, long bpos) throws JafsException, IOException {
+		inode.seekSet(0);
+		int globalDepth = inode.readByte();
+		if (depth > globalDepth) {
+			// double the table until it has the depth of the bucket
+			int len = (1 << globalDepth) * slotSize;
+			byte[] table = new byte[len];
+			inode.seekSet(1);
+			inode.readBytes(table, 0, len);
+			for (int n = 1; n < (1 << (depth - globalDepth)); n++) {
+				inode.writeBytes(table, 0, len);
+			}
+			globalDepth = depth;
+			inode.seekSet(0);
+			inode.writeByte(globalDepth);
+		}
+		for (long idx = value; idx < (1L << globalDepth); idx += 1 << depth) {
+			inode.seekSet(1 + idx * slotSize);
+			writeBpos(bpos);
+			inode.writeByte(depth);
+		}
+	}
+
+	/*
+	 * Frees the buckets of a hashed directory and drops its in-memory index or
+	 * Bloom filter, the directory inode is freed by the caller
+	 */
+	public void freeDir() throws JafsException, IOException {
+		dropIndex();
+		vfs.getLookupCache().removeFilter(inode.getVpos());
+		if (isHashed()) {
+			for (long bpos : readBuckets()) {
+				openBucket(bpos);
+				bucketInode.resetSize();
+				bucketInode.freeBlocksAndDeleteInode();
+			}
+		}
+	}
+
+	/*
+	 * Frees everything below this directory, the entries themselves are left in
+	 * place. The directory inode is freed by the caller, as with freeDir().
+	 */
+	public void freeTree() throws JafsException, IOException {
+		List<JafsDirEntry> entries = new ArrayList<>();
+		JafsDirEntry after = null;
+		boolean more = true;
+		JafsInode childInode = vfs.getInodePool().claim();
+		JafsDir childDir = vfs.getDirPool().claim();
+		try {
+			while (more) {
+				entries.clear();
+				more = readEntries(after, FREE_TREE_BATCH, null, entries);
+				for (JafsDirEntry entry : entries) {
+					vfs.getDirCache().remove(inode.getVpos(), entry.name);
+					if (entry.bpos != 0) {
+						childInode.openInode(entry.bpos);
+						if (entry.isDirectory()) {
+							childDir.setInode(childInode);
+							childDir.freeTree();
+						}
+						childInode.resetSize();
+						childInode.freeBlocksAndDeleteInode();
+					}
+					after = entry;
+				}
+			}
+		}
+		finally {
+			vfs.getInodePool().release(childInode);
+			vfs.getDirPool().release(childDir);
+		}
+		freeDir();
+	}
+
+	/*
+	 * Returns the index of a large linear directory, it is built by the first scan
+	 */
+	private JafsDirIndex getIndex() throws JafsException, IOException {
+		JafsDirIndex index = vfs.getDirIndexCache().get(inode.getVpos());
+		if (index == null && inode.getSize() > indexMinSize) {
+			index = buildIndex();
+			vfs.getDirIndexCache().add(inode.getVpos(), index);
+		}
+		return index;
+	}
+
+	/*
+	 * Scans a linear directory for the positions of its entries
+	 */
+	private JafsDirIndex buildIndex() throws JafsException, IOException {
+		JafsDirIndex index = new JafsDirIndex();
+		inode.seekSet(0);
+		int entrySize = inode.readShort();
+		while (entrySize != 0) {
+			long startPos = inode.getFpos();
+			int nameLen = inode.readByte();
+			if (nameLen == 0) {
+				index.addFree(entrySize, startPos);
+			} else {
+				if ((nameLen & 0x80) != 0) {
+					nameLen &= 0x7f;
+					nameLen |= inode.readByte() << 7;
+				}
+				if (checksumLength == 4) {
+					index.add((int)inode.readInt(), startPos);
+				} else {
+					inode.seekCur(checksumLength + 1 + ptrSize + sizeLength); // skip checksum + type + bpos + size
+					byte[] name = new byte[nameLen];
+					inode.readBytes(name, 0, nameLen);
+					index.add(OneAtATimeHash.calcHash(name), startPos);
+				}
+			}
+			inode.seekSet(startPos + entrySize);
+			entrySize = inode.readShort();
+		}
+		index.endPos = inode.getFpos() - ENTRY_SIZE_LENGTH;
+		return index;
+	}
+
+	private void dropIndex() {
+		vfs.getDirIndexCache().remove(inode.getVpos());
+	}
+
+	private long findIndexed(JafsDirIndex index, byte[] name) throws JafsException, IOException {
+		int hash = OneAtATimeHash.calcHash(name);
+		for (int slot = index.home(hash); index.position(slot) != 0; slot = index.next(slot)) {
+			if (index.hash(slot) == hash && nameMatches(index.position(slot), name)) {
+				return index.position(slot);
+			}
+		}
+		return -1;
+	}
+
+	private boolean nameMatches(long startPos, byte[] name) throws JafsException, IOException {
+		inode.seekSet(startPos);
+		int nameLen = inode.readByte();
+		if ((nameLen & 0x80) != 0) {
+			nameLen &= 0x7f;
+			nameLen |= inode.readByte() << 7;
+		}
+		if (nameLen != name.length) {
+			return false;
+		}
+		inode.seekCur(checksumLength + 1 + ptrSize + sizeLength); // skip checksum + type + bpos + size
+		byte[] buf = nameLen <= BB_LEN ? bb : new byte[nameLen];
+		inode.readBytes(buf, 0, nameLen);
+		int n = 0;
+		while ((n < nameLen) && (buf[n] == name[n])) {
+			n++;
+		}
+		return n == nameLen;
+	}
+
+	/*
+	 * Returns the active entries of a linear directory
+	 */
+	private List<JafsDirEntry> readEntries() throws JafsException, IOException {
+		List<JafsDirEntry> l = new ArrayList<>();
+		readEntries(null, Integer.MAX_VALUE, null, l, 0);
+		return l;
+	}
+
+	/*
+	 * Adds up to max active entries accepted by filter to entries. Reading starts
+	 * after the entry "after", which was read before, or at the first entry when it
+	 * is null. Returns false when the end of the directory has been reached.
+	 */
+	public boolean readEntries(JafsDirEntry after, int max, DirectoryStream.Filter<? super JafsDirEntry> filter, Collection<JafsDirEntry> entries) throws JafsException, IOException {
+		return readEntries(after, max, filter, entries, inode.getVpos());
+	}
+
+	private boolean readEntries(JafsDirEntry after, int max, DirectoryStream.Filter<? super JafsDirEntry> filter, Collection<JafsDirEntry> entries, long parentBpos) throws JafsException, IOException {
+		if (isHashed()) {
+			// the buckets are read in the order of their first slot
+			int start = entries.size();
+			int slot = 0;
+			if (after != null) {
+				openBucket(after.name);
+				slot = bucketIdx & ((1 << bucketDepth) - 1);
+			}
+			inode.seekSet(0);
+			int slots = 1 << inode.readByte();
+			for (; slot < slots; slot++) {
+				inode.seekSet(1 + (long)slot * slotSize);
+				long bpos = readBpos();
+				if (slot < (1 << inode.readByte())) {
+					int n = entries.size() - start;
+					if (openBucket(bpos).readEntries(after, max - n, filter, entries, parentBpos)) {
+						return true;
+					}
+					after = null;
+				}
+			}
+			return false;
+		}
+		int n = 0;
+		inode.seekSet(after == null ? 0 : posAfter(after));
+		int entrySize = inode.readShort();
+		while (entrySize != 0) {
+			if (n == max) {
+				return true;
+			}
+			long startPos = inode.getFpos();
+			int nameLen = inode.readByte();
+			if (nameLen != 0) {
+				if ((nameLen & 0x80) != 0) {
+					nameLen &= 0x7f;
+					nameLen |= inode.readByte() << 7;
+				}
+				inode.seekCur(checksumLength); // skip checksum
+				JafsDirEntry entry = new JafsDirEntry();
+				entry.startPos = startPos;
+				entry.parentBpos = parentBpos;
+				entry.type = inode.readByte();
+				entry.bpos = readBpos();
+				if (sizeLength != 0) {
+					entry.size = inode.readLong();
+				}
+				entry.name = new byte[nameLen];
+				inode.readBytes(entry.name, 0, nameLen);
+				if (filter == null || filter.accept(entry)) {
+					entries.add(entry);
+					n++;
+				}
+			}
+			inode.seekSet(startPos + entrySize);
+			entrySize = inode.readShort();
+		}
+		return false;
+	}
+
+	/*
+	 * Returns the position of the entry size after entry. When the entry has been
+	 * deleted it might be merged with a free entry before it, so then the list is
+	 * walked to the first entry beyond it.
+	 */
+	private long posAfter(JafsDirEntry entry) throws JafsException, IOException {
+		if (entry.startPos < inode.getSize() && nameMatches(entry.startPos, entry.name)) {
+			inode.seekSet(entry.startPos - ENTRY_SIZE_LENGTH);
+			return entry.startPos + inode.readShort();
+		}
+		inode.seekSet(0);
+		int entrySize = inode.readShort();
+		while (entrySize != 0 && inode.getFpos() <= entry.startPos) {
+			inode.seekSet(inode.getFpos() + entrySize);
+			entrySize = inode.readShort();
+		}
+		return inode.getFpos() - ENTRY_SIZE_LENGTH;
+	}
+
+	/*
+	 * Replaces the entries of a linear directory, they are written without
+	 * gaps and the blocks beyond the last entry are freed
+	 */
+	private void writeEntries(List<JafsDirEntry> entries) throws JafsException, IOException {
+		dropIndex();
+		inode.seekSet(0);
+		appendEntries(entries);
+		if (inode.getFpos() < inode.getSize()) {
+			inode.truncate(inode.getFpos());
+		}
+	}
+
+	/*
+	 * Writes entries at the current position, which is the end of the list,
+	 * followed by a new end of the list
+	 */
+	private void appendEntries(List<JafsDirEntry> entries) throws JafsException, IOException {
+		byte[] buf = new byte[WRITE_BUF_LEN];
+		int len = 0;
+		for (JafsDirEntry entry : entries) {
+			int size = entrySize(entry.name);
+			if (len + ENTRY_SIZE_LENGTH + size + ENTRY_SIZE_LENGTH > buf.length) {
+				inode.writeBytes(buf, 0, len);
+				len = 0;
+				if (ENTRY_SIZE_LENGTH + size + ENTRY_SIZE_LENGTH > buf.length) {
+					buf = new byte[ENTRY_SIZE_LENGTH + size + ENTRY_SIZE_LENGTH];
+				}
+			}
+			Util.shortToArray(buf, len, size);
+			len += ENTRY_SIZE_LENGTH;
+			entry.startPos = inode.getFpos() + len;
+			len = putEntry(buf, len, entry);
+		}
+		// write zero length to mark end of the directory entries list
+		buf[len++] = 0;
+		buf[len++] = 0;
+		inode.writeBytes(buf, 0, len);
+	}
+
+	/*
+	 * Stores entry in buf without the entry size, returns the offset after it
+	 */
+	private int putEntry(byte[] buf, int off, JafsDirEntry entry) {
+		int nameLen = entry.name.length;
+		if (nameLen < 0x80) {
+			buf[off++] = (byte)nameLen;
+		} else {
+			buf[off++] = (byte)(0x80 | (nameLen & 0x7f));
+			buf[off++] = (byte)((nameLen >>> 7) & 0xff);
+		}
+		if (checksumLength == 4) {
+			Util.intToArray(buf, off, OneAtATimeHash.calcHash(entry.name));
+			off += 4;
+		} else {
+			buf[off++] = (byte)OneAtATimeHash.calcHash(entry.name);
+		}
+		buf[off++] = (byte)entry.type;
+		Util.ptrToArray(buf, off, entry.bpos, ptrSize);
+		off += ptrSize;
+		if (sizeLength != 0) {
+			Util.longToArray(buf, off, entry.size);
+			off += sizeLength;
+		}
+		System.arraycopy(entry.name, 0, buf, off, nameLen);
+		return off + nameLen;
+	}
+
 	long getEntryPos(byte[] name) throws JafsException, IOException {
+		JafsDirIndex index = getIndex();
+		if (index != null) {
+			return findIndexed(index, name);
+		}
 		int nameLen = name.length;
-		int nameChecksum = OneAtATimeHash.calcHash(name) & 0xff;
+		int nameChecksum = checksum(name);
 		inode.seekSet(0);
 		int entrySize = inode.readShort();
 		while (entrySize != 0) {
@@ -69,8 +593,8 @@ public class JafsDir {
 			        curLen &= 0x7f;
 			        curLen |= inode.readByte() << 7;
                 }
-                if (curLen == nameLen && nameChecksum == inode.readByte()) {
-					inode.seekCur(1 + 4); // skip type + bpos
+                if (curLen == nameLen && nameChecksum == readChecksum()) {
+					inode.seekCur(1 + ptrSize + sizeLength); // skip type + bpos + size
 					inode.readBytes(bb, 0, curLen);
 					int n = 0;
 					while ((n < nameLen) && (bb[n] == name[n])) {
@@ -93,33 +617,159 @@ public class JafsDir {
 		}
 		if (inode == null) {
 			return null;
+		}
+		JafsLookupCache lookupCache = vfs.getLookupCache();
+		long vpos = inode.getVpos();
+		if (lookupCache.isMiss(vpos, name)) {
+			return null;
+		}
+		JafsDirEntry entry;
+		if (isHashed()) {
+			if (lookupCache.isFiltersEnabled() && !getFilter().mightContain(OneAtATimeHash.calcHash(name))) {
+				entry = null;
+			} else {
+				entry = openBucket(name).findEntry(name);
+				if (entry != null) {
+					entry.parentBpos = vpos;
+				}
+			}
 		} else {
-			long startPos = this.getEntryPos(name);
-			if (startPos < 0) {
-				return null;
-			}
-			JafsDirEntry entry = new JafsDirEntry();
-			entry.startPos = startPos;
-			entry.name = name;
-			entry.parentBpos = inode.getVpos();
-
-			// skip length + checksum
-            if (name.length < 0x80) {
-                inode.seekSet(startPos + 1 + 1);
-            } else {
-                inode.seekSet(startPos + 2 + 1);
-            }
-			// then read data
-			entry.type = inode.readByte();
-			entry.bpos = inode.readInt();
-			return entry;
+			entry = findEntry(name);
+		}
+		if (entry == null) {
+			lookupCache.addMiss(vpos, name);
+		}
+		return entry;
+	}
+
+	/*
+	 * Returns the Bloom filter of a hashed directory, it is built from all entries
+	 */
+	private JafsBloomFilter getFilter() throws JafsException, IOException {
+		JafsLookupCache lookupCache = vfs.getLookupCache();
+		JafsBloomFilter filter = lookupCache.getFilter(inode.getVpos());
+		if (filter == null) {
+			List<JafsDirEntry> entries = readEntries();
+			// room to grow before it has to be rebuilt
+			filter = new JafsBloomFilter(2 * entries.size());
+			for (JafsDirEntry entry : entries) {
+				filter.add(OneAtATimeHash.calcHash(entry.name));
+			}
+			lookupCache.addFilter(inode.getVpos(), filter);
+		}
+		return filter;
+	}
+
+	/*
+	 * Looks up name in a linear directory
+	 */
+	private JafsDirEntry findEntry(byte[] name) throws JafsException, IOException {
+		long startPos = this.getEntryPos(name);
+		if (startPos < 0) {
+			return null;
 		}
+		JafsDirEntry entry = new JafsDirEntry();
+		entry.startPos = startPos;
+		entry.name = name;
+		entry.parentBpos = inode.getVpos();
+
+		// skip length + checksum
+        if (name.length < 0x80) {
+            inode.seekSet(startPos + 1 + checksumLength);
+        } else {
+            inode.seekSet(startPos + 2 + checksumLength);
+        }
+		// then read data
+		entry.type = inode.readByte();
+		entry.bpos = readBpos();
+		if (sizeLength != 0) {
+			entry.size = inode.readLong();
+		}
+		return entry;
 	}
 
-	public void deleteEntry(String canonicalPath, JafsDirEntry entry) throws JafsException, IOException {
+	public void deleteEntry(JafsDirEntry entry) throws JafsException, IOException {
+        vfs.getDirCache().remove(inode.getVpos(), entry.name);
+		JafsDir dir = dirOf(entry);
+		dir.deleteEntryAt(entry);
+		if (dir == this) {
+			// only large directories have an index, it counts the deleted entries
+			JafsDirIndex index = vfs.getDirIndexCache().get(inode.getVpos());
+			if (index != null && index.freeBytes() > index.endPos / 2) {
+				compact();
+			}
+		} else if (bucketInode.getSize() > bucketMaxSize / 2 && !vfs.getDirPool().isPinned(inode.getVpos())) {
+			// a bucket has no index, its entries are counted instead
+			List<JafsDirEntry> entries = dir.readEntries();
+			if (entriesSize(entries) <= bucketInode.getSize() / 2) {
+				dir.writeEntries(entries);
+				bucketInode.flush();
+				forgetEntries(entries);
+			}
+		}
+	}
+
+	/*
+	 * The size of entries in a directory, including the end of the list
+	 */
+	private int entriesSize(List<JafsDirEntry> entries) {
+		int size = ENTRY_SIZE_LENGTH;
+		for (JafsDirEntry entry : entries) {
+			size += ENTRY_SIZE_LENGTH + entrySize(entry.name);
+		}
+		return size;
+	}
+
+	/*
+	 * Drops entries that moved from the cache, they are cached by the bpos of
+	 * this directory, also when they are in one of its buckets
+	 */
+	private void forgetEntries(List<JafsDirEntry> entries) {
+		JafsDirEntryCache dirCache = vfs.getDirCache();
+		for (JafsDirEntry entry : entries) {
+			dirCache.remove(inode.getVpos(), entry.name);
+		}
+	}
+
+	/*
+	 * Rewrites the entries without the space of deleted entries and frees the
+	 * blocks that are no longer used. Returns false when the directory is pinned.
+	 * The cached entries of the directory are dropped because their position changes.
+	 */
+	public boolean compact() throws JafsException, IOException {
+		if (vfs.getDirPool().isPinned(inode.getVpos())) {
+			return false;
+		}
+		List<JafsDirEntry> entries = readEntries();
+		if (!isHashed()) {
+			writeEntries(entries);
+		} else if (entriesSize(entries) <= hashedMinSize / 2) {
+			freeDir();
+			inode.type &= ~JafsInode.INODE_HASHED;
+			inode.flushInode();
+			writeEntries(entries);
+		} else {
+			for (long bpos : readBuckets()) {
+				JafsDir dir = openBucket(bpos);
+				dir.writeEntries(dir.readEntries());
+				bucketInode.flush();
+			}
+		}
+		inode.flush();
+		forgetEntries(entries);
+		return true;
+	}
+
+	private void deleteEntryAt(JafsDirEntry entry) throws JafsException, IOException {
+		long startPos = entry.startPos;
+		JafsDirIndex index = vfs.getDirIndexCache().get(inode.getVpos());
+		if (index != null) {
+			index.remove(OneAtATimeHash.calcHash(entry.name), startPos);
+		}
+
 		// Test the next entry to see if we can merge with it
 		// in an attempt to avoid fragmentation of the directory list
-		inode.seekSet(entry.startPos - 2);
+		inode.seekSet(startPos - 2);
 		int entrySize = inode.readShort();
 		inode.seekCur(entrySize);
 		int entrySizeNextEntry = inode.readShort();
@@ -127,28 +777,59 @@ public class JafsDir {
 			int len = inode.readByte();
 			if (len == 0) {
 				// we can merge with this entry
+				if (index != null) {
+					index.removeFree(entrySizeNextEntry, startPos + entrySize + ENTRY_SIZE_LENGTH);
+				}
 				entrySize += ENTRY_SIZE_LENGTH + entrySizeNextEntry;
-				inode.seekSet(entry.startPos - 2);
+				inode.seekSet(startPos - 2);
 				inode.writeShort(entrySize);
 			}
 		}
+		if (index != null) {
+			index.addFree(entrySize, startPos);
+		}
 
 		// Update the deleted entry
-        vfs.getDirCache().remove(canonicalPath);
-        inode.seekSet(entry.startPos);
+        inode.seekSet(startPos);
 		inode.writeByte(0); // name length
 	}
 
 	public void entryClearInodePtr(JafsDirEntry entry) throws JafsException, IOException {
+		dirOf(entry).writeEntryBpos(entry, 0);
+		entry.bpos = 0;
+	}
+
+	private void writeEntryBpos(JafsDirEntry entry, long bpos) throws JafsException, IOException {
 		if (entry.name.length < 0x80) {
-			inode.seekSet(entry.startPos + 1 + 1 + 1);
+			inode.seekSet(entry.startPos + 1 + checksumLength + 1); // skip len + checksum + type
 		} else {
-			inode.seekSet(entry.startPos + 2 + 1 + 1);
+			inode.seekSet(entry.startPos + 2 + checksumLength + 1); // skip len + checksum + type
+		}
+		writeBpos(bpos);
+	}
+
+	/*
+	 * Stores the size of the file in entry, it is written to the directory
+	 * with FEATURE_DIR_SIZES
+	 */
+	public void setEntrySize(JafsDirEntry entry, long size) throws JafsException, IOException {
+		if (sizeLength != 0) {
+			JafsDir dir = dirOf(entry);
+			dir.inode.seekSet(entry.startPos + (entry.name.length < 0x80 ? 1 : 2) + checksumLength + 1 + ptrSize); // skip len + checksum + type + bpos
+			dir.inode.writeLong(size);
 		}
-		inode.writeInt(0);
+		entry.size = size;
 	}
 
 	public boolean hasActiveEntries() throws JafsException, IOException {
+		if (isHashed()) {
+			for (long bpos : readBuckets()) {
+				if (openBucket(bpos).hasActiveEntries()) {
+					return true;
+				}
+			}
+			return false;
+		}
 		inode.seekSet(0);
 		int entrySize = inode.readShort();
 		while (entrySize != 0) {
@@ -174,8 +855,8 @@ public class JafsDir {
 
 		final byte[] nameBuf = entry.name;
 		final int nameLen = nameBuf.length;
-		final int nameChecksum = OneAtATimeHash.calcHash(entry.name) & 0xff;
-		final int overhead = nameLen < 0x80 ? ENTRY_OVERHEAD : ENTRY_OVERHEAD + 1;
+		final int nameChecksum = checksum(entry.name);
+		final int overhead = nameLen < 0x80 ? entryOverhead : entryOverhead + 1;
 
 		/*
 		 * Find the smallest empty entry to store entry and also check if entry name already exists in a single loop
@@ -183,8 +864,20 @@ public class JafsDir {
 		long reuseEntryStartPos = 0;
 		int reuseEntryNameLen = Integer.MAX_VALUE;
 
-		inode.seekSet(0);
-		int entrySize = inode.readShort();
+		JafsDirIndex index = getIndex();
+		int entrySize = 0;
+		if (index != null) {
+			if (findIndexed(index, nameBuf) >= 0) {
+				throw new JafsException("Name [" + new String(entry.name, StandardCharsets.UTF_8) + "] already exists");
+			}
+			reuseEntryStartPos = index.takeFree(overhead + nameLen);
+			if (reuseEntryStartPos == 0) {
+				inode.seekSet(index.endPos + ENTRY_SIZE_LENGTH);
+			}
+		} else {
+			inode.seekSet(0);
+			entrySize = inode.readShort();
+		}
 		while (entrySize != 0) {
 			long startPos = inode.getFpos();
 			int curLength = inode.readByte();
@@ -199,8 +892,8 @@ public class JafsDir {
 			        curLength &= 0x7f;
 			        curLength |= inode.readByte() << 7;
                 }
-                if (curLength == nameLen && nameChecksum == inode.readByte()) {
-					inode.seekCur(1 + 4); // skip type + bpos
+                if (curLength == nameLen && nameChecksum == readChecksum()) {
+					inode.seekCur(1 + ptrSize + sizeLength); // skip type + bpos + size
 					inode.readBytes(bb, 0, curLength);
 					int n = 0;
 					while ((n < curLength) && (bb[n] == nameBuf[n])) {
@@ -218,57 +911,56 @@ public class JafsDir {
 		/*
 		 * Insert new entry
 		 */
-		int tLen = 0;
 		if (reuseEntryStartPos != 0) {
 			// Re-use an existing entry
-			inode.seekSet(reuseEntryStartPos - ENTRY_SIZE_LENGTH);
-			entrySize = inode.readShort();
-			int sizeForTwo = overhead + nameLen + ENTRY_SIZE_LENGTH + ENTRY_OVERHEAD + 1; /* name is 1 byte minimal */
-			if (entrySize >= sizeForTwo) {
-			    // split this entry if it is too big for us
-
-                // adjust the size of this entry
-				inode.seekCur(-2);
-				inode.writeShort(overhead + nameLen);
-
-				// create a new entry
-				inode.seekCur(overhead + nameLen);
-				inode.writeShort(entrySize - overhead - nameLen - ENTRY_SIZE_LENGTH);
-				inode.writeByte( 0);
-				inode.seekSet(reuseEntryStartPos);
-			}
+			takeFreeEntry(reuseEntryStartPos, overhead + nameLen, index);
 		} else {
 			// Append to the end
 			inode.seekCur(-2);
 			inode.writeShort(overhead + nameLen);
+			if (index != null) {
+				index.endPos = inode.getFpos() + overhead + nameLen;
+			}
+		}
+		if (index != null) {
+			index.add(OneAtATimeHash.calcHash(nameBuf), inode.getFpos());
 		}
 		entry.startPos = inode.getFpos();
-		if (nameLen < 0x80) {
-            bb[tLen++] = (byte)nameLen;
-        } else {
-            bb[tLen++] = (byte)(0x80 | (nameLen & 0x7f));
-            bb[tLen++] = (byte)((nameLen >>> 7) & 0xff);
-        }
-        bb[tLen++] = (byte)nameChecksum;
-		bb[tLen++] = (byte)entry.type;
-        Util.intToArray(bb, tLen, (int)entry.bpos);
-		tLen += 4;
-        if (nameLen < 256) {
-            System.arraycopy(nameBuf, 0, bb, tLen, nameLen);
-            tLen += nameLen;
-        } else {
-            inode.writeBytes(bb, tLen);
-            tLen = 0;
-            inode.writeBytes(nameBuf, nameBuf.length);
-        }
+		byte[] buf = overhead + nameLen + ENTRY_SIZE_LENGTH <= BB_LEN ? bb : new byte[overhead + nameLen + ENTRY_SIZE_LENGTH];
+		int tLen = putEntry(buf, 0, entry);
 		if (reuseEntryStartPos == 0) {
 			// write zero length to mark end of the directory entries list
-			bb[tLen++] = 0;
-			bb[tLen++] = 0;
+			buf[tLen++] = 0;
+			buf[tLen++] = 0;
 		}
-		if (tLen != 0) {
-			inode.writeBytes(bb, 0, tLen);
+		inode.writeBytes(buf, 0, tLen);
+	}
+
+	/*
+	 * Prepares the free entry at startPos for an entry of used bytes, the rest
+	 * of it becomes a new free entry when it is large enough. The position is
+	 * left at startPos.
+	 */
+	private void takeFreeEntry(long startPos, int used, JafsDirIndex index) throws JafsException, IOException {
+		inode.seekSet(startPos - ENTRY_SIZE_LENGTH);
+		int entrySize = inode.readShort();
+		int sizeForTwo = used + ENTRY_SIZE_LENGTH + entryOverhead + 1; /* name is 1 byte minimal */
+		if (entrySize >= sizeForTwo) {
+		    // split this entry if it is too big for us
+
+            // adjust the size of this entry
+			inode.seekCur(-2);
+			inode.writeShort(used);
+
+			// create a new entry
+			inode.seekCur(used);
+			inode.writeShort(entrySize - used - ENTRY_SIZE_LENGTH);
+			if (index != null) {
+				index.addFree(entrySize - used - ENTRY_SIZE_LENGTH, inode.getFpos());
+			}
+			inode.writeByte( 0);
 		}
+		inode.seekSet(startPos);
 	}
 
 	private void initDir() throws JafsException, IOException {
@@ -276,7 +968,102 @@ public class JafsDir {
 		inode.writeShort(0);
 	}
 	
-	public void createNewEntry(String canonicalPath, byte[] name, int type, long bpos) throws JafsException, IOException {
+	public void createNewEntry(byte[] name, int type, long bpos) throws JafsException, IOException {
+		createNewEntry(name, type, bpos, 0);
+	}
+
+	public void createNewEntry(byte[] name, int type, long bpos, long size) throws JafsException, IOException {
+		checkName(name, type);
+		JafsDirEntry entry = newEntry(name, type, bpos, size);
+		if (isHashed()) {
+			insertHashed(entry);
+		} else {
+			createEntry(entry);
+			if (hashedDirs && inode.getSize() > hashedMinSize && !vfs.getDirPool().isPinned(inode.getVpos())) {
+				convertToHashed();
+			}
+		}
+		vfs.getLookupCache().created(inode.getVpos(), name);
+		vfs.getDirCache().add(entry);
+	}
+
+	/*
+	 * Creates an entry of type for every name that does not exist yet and returns
+	 * the number of entries created. A linear directory is scanned once, the new
+	 * entries that do not fit in a free entry are appended in one write.
+	 */
+	public int createNewEntries(List<byte[]> names, int type) throws JafsException, IOException {
+		for (byte[] name : names) {
+			checkName(name, type);
+		}
+		long vpos = inode.getVpos();
+		Set<JafsDirName> unique = new HashSet<>();
+		List<JafsDirEntry> created = new ArrayList<>();
+		if (isHashed()) {
+			for (byte[] name : names) {
+				if (unique.add(new JafsDirName(vpos, name)) && openBucket(name).getEntryPos(name) < 0) {
+					JafsDirEntry entry = newEntry(name, type, 0, 0);
+					insertHashed(entry);
+					created.add(entry);
+				}
+			}
+		} else {
+			JafsDirIndex index = getIndex();
+			boolean cached = index != null;
+			if (!cached) {
+				index = buildIndex();
+			}
+			List<JafsDirEntry> appended = new ArrayList<>();
+			for (byte[] name : names) {
+				if (unique.add(new JafsDirName(vpos, name)) && findIndexed(index, name) < 0) {
+					JafsDirEntry entry = newEntry(name, type, 0, 0);
+					int size = entrySize(name);
+					long startPos = index.takeFree(size);
+					if (startPos == 0) {
+						appended.add(entry);
+					} else {
+						takeFreeEntry(startPos, size, index);
+						byte[] buf = size <= BB_LEN ? bb : new byte[size];
+						inode.writeBytes(buf, 0, putEntry(buf, 0, entry));
+						entry.startPos = startPos;
+						index.add(OneAtATimeHash.calcHash(name), startPos);
+					}
+					created.add(entry);
+				}
+			}
+			if (!appended.isEmpty()) {
+				inode.seekSet(index.endPos);
+				appendEntries(appended);
+				index.endPos = inode.getFpos() - ENTRY_SIZE_LENGTH;
+				for (JafsDirEntry entry : appended) {
+					index.add(OneAtATimeHash.calcHash(entry.name), entry.startPos);
+				}
+			}
+			if (!cached && inode.getSize() > indexMinSize) {
+				vfs.getDirIndexCache().add(vpos, index);
+			}
+			if (hashedDirs && inode.getSize() > hashedMinSize && !vfs.getDirPool().isPinned(vpos)) {
+				convertToHashed();
+			}
+		}
+		for (JafsDirEntry entry : created) {
+			vfs.getLookupCache().created(vpos, entry.name);
+			vfs.getDirCache().add(entry);
+		}
+		return created.size();
+	}
+
+	private JafsDirEntry newEntry(byte[] name, int type, long bpos, long size) {
+		JafsDirEntry entry = new JafsDirEntry();
+		entry.parentBpos = inode.getVpos();
+		entry.bpos = bpos;
+		entry.type = type;
+		entry.size = size;
+		entry.name = name;
+		return entry;
+	}
+
+	private static void checkName(byte[] name, int type) throws JafsException {
 	    if (name == null || name.length == 0) {
 	        throw new JafsException("Name not suppied");
         }
@@ -293,14 +1080,6 @@ public class JafsDir {
 		if (Util.contains(name, SLASH)) {
 			throw new JafsException(((type & JafsInode.INODE_FILE)!=0 ? "File" : "Dir") + " name [" + new String(name, StandardCharsets.UTF_8) + "] should not contain a slash (/)");
 		}
-
-		JafsDirEntry entry = new JafsDirEntry();
-	    entry.parentBpos = inode.getVpos();
-		entry.bpos = bpos;
-		entry.type = type;
-		entry.name = name;
-		createEntry(entry);
-		vfs.getDirCache().add(canonicalPath, entry);
 	}
 
     public void mkinode(JafsDirEntry entry, int type) throws JafsException, IOException {
@@ -322,18 +1101,18 @@ public class JafsDir {
                 vfs.getDirPool().release(dir);
             }
 
-            if (entry.name.length < 0x80) {
-                inode.seekSet(entry.startPos + 1 + 1 + 1); // skip len + checksum + type
-            } else {
-                inode.seekSet(entry.startPos + 2 + 1 + 1); // skip len + checksum + type
-            }
-
-			inode.writeInt((int)entry.bpos); // this is where the bpos is added to the directory entry
+            dirOf(entry).writeEntryBpos(entry, entry.bpos); // this is where the bpos is added to the directory entry
         }
     }
 
 	public String[] list() throws JafsException, IOException {
 		LinkedList<String> l = new LinkedList<>();
+		if (isHashed()) {
+			for (long bpos : readBuckets()) {
+				l.addAll(Arrays.asList(openBucket(bpos).list()));
+			}
+			return l.toArray(new String[0]);
+		}
 		inode.seekSet(0);
 		int entrySize = inode.readShort();
 		while (entrySize != 0) {
@@ -344,7 +1123,7 @@ public class JafsDir {
 					nameLen &= 0x7f;
 					nameLen |= inode.readByte() << 7;
 				}
-                inode.seekCur(1 + 1 + 4); // skip checksum + type + bpos
+                inode.seekCur(checksumLength + 1 + ptrSize + sizeLength); // skip checksum + type + bpos + size
 				byte[] name = new byte[nameLen];
 				inode.readBytes(name, 0, nameLen);
 				l.add(new String(name, StandardCharsets.UTF_8));
@@ -1,10 +1,13 @@
 package nl.v4you.jafs.internal;
 
+import java.nio.charset.StandardCharsets;
+
 public class JafsDirEntry {
 	long startPos;
 	long parentBpos;
 	long bpos;
 	int type;
+	long size;
 	byte[] name;
 	public boolean isFile() {
 		return (type & JafsInode.INODE_FILE) != 0;
@@ -15,9 +18,21 @@ public class JafsDirEntry {
 	public long getBpos() {
 		return bpos;
 	}
+	/*
+	 * The size of the file, only stored in archives with FEATURE_DIR_SIZES
+	 */
+	public long getSize() {
+		return size;
+	}
+	public void setSize(long size) {
+		this.size = size;
+	}
 	public long getParentBpos() {
 		return parentBpos;
 	}
+	public String getName() {
+		return new String(name, StandardCharsets.UTF_8);
+	}
 	public void setName(byte[] name) {
 		this.name = name;
 	}
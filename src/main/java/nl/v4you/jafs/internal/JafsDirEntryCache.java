@@ -1,33 +1,50 @@
 package nl.v4you.jafs.internal;
 
-import nl.v4you.hash.OneAtATimeHash;
 import nl.v4you.jafs.JafsException;
 
 import java.nio.charset.StandardCharsets;
 
+/*
+ * Directory entries by the bpos of their parent directory and their name.
+ * A path is resolved one name at a time, starting at the root entry. A
+ * directory keeps its bpos when it is renamed, so the entries below it
+ * stay valid.
+ */
 public class JafsDirEntryCache {
 
-    private LRUCache<OneAtATimeHash, JafsDirEntry> gcache;
-
-    OneAtATimeHash hs = new OneAtATimeHash(null);
+    private final LRUCache<JafsDirName, JafsDirEntry> gcache;
+    private final JafsDirName probe = new JafsDirName();
+    private byte[] nameBuf = new byte[256];
 
     public JafsDirEntryCache(int size) throws JafsException {
         gcache = new LRUCache<>(size);
     }
 
-    public void add(String dirName, JafsDirEntry entry) throws JafsException {
-        if (gcache.get(hs.set(dirName.getBytes(StandardCharsets.UTF_8))) != null) {
-            throw new JafsException("directory " + dirName + " already in cache");
+    public void add(JafsDirEntry entry) throws JafsException {
+        JafsDirName key = new JafsDirName(entry.parentBpos, entry.name);
+        if (gcache.get(key) != null) {
+            throw new JafsException("entry " + new String(entry.name, StandardCharsets.UTF_8) + " already in cache");
         }
-        gcache.add(hs.clone(), entry);
+        gcache.add(key, entry);
+    }
+
+    public JafsDirEntry get(long parentBpos, byte[] name) {
+        return gcache.get(new JafsDirName(parentBpos, name));
     }
 
-    public JafsDirEntry get(String dirName) {
-        return gcache.get(hs.set(dirName.getBytes(StandardCharsets.UTF_8)));
+    /*
+     * Looks up the name path[start, end) without allocating
+     */
+    public JafsDirEntry get(long parentBpos, String path, int start, int end) {
+        if (nameBuf.length < 3 * (end - start)) {
+            nameBuf = new byte[3 * (end - start)];
+        }
+        probe.set(parentBpos, nameBuf, Util.utf8ToArray(path, start, end, nameBuf));
+        return gcache.get(probe);
     }
 
-    void remove(String dirName) {
-        gcache.remove(hs.set(dirName.getBytes(StandardCharsets.UTF_8)));
+    void remove(long parentBpos, byte[] name) {
+        gcache.remove(new JafsDirName(parentBpos, name));
     }
 
     public String stats() {
@@ -0,0 +1,123 @@
+package nl.v4you.jafs.internal;
+
+import java.util.TreeSet;
+
+/*
+ * In-memory index of a linear directory (see JafsDir), built when the
+ * directory grows beyond indexMinSize bytes. It holds the position of every
+ * entry by the hash of its name, the free entries by size and the end of
+ * the entries list. The positions are kept in an open addressing table,
+ * a position is never 0 because every entry starts with its size.
+ */
+public class JafsDirIndex {
+	private static final int POS_BITS = 40;
+	private static final long POS_MASK = (1L << POS_BITS) - 1;
+
+	private int[] hashes = new int[16];
+	private long[] positions = new long[16];
+	private int mask = 15;
+	private int count = 0;
+
+	// Free entries as entry size << POS_BITS | start position, ordered by size
+	private final TreeSet<Long> free = new TreeSet<>();
+	private long freeBytes = 0;
+
+	// Position of the zero entry size that ends the list
+	long endPos = 0;
+
+	int home(int hash) {
+		return hash & mask;
+	}
+
+	int next(int slot) {
+		return (slot + 1) & mask;
+	}
+
+	int hash(int slot) {
+		return hashes[slot];
+	}
+
+	/*
+	 * Returns the position in slot, 0 ends the probe sequence
+	 */
+	long position(int slot) {
+		return positions[slot];
+	}
+
+	void add(int hash, long startPos) {
+		if ((count + 1) * 4 > positions.length * 3) {
+			int[] oldHashes = hashes;
+			long[] oldPositions = positions;
+			hashes = new int[oldHashes.length * 2];
+			positions = new long[oldPositions.length * 2];
+			mask = positions.length - 1;
+			count = 0;
+			for (int n = 0; n < oldPositions.length; n++) {
+				if (oldPositions[n] != 0) {
+					add(oldHashes[n], oldPositions[n]);
+				}
+			}
+		}
+		int slot = home(hash);
+		while (positions[slot] != 0) {
+			slot = next(slot);
+		}
+		hashes[slot] = hash;
+		positions[slot] = startPos;
+		count++;
+	}
+
+	void remove(int hash, long startPos) {
+		int slot = home(hash);
+		while (positions[slot] != startPos) {
+			if (positions[slot] == 0) {
+				return;
+			}
+			slot = next(slot);
+		}
+		// move back the entries of the probe sequence that follow the removed one
+		for (int n = next(slot); positions[n] != 0; n = next(n)) {
+			int h = home(hashes[n]);
+			boolean inPlace = slot <= n ? (slot < h && h <= n) : (slot < h || h <= n);
+			if (!inPlace) {
+				hashes[slot] = hashes[n];
+				positions[slot] = positions[n];
+				slot = n;
+			}
+		}
+		positions[slot] = 0;
+		count--;
+	}
+
+	void addFree(int entrySize, long startPos) {
+		if (free.add(((long)entrySize << POS_BITS) | startPos)) {
+			freeBytes += entrySize;
+		}
+	}
+
+	void removeFree(int entrySize, long startPos) {
+		if (free.remove(((long)entrySize << POS_BITS) | startPos)) {
+			freeBytes -= entrySize;
+		}
+	}
+
+	/*
+	 * The total size of the free entries
+	 */
+	long freeBytes() {
+		return freeBytes;
+	}
+
+	/*
+	 * Takes the smallest free entry of at least entrySize bytes, returns its position or 0
+	 */
+	long takeFree(int entrySize) {
+		Long key = free.ceiling((long)entrySize << POS_BITS);
+		if (key == null) {
+			return 0;
+		}
+		free.remove(key);
+		freeBytes -= key >>> POS_BITS;
+		return key & POS_MASK;
+	}
+}
@@ -0,0 +1,29 @@
+package nl.v4you.jafs.internal;
+
+/*
+ * The indexes of the most recently used large linear directories, by the bpos of their inode
+ */
+public class JafsDirIndexCache {
+
+    private final LRUCache<Long, JafsDirIndex> gcache;
+
+    public JafsDirIndexCache(int size) {
+        gcache = new LRUCache<>(size);
+    }
+
+    JafsDirIndex get(long bpos) {
+        return gcache.get(bpos);
+    }
+
+    void add(long bpos, JafsDirIndex index) {
+        gcache.add(bpos, index);
+    }
+
+    void remove(long bpos) {
+        gcache.remove(bpos);
+    }
+
+    public String stats() {
+        return gcache.stats();
+    }
+}
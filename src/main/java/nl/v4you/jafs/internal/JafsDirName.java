@@ -0,0 +1,59 @@
+package nl.v4you.jafs.internal;
+
+/*
+ * A name in the directory at dirBpos, the key of JafsDirEntryCache and JafsLookupCache.
+ * Only the first len bytes of name are part of the key, so a probe can be
+ * reused for lookups without copying the name.
+ */
+class JafsDirName {
+    long dirBpos;
+    byte[] name;
+    int len;
+    private int hash;
+
+    JafsDirName() {
+    }
+
+    JafsDirName(long dirBpos, byte[] name) {
+        set(dirBpos, name, name.length);
+    }
+
+    void set(long dirBpos, byte[] name, int len) {
+        this.dirBpos = dirBpos;
+        this.name = name;
+        this.len = len;
+        // one-at-a-time hash of name[0, len)
+        int h = 0;
+        for (int n = 0; n < len; n++) {
+            h += name[n] & 0xff;
+            h += h << 10;
+            h ^= h >>> 6;
+        }
+        h += h << 3;
+        h ^= h >>> 11;
+        h += h << 15;
+        hash = 31 * h + (int)(dirBpos ^ (dirBpos >>> 32));
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof JafsDirName)) {
+            return false;
+        }
+        JafsDirName other = (JafsDirName)o;
+        if (dirBpos != other.dirBpos || len != other.len) {
+            return false;
+        }
+        for (int n = 0; n < len; n++) {
+            if (name[n] != other.name[n]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -2,11 +2,15 @@ package nl.v4you.jafs.internal;
 
 import nl.v4you.jafs.Jafs;
 
+import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.Map;
 
 public class JafsDirPool {
     private final LinkedList<JafsDir> free = new LinkedList<>();
     private final LinkedList<JafsDir> busy = new LinkedList<>();
+    // Directories with an open JafsDirectoryStream, their entries must not move
+    private final Map<Long, Integer> pinned = new HashMap<>();
 
     private final Jafs vfs;
 
@@ -31,6 +35,26 @@ public class JafsDirPool {
         free.add(dir);
     }
 
+    public void pin(long bpos) {
+        Integer n = pinned.get(bpos);
+        pinned.put(bpos, n == null ? 1 : n + 1);
+    }
+
+    public void unpin(long bpos) {
+        Integer n = pinned.get(bpos);
+        if (n != null) {
+            if (n == 1) {
+                pinned.remove(bpos);
+            } else {
+                pinned.put(bpos, n - 1);
+            }
+        }
+    }
+
+    boolean isPinned(long bpos) {
+        return pinned.containsKey(bpos);
+    }
+
     public String stats() {
         return "   free    : " + free.size()+"\n   busy    : " + busy.size()+"\n";
     }
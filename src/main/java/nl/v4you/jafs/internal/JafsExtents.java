@@ -0,0 +1,397 @@
+package nl.v4you.jafs.internal;
+
+import nl.v4you.jafs.Jafs;
+import nl.v4you.jafs.JafsException;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/*
+ * Extent based block mapping. An extent maps a run of logical blocks of a
+ * file onto a run of consecutive blocks in the archive. The extents of a file
+ * are kept in a B+tree, the root node lives in the inode right after the inode
+ * header, the other nodes take a block of their own.
+ *
+ * A node is structured as follows:
+ * 1 byte  : depth, 0 for a leaf
+ * 2 bytes : number of entries
+ * Followed by leaf entries:
+ * ptr     : first logical block
+ * ptr     : first block in the archive
+ * 4 bytes : number of blocks
+ * Or by index entries:
+ * ptr     : first logical block of the child
+ * ptr     : block of the child node
+ * A ptr takes 4 bytes, or 8 bytes in archives with 64-bit pointers.
+ */
+public class JafsExtents {
+	static final int NODE_HEADER_SIZE = 3;
+	private static final long MAX_EXTENT_LEN = 0x7fffffffL;
+
+	private final Jafs vfs;
+	private final int blockSize;
+	private final int ptrSize;
+	private final int leafEntrySize;
+	private final int indexEntrySize;
+	private final int rootLeafCap;
+	private final int rootIndexCap;
+	private final int blockLeafCap;
+	private final int blockIndexCap;
+	private final byte[] buf;
+	private final JafsBlockView view;
+
+	static class Node {
+		long vpos; // 0 for the root
+		int parentIdx;
+		int depth;
+		int count;
+		final long[] lblk;
+		final long[] pblk; // block in the archive or child node
+		final long[] len;
+
+		Node(int cap) {
+			lblk = new long[cap];
+			pblk = new long[cap];
+			len = new long[cap];
+		}
+	}
+
+	JafsExtents(Jafs vfs, int blockSize, int ptrSize, int rootSize) {
+		this.vfs = vfs;
+		view = new JafsBlockView(vfs);
+		this.blockSize = blockSize;
+		this.ptrSize = ptrSize;
+		leafEntrySize = ptrSize + ptrSize + 4;
+		indexEntrySize = ptrSize + ptrSize;
+		rootLeafCap = (rootSize - NODE_HEADER_SIZE) / leafEntrySize;
+		rootIndexCap = (rootSize - NODE_HEADER_SIZE) / indexEntrySize;
+		blockLeafCap = (blockSize - NODE_HEADER_SIZE) / leafEntrySize;
+		blockIndexCap = (blockSize - NODE_HEADER_SIZE) / indexEntrySize;
+		buf = new byte[blockSize];
+	}
+
+	private JafsBlockView view(long vpos) {
+		view.setVpos(vpos);
+		return view;
+	}
+
+	private int capacity(Node node) {
+		if (node.vpos == 0) {
+			return node.depth == 0 ? rootLeafCap : rootIndexCap;
+		}
+		return node.depth == 0 ? blockLeafCap : blockIndexCap;
+	}
+
+	private Node newNode() {
+		// one extra entry so a node can overflow before it is split
+		return new Node(blockIndexCap + 1);
+	}
+
+	private long readPtr(byte[] b, int off) {
+		return Util.arrayToPtr(b, off, ptrSize);
+	}
+
+	private void writePtr(byte[] b, int off, long ptr) {
+		Util.ptrToArray(b, off, ptr, ptrSize);
+	}
+
+	private Node load(JafsInode inode, long vpos) throws JafsException, IOException {
+		byte[] b;
+		if (vpos == 0) {
+			b = inode.extentRoot;
+		} else {
+			JafsBlockView block = view(vpos);
+			block.seekSet(0);
+			block.readBytes(buf, blockSize);
+			b = buf;
+		}
+		Node node = newNode();
+		node.vpos = vpos;
+		node.depth = b[0] & 0xff;
+		node.count = Util.arrayToShort(b, 1);
+		int off = NODE_HEADER_SIZE;
+		for (int i = 0; i < node.count; i++) {
+			node.lblk[i] = readPtr(b, off);
+			node.pblk[i] = readPtr(b, off + ptrSize);
+			if (node.depth == 0) {
+				node.len[i] = Util.arrayToInt(b, off + 2 * ptrSize);
+				off += leafEntrySize;
+			} else {
+				off += indexEntrySize;
+			}
+		}
+		return node;
+	}
+
+	private void write(JafsInode inode, Node node) throws JafsException, IOException {
+		byte[] b = node.vpos == 0 ? inode.extentRoot : buf;
+		Arrays.fill(b, (byte)0);
+		b[0] = (byte)node.depth;
+		Util.shortToArray(b, 1, node.count);
+		int off = NODE_HEADER_SIZE;
+		for (int i = 0; i < node.count; i++) {
+			writePtr(b, off, node.lblk[i]);
+			writePtr(b, off + ptrSize, node.pblk[i]);
+			if (node.depth == 0) {
+				Util.intToArray(b, off + 2 * ptrSize, node.len[i]);
+				off += leafEntrySize;
+			} else {
+				off += indexEntrySize;
+			}
+		}
+		if (node.vpos == 0) {
+			inode.flushInode();
+		} else {
+			JafsBlockView block = view(node.vpos);
+			block.seekSet(0);
+			block.writeBytes(buf, blockSize);
+		}
+	}
+
+	/*
+	 * Returns the index of the last entry starting at or before lblk, -1 if there is none
+	 */
+	private int find(Node node, long lblk) {
+		int lo = 0;
+		int hi = node.count - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			if (node.lblk[mid] <= lblk) {
+				lo = mid + 1;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		return hi;
+	}
+
+	private void insertEntry(Node node, int idx, long lblk, long pblk, long len) {
+		int n = node.count - idx;
+		System.arraycopy(node.lblk, idx, node.lblk, idx + 1, n);
+		System.arraycopy(node.pblk, idx, node.pblk, idx + 1, n);
+		System.arraycopy(node.len, idx, node.len, idx + 1, n);
+		node.lblk[idx] = lblk;
+		node.pblk[idx] = pblk;
+		node.len[idx] = len;
+		node.count++;
+	}
+
+	private void setCache(JafsInode inode, Node leaf, int idx) {
+		inode.extLblk = leaf.lblk[idx];
+		inode.extPblk = leaf.pblk[idx];
+		inode.extLen = leaf.len[idx];
+	}
+
+	/*
+	 * Returns the block in the archive holding logical block lblk, 0 if it is not mapped.
+	 * The extent that was found is remembered by the inode.
+	 */
+	long lookup(JafsInode inode, long lblk) throws JafsException, IOException {
+		if (lblk >= inode.extLblk && lblk < inode.extLblk + inode.extLen) {
+			return inode.extPblk + (lblk - inode.extLblk);
+		}
+		Node node = load(inode, 0);
+		while (node.depth > 0) {
+			node = load(inode, node.pblk[Math.max(0, find(node, lblk))]);
+		}
+		int i = find(node, lblk);
+		if (i >= 0 && lblk < node.lblk[i] + node.len[i]) {
+			setCache(inode, node, i);
+			return node.pblk[i] + (lblk - node.lblk[i]);
+		}
+		return 0;
+	}
+
+	private void insert(JafsInode inode, long lblk, long pblk, long len) throws JafsException, IOException {
+		Node node = load(inode, 0);
+		Node[] path = new Node[node.depth + 1];
+		path[0] = node;
+		int level = 0;
+		while (node.depth > 0) {
+			int i = Math.max(0, find(node, lblk));
+			node = load(inode, node.pblk[i]);
+			node.parentIdx = i;
+			path[++level] = node;
+		}
+		int i = find(node, lblk);
+		if (i >= 0 && node.lblk[i] + node.len[i] == lblk && node.pblk[i] + node.len[i] == pblk && node.len[i] + len <= MAX_EXTENT_LEN) {
+			// extend the previous extent
+			node.len[i] += len;
+			setCache(inode, node, i);
+			write(inode, node);
+			return;
+		}
+		insertEntry(node, i + 1, lblk, pblk, len);
+		setCache(inode, node, i + 1);
+		store(inode, path, level);
+	}
+
+	/*
+	 * Writes node path[level], a node that overflows is split in two halves
+	 * and the new half is added to its parent.
+	 */
+	private void store(JafsInode inode, Node[] path, int level) throws JafsException, IOException {
+		Node node = path[level];
+		if (node.count <= capacity(node)) {
+			write(inode, node);
+			return;
+		}
+		if (level == 0) {
+			// The root is full, its entries move to a new node one level down
+			Node child = newNode();
+			child.vpos = vfs.getAvailableVpos();
+			child.depth = node.depth;
+			child.count = node.count;
+			System.arraycopy(node.lblk, 0, child.lblk, 0, node.count);
+			System.arraycopy(node.pblk, 0, child.pblk, 0, node.count);
+			System.arraycopy(node.len, 0, child.len, 0, node.count);
+			node.depth++;
+			node.count = 1;
+			node.lblk[0] = child.lblk[0];
+			node.pblk[0] = child.vpos;
+			Node[] deeper = new Node[path.length + 1];
+			deeper[0] = node;
+			deeper[1] = child;
+			System.arraycopy(path, 1, deeper, 2, path.length - 1);
+			store(inode, deeper, 1);
+			write(inode, node);
+			return;
+		}
+		Node right = newNode();
+		right.vpos = vfs.getAvailableVpos();
+		right.depth = node.depth;
+		int half = node.count / 2;
+		right.count = node.count - half;
+		System.arraycopy(node.lblk, half, right.lblk, 0, right.count);
+		System.arraycopy(node.pblk, half, right.pblk, 0, right.count);
+		System.arraycopy(node.len, half, right.len, 0, right.count);
+		node.count = half;
+		write(inode, node);
+		write(inode, right);
+		Node parent = path[level - 1];
+		insertEntry(parent, node.parentIdx + 1, right.lblk[0], right.vpos, 0);
+		store(inode, path, level - 1);
+	}
+
+	/*
+	 * Maps logical block lblk onto a new block, preferably the block right after
+	 * the previous logical block so the file stays in as few extents as possible.
+	 */
+	private long allocate(JafsInode inode, long lblk, boolean zero) throws JafsException, IOException {
+		long goal;
+		if (lblk == 0) {
+			goal = inode.getVpos() + 1;
+		} else {
+			goal = lookup(inode, lblk - 1);
+			if (goal != 0) {
+				goal++;
+			}
+		}
+		long pblk = vfs.getAvailableVpos(goal);
+		inode.forgetCursor(pblk);
+		if (zero) {
+			JafsBlockView block = view(pblk);
+			block.initZeros();
+		}
+		insert(inode, lblk, pblk, 1);
+		return pblk;
+	}
+
+	long getBlkPos(JafsInode inode, long fpos) throws JafsException, IOException {
+		long lblk = fpos / blockSize;
+		long pblk = lookup(inode, lblk);
+		if (pblk == 0) {
+			pblk = allocate(inode, lblk, true);
+		}
+		return pblk;
+	}
+
+	void mapRange(JafsInode inode, long fpos, long len, boolean allocate, JafsBlockRuns runs) throws JafsException, IOException {
+		long first = fpos / blockSize;
+		long last = (fpos + len - 1) / blockSize;
+		long lblk = first;
+		while (lblk <= last) {
+			long pblk = lookup(inode, lblk);
+			if (pblk != 0) {
+				long n = Math.min(inode.extLblk + inode.extLen - lblk, last - lblk + 1);
+				runs.add(pblk, n);
+				lblk += n;
+			} else {
+				if (allocate) {
+					// blocks that are only partly written are zeroed
+					boolean partial = (lblk == first && (fpos % blockSize) != 0) || (lblk == last && ((fpos + len) % blockSize) != 0);
+					runs.add(allocate(inode, lblk, partial), 1);
+				} else {
+					runs.add(0, 1);
+				}
+				lblk++;
+			}
+		}
+	}
+
+	boolean hasBlocks(JafsInode inode) {
+		return Util.arrayToShort(inode.extentRoot, 1) != 0;
+	}
+
+	/*
+	 * Frees the blocks beyond the size of the file. The extents at the end
+	 * of the tree are trimmed or removed, together with the nodes that
+	 * become empty, so only the freed part of the tree is visited.
+	 */
+	void truncate(JafsInode inode) throws JafsException, IOException {
+		JafsInodeContext ctx = vfs.getINodeContext();
+		long keep = (inode.size + blockSize - 1) / blockSize;
+		boolean done = false;
+		while (!done) {
+			// walk down along the last entries
+			Node node = load(inode, 0);
+			Node[] path = new Node[node.depth + 1];
+			path[0] = node;
+			int level = 0;
+			while (node.depth > 0 && node.count > 0) {
+				int i = node.count - 1;
+				node = load(inode, node.pblk[i]);
+				node.parentIdx = i;
+				path[++level] = node;
+			}
+			if (node.count == 0 && level == 0) {
+				break;
+			}
+			boolean changed = false;
+			while (node.count > 0) {
+				int i = node.count - 1;
+				if (node.lblk[i] + node.len[i] <= keep) {
+					done = true;
+					break;
+				}
+				long kept = Math.max(0, keep - node.lblk[i]);
+				for (long n = kept; n < node.len[i]; n++) {
+					ctx.freeBlock(node.pblk[i] + n);
+				}
+				changed = true;
+				if (kept > 0) {
+					node.len[i] = kept;
+					done = true;
+					break;
+				}
+				node.count--;
+			}
+			// nodes that became empty are removed from their parent
+			while (level > 0 && path[level].count == 0) {
+				ctx.freeBlock(path[level].vpos);
+				path[level - 1].count--;
+				changed = true;
+				level--;
+			}
+			if (path[0].count == 0) {
+				// the tree is empty
+				path[0].depth = 0;
+				done = true;
+			}
+			if (changed) {
+				write(inode, path[level]);
+			}
+		}
+		inode.resetCursor();
+	}
+}
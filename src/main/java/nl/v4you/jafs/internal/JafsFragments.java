@@ -0,0 +1,252 @@
+package nl.v4you.jafs.internal;
+
+import nl.v4you.jafs.Jafs;
+import nl.v4you.jafs.JafsException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/*
+ * Allocates fragments for tail packing (FEATURE_TAILS). The last partial
+ * block of a file can be stored in a fragment: a run of slots in a block
+ * that is shared with the tails of other files.
+ *
+ * A fragment block is structured as follows:
+ * 2 bytes : bitmap of the slots in use, bit n is slot n
+ * Followed by SLOTS slots of slotSize bytes
+ *
+ * The fragment blocks with available slots are written to an index when
+ * the archive is closed. The index starts in the super block and continues
+ * in a list of blocks when it does not fit, each part is structured as follows:
+ * 8 bytes : next block of the index, 0 for the last one
+ * 2 bytes : number of fragment blocks in this part
+ * Followed by the fragment blocks, 8 bytes each
+ * The index is read and its blocks are freed when the archive is opened.
+ */
+public class JafsFragments {
+	static final int SLOTS = 16;
+	static final int HEADER_SIZE = 2;
+	private static final int ALL_SLOTS = (1 << SLOTS) - 1;
+	private static final int INDEX_HEADER_SIZE = 8 + 2;
+
+	private final Jafs vfs;
+	private final boolean enabled;
+	private final int blockSize;
+	final int slotSize;
+	private final byte[] buf = new byte[HEADER_SIZE];
+	private final JafsBlockView view;
+
+	// Fragment blocks with available slots, indexed by their longest run of available slots
+	private final Map<Long, Integer> slotsUsed = new HashMap<>();
+	private final TreeSet<Long>[] byLongestRun;
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public JafsFragments(Jafs vfs) {
+		this.vfs = vfs;
+		view = new JafsBlockView(vfs);
+		JafsSuper superBlock = vfs.getSuper();
+		enabled = superBlock.hasFeature(JafsSuper.FEATURE_TAILS);
+		blockSize = superBlock.getBlockSize();
+		slotSize = (blockSize - HEADER_SIZE) / SLOTS;
+		byLongestRun = new TreeSet[SLOTS];
+		for (int n = 0; n < SLOTS; n++) {
+			byLongestRun[n] = new TreeSet<>();
+		}
+	}
+
+	private JafsBlockView view(long vpos) {
+		view.setVpos(vpos);
+		return view;
+	}
+
+	boolean isEnabled() {
+		return enabled;
+	}
+
+	private int slotsNeeded(int len) {
+		return (len + slotSize - 1) / slotSize;
+	}
+
+	/*
+	 * A tail is only worth packing when it saves at least one slot
+	 */
+	boolean fits(int len) {
+		return enabled && len > 0 && slotSize > 0 && slotsNeeded(len) < SLOTS;
+	}
+
+	private static int longestRun(int used) {
+		int longest = 0;
+		int run = 0;
+		for (int n = 0; n < SLOTS; n++) {
+			if ((used & (1 << n)) == 0) {
+				run++;
+				if (run > longest) {
+					longest = run;
+				}
+			} else {
+				run = 0;
+			}
+		}
+		return longest;
+	}
+
+	private static int findRun(int used, int slots) {
+		int mask = (1 << slots) - 1;
+		for (int slot = 0; slot + slots <= SLOTS; slot++) {
+			if ((used & (mask << slot)) == 0) {
+				return slot;
+			}
+		}
+		return -1;
+	}
+
+	private int readSlotsUsed(long vpos) throws JafsException, IOException {
+		Integer used = slotsUsed.get(vpos);
+		if (used != null) {
+			return used;
+		}
+		JafsBlockView block = view(vpos);
+		block.seekSet(0);
+		block.readBytes(buf, HEADER_SIZE);
+		return Util.arrayToShort(buf, 0);
+	}
+
+	private void index(long vpos, int used) {
+		Integer old = slotsUsed.remove(vpos);
+		if (old != null) {
+			byLongestRun[longestRun(old)].remove(vpos);
+		}
+		if (used != 0 && used != ALL_SLOTS) {
+			slotsUsed.put(vpos, used);
+			byLongestRun[longestRun(used)].add(vpos);
+		}
+	}
+
+	private void setSlotsUsed(long vpos, int used) throws JafsException, IOException {
+		index(vpos, used);
+		Util.shortToArray(buf, 0, used);
+		JafsBlockView block = view(vpos);
+		block.seekSet(0);
+		block.writeBytes(buf, HEADER_SIZE);
+	}
+
+	/*
+	 * Allocates a fragment of len bytes for the tail of the inode
+	 */
+	void alloc(JafsInode inode, int len) throws JafsException, IOException {
+		int slots = slotsNeeded(len);
+		int mask = (1 << slots) - 1;
+		for (int run = slots; run < SLOTS; run++) {
+			if (!byLongestRun[run].isEmpty()) {
+				long vpos = byLongestRun[run].first();
+				int used = slotsUsed.get(vpos);
+				int slot = findRun(used, slots);
+				setSlotsUsed(vpos, used | (mask << slot));
+				inode.tailVpos = vpos;
+				inode.tailSlot = slot;
+				return;
+			}
+		}
+		long vpos = vfs.getAvailableVpos();
+		inode.forgetCursor(vpos);
+		JafsBlockView block = view(vpos);
+		block.initZeros();
+		setSlotsUsed(vpos, mask);
+		inode.tailVpos = vpos;
+		inode.tailSlot = 0;
+	}
+
+	void free(JafsInode inode, int len) throws JafsException, IOException {
+		long vpos = inode.tailVpos;
+		int mask = ((1 << slotsNeeded(len)) - 1) << inode.tailSlot;
+		int used = readSlotsUsed(vpos) & ~mask;
+		if (used == 0) {
+			index(vpos, used);
+			vfs.getINodeContext().freeBlock(vpos);
+		} else {
+			setSlotsUsed(vpos, used);
+		}
+		inode.tailVpos = 0;
+		inode.tailSlot = 0;
+	}
+
+	/*
+	 * Reads the index written by store() and frees its blocks
+	 */
+	public void load() throws JafsException, IOException {
+		JafsSuper superBlock = vfs.getSuper();
+		byte[] b = new byte[blockSize];
+		superBlock.readFragmentIndex(b);
+		superBlock.writeFragmentIndex(new byte[blockSize]);
+		while (true) {
+			int count = Util.arrayToShort(b, 8);
+			for (int n = 0; n < count; n++) {
+				long vpos = Util.arrayToLong(b, INDEX_HEADER_SIZE + 8 * n);
+				index(vpos, readSlotsUsed(vpos));
+			}
+			long next = Util.arrayToLong(b, 0);
+			if (next == 0) {
+				break;
+			}
+			JafsBlockView block = view(next);
+			block.seekSet(0);
+			block.readBytes(b, blockSize);
+			vfs.getINodeContext().freeBlock(next);
+		}
+	}
+
+	/*
+	 * Writes the fragment blocks with available slots to the index, called on close
+	 */
+	public void store() throws JafsException, IOException {
+		if (slotsUsed.isEmpty()) {
+			return;
+		}
+		JafsSuper superBlock = vfs.getSuper();
+		List<Long> fragmentBlocks = new ArrayList<>(slotsUsed.keySet());
+		int inSuper = Math.min(fragmentBlocks.size(), (superBlock.getFragmentIndexSize() - INDEX_HEADER_SIZE) / 8);
+		int perBlock = (blockSize - INDEX_HEADER_SIZE) / 8;
+		byte[] b = new byte[blockSize];
+		long next = 0;
+		// written back to front, so that each part knows the next one
+		for (int end = fragmentBlocks.size(); end > inSuper; ) {
+			int start = Math.max(inSuper, end - perBlock);
+			indexToArray(b, next, fragmentBlocks, start, end);
+			next = vfs.getAvailableVpos();
+			JafsBlockView block = view(next);
+			block.seekSet(0);
+			block.writeBytes(b, blockSize);
+			end = start;
+		}
+		indexToArray(b, next, fragmentBlocks, 0, inSuper);
+		superBlock.writeFragmentIndex(b);
+	}
+
+	private static void indexToArray(byte[] b, long next, List<Long> fragmentBlocks, int start, int end) {
+		Arrays.fill(b, (byte)0);
+		Util.longToArray(b, 0, next);
+		Util.shortToArray(b, 8, end - start);
+		for (int n = start; n < end; n++) {
+			Util.longToArray(b, INDEX_HEADER_SIZE + 8 * (n - start), fragmentBlocks.get(n));
+		}
+	}
+
+	private JafsBlockView seek(JafsInode inode, int off) {
+		JafsBlockView block = view(inode.tailVpos);
+		block.seekSet(HEADER_SIZE + inode.tailSlot * slotSize + off);
+		return block;
+	}
+
+	void read(JafsInode inode, int tailOff, byte[] b, int off, int len) throws JafsException, IOException {
+		seek(inode, tailOff).readBytes(b, off, len);
+	}
+
+	void write(JafsInode inode, byte[] b, int off, int len) throws JafsException, IOException {
+		seek(inode, 0).writeBytes(b, off, len);
+	}
+}
@@ -4,38 +4,74 @@ import nl.v4you.jafs.Jafs;
 import nl.v4you.jafs.JafsException;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.Arrays;
 
 /*
  * An inode header is structured as follows:
- * 1 byte  : type | hidden | link | inlined
+ * 1 byte  : type | hidden | link | inlined | extents | tail | hashed
  * 8 bytes : long file size, is 0 for directories
+ * Followed by the inlined data, the block pointers or,
+ * with the extents flag, the root of the extent tree (see JafsExtents).
+ * With FEATURE_TAILS the last bytes of a block mapped inode are:
+ * ptr     : fragment block holding the tail of the file (see JafsFragments)
+ * 1 byte  : first slot of the fragment
+ * The tail is only packed when the tail flag is set, it is not part of the block mapping then.
+ * An inlined inode can have the tail flag too, its tail starts after the
+ * first maxInlinedSize - tailRefSize bytes, which stay inlined.
  */
 public class JafsInode {
 	public static final int INODE_HEADER_SIZE = 1 + 8; // type + size
+	private static final int TRANSFER_CHUNK = 1024 * 1024;
+	private static final int TRANSFER_CHUNK_MIN = 4; // blocks
 
     public static final int INODE_FILE    = 0x1;
     public static final int INODE_DIR     = 0x2;
 	public static final int INODE_INLINED = 0x4;
+	public static final int INODE_EXTENTS = 0x8;
+	public static final int INODE_TAIL    = 0x10;
+	public static final int INODE_HASHED  = 0x20;
 
 	private final Jafs vfs;
 	private final JafsInodeContext ctx;
 
 	private final long maxInlinedSize;
+	private final long maxInlinedHeadSize; // inlined bytes in front of a packed tail
 	private long vpos = 0; // Position of this block in the archive
 	private long fpos = 0; // Position of the file pointer
 	final long[] ptrs;
+	final byte[] extentRoot;
+	private final int tailRefSize;
 
-    final long maxFileSizeReal;
+	// The fragment holding the tail of the file (see JafsFragments)
+	long tailVpos = 0;
+	int tailSlot = 0;
+
+	// The last extent found (see JafsExtents.lookup)
+	long extLblk = 0;
+	long extPblk = 0;
+	long extLen = 0;
+
+	// Pointers of the last used pointer block per level (see JafsInodeContext.getBlkPos)
+	final long[][] cursorPtrs = new long[4][];
+	final long[] cursorBpos = new long[4];
+	private final JafsBlockRuns runs = new JafsBlockRuns();
+
+    long maxFileSizeReal;
 	final int blockSize;
 	final int blockSizeMask;
 
 	private final byte[] bb1;
 	private final byte[] bb2; // used by undoinlined()
+	private final JafsBlockView view;
 
 	/* INode header */
 	int type = 0;
 	long size = 0;
+	private boolean dirty = false; // the size grew since the last flushInode()
 
 	long getVpos() {
 		return vpos;
@@ -48,74 +84,185 @@ public class JafsInode {
 		this.size = size;
 	}
 	public void resetSize() throws JafsException, IOException {
+		releaseTail();
 		size = 0;
 		flushInode();
 	}
 
 	public JafsInode(Jafs vfs) {
         this.vfs = vfs;
+        view = new JafsBlockView(vfs);
         blockSize = vfs.getSuper().getBlockSize();
         blockSizeMask = blockSize - 1;
         ctx = vfs.getINodeContext();
         maxFileSizeReal = ctx.maxFileSizeReal;
         ptrs = new long[ctx.getPtrsPerInode()];
+        tailRefSize = ctx.getTailRefSize();
+        extentRoot = new byte[blockSize - INODE_HEADER_SIZE - tailRefSize];
         maxInlinedSize = blockSize - INODE_HEADER_SIZE;
+        maxInlinedHeadSize = maxInlinedSize - tailRefSize;
         bb1 = new byte[blockSize];
         bb2 = new byte[blockSize];
 	}
 
+	private JafsBlockView view(long vpos) {
+		view.setVpos(vpos);
+		return view;
+	}
+
 	long getFpos() {
 		return fpos;
 	}
+
+	void resetCursor() {
+		Arrays.fill(cursorBpos, 0);
+		extLen = 0;
+	}
+
+	void forgetCursor(long bpos) {
+		// a newly allocated block might still be cached as a pointer block freed elsewhere
+		for (int n = 0; n < cursorBpos.length; n++) {
+			if (cursorBpos[n] == bpos) {
+				cursorBpos[n] = 0;
+			}
+		}
+	}
 	
 	private boolean isInlined() {
 		return (type & INODE_INLINED) != 0;
 	}
+
+	boolean isExtents() {
+		return (type & INODE_EXTENTS) != 0;
+	}
+
+	private boolean hasTail() {
+		return (type & INODE_TAIL) != 0;
+	}
+
+	/*
+	 * The first position of the packed tail, or the file size when there is none
+	 */
+	private long getTailStart() {
+		if (!hasTail()) {
+			return size;
+		}
+		return isInlined() ? maxInlinedHeadSize : size & ~(long)blockSizeMask;
+	}
+
+	private int getTailLength() {
+		return (int)(size - getTailStart());
+	}
+
+	private boolean hasBlocks() {
+		return isExtents() ? ctx.getExtents().hasBlocks(this) : ptrs[0] != 0;
+	}
 	
 	void flushInode() throws JafsException, IOException {
-	    JafsBlockView iblock = new JafsBlockView(vfs, vpos);
+	    JafsBlockView iblock = view(vpos);
         iblock.seekSet(0);
 
         int idx = 0;
         bb1[idx++] = (byte)type;
         Util.longToArray(bb1, idx, size);
         idx += 8;
-        if (!isInlined()) {
+        if (isExtents() && !isInlined()) {
+            System.arraycopy(extentRoot, 0, bb1, idx, extentRoot.length);
+            idx += extentRoot.length;
+        } else if (!isInlined()) {
         	int ptrsPerInode = ctx.getPtrsPerInode();
+        	int ptrSize = ctx.getPtrSize();
             for (int n = 0; n < ptrsPerInode; n++) {
-                Util.intToArray(bb1, idx, ptrs[n]);
-                idx += 4;
+                Util.ptrToArray(bb1, idx, ptrs[n], ptrSize);
+                idx += ptrSize;
             }
         }
+        if (tailRefSize > 0 && !isInlined()) {
+            Arrays.fill(bb1, idx, blockSize - tailRefSize, (byte)0);
+            idx = tailRefToArray(blockSize - tailRefSize);
+        }
         iblock.writeBytes(bb1, idx);
+        if (isInlined() && hasTail()) {
+            // the inlined data is left as it is
+            iblock.seekSet(blockSize - tailRefSize);
+            iblock.writeBytes(bb1, tailRefToArray(0));
+        }
+        dirty = false;
+	}
+
+	private int tailRefToArray(int idx) {
+		Util.ptrToArray(bb1, idx, tailVpos, ctx.getPtrSize());
+		idx += ctx.getPtrSize();
+		bb1[idx++] = (byte)tailSlot;
+		return idx;
+	}
+
+	/*
+	 * Writes the size when the file grew, appending only changes the size
+	 * in memory. Any other change of the inode is written right away by
+	 * flushInode(), so only the size field has to be written here. Called
+	 * when a stream is flushed or closed, when the block cache is flushed
+	 * and when the inode goes back to the pool.
+	 */
+	public void flush() throws JafsException, IOException {
+		if (dirty) {
+			JafsBlockView iblock = view(vpos);
+			iblock.seekSet(1);
+			iblock.writeLong(size);
+			dirty = false;
+		}
+	}
+
+	boolean isSizeDirty() {
+		return dirty;
 	}
 
 	public void openInode(long vpos) throws JafsException, IOException {
+		flush();
         this.vpos = vpos;
-        JafsBlockView iblock = new JafsBlockView(vfs, vpos);
+        JafsBlockView iblock = view(vpos);
 		iblock.seekSet(0);
-		iblock.readBytes(bb1, 1 + 8);
-        type = (bb1[0] & 0xff);
-		size = Util.arrayToLong(bb1, 1);
-		if (!isInlined()) {
-			iblock.readBytes(bb1, ctx.getPtrsPerInode() << 2);
-            int ptrsPerInode = ctx.getPtrsPerInode();
-            for (int off = 0, n = 0; n < ptrsPerInode; n++) {
-                ptrs[n] = Util.arrayToInt(bb1, off);
-                off += 4;
-            }
+        type = iblock.readByte();
+		size = iblock.readLong();
+		// an open output stream writes its size only when it is flushed or closed
+		JafsInode writer = vfs.getInodePool().getUnflushed(vpos);
+		if (writer != null) {
+			size = writer.size;
+		}
+		if (isExtents() && !isInlined()) {
+			iblock.readBytes(extentRoot, extentRoot.length);
+		} else if (!isInlined()) {
+			iblock.readPtrs(ptrs, ctx.getPtrsPerInode(), ctx.getPtrSize());
+		}
+		tailVpos = 0;
+		tailSlot = 0;
+		if (hasTail()) {
+			iblock.seekSet(blockSize - tailRefSize);
+			iblock.readBytes(bb1, tailRefSize);
+			tailVpos = Util.arrayToPtr(bb1, 0, ctx.getPtrSize());
+			tailSlot = bb1[ctx.getPtrSize()] & 0xff;
 		}
 		fpos = 0;
+		maxFileSizeReal = ctx.getMaxFileSize(this);
+		resetCursor();
 	}
 
 	void createInode(int type) throws JafsException, IOException {
+		flush();
+		resetCursor();
+		tailVpos = 0;
+		tailSlot = 0;
 		vpos = vfs.getAvailableVpos();
 		this.type = type | INODE_INLINED;
+		if (vfs.getSuper().hasFeature(JafsSuper.FEATURE_EXTENTS)) {
+			this.type |= INODE_EXTENTS;
+		}
+		maxFileSizeReal = ctx.getMaxFileSize(this);
 		this.size = 0;
         flushInode();
 	}
 
-	void seekSet(long offset) throws JafsException {
+	public void seekSet(long offset) throws JafsException {
 		fpos = offset;
         if (fpos < 0) {
             throw new JafsException("fpos must be >= 0");
@@ -137,17 +284,21 @@ public class JafsInode {
 	}
 
 	private void undoInlined() throws IOException, JafsException {
-		JafsBlockView iblock = new JafsBlockView(vfs, vpos);
+		JafsBlockView iblock = view(vpos);
 		iblock.seekSet(INODE_HEADER_SIZE);
 		if (size != 0) {
 			iblock.readBytes(bb2, (int)size);
 		}
 		Arrays.fill(ptrs, 0);
+		Arrays.fill(extentRoot, (byte)0);
+		resetCursor();
 		type &= ~INODE_INLINED; // Turn inlined mode off
 		flushInode();
 		if (size != 0) {
+			long keepFpos = fpos;
 			fpos = 0;
 			writeBytes(bb2, (int)size);
+			fpos = keepFpos;
 		}
 	}
 
@@ -156,10 +307,14 @@ public class JafsInode {
 			fpos = 0;
 			readBytes(bb2, 0, (int)size);
 		}
-		if (ptrs[0] != 0) {
-			ctx.freeBlock(ptrs[0]);
-			ptrs[0] = 0;
+		if (hasBlocks()) {
+			// free the remaining data block
+			long keepSize = size;
+			size = 0;
+			ctx.freeDataAndPtrBlocks(this);
+			size = keepSize;
 		}
+		resetCursor();
 		type |= INODE_INLINED; // Turn inlined mode on
 		flushInode();
 		if (size != 0) {
@@ -168,6 +323,114 @@ public class JafsInode {
 		}
 	}
 
+	/*
+	 * Moves the last partial block of the file into a fragment, see JafsFragments.
+	 * Done when a file is closed, the tail is unpacked again when the file is changed.
+	 */
+	public void packTail() throws JafsException, IOException {
+		JafsFragments fragments = vfs.getFragments();
+		if (isInlined() || hasTail() || (type & INODE_FILE) == 0) {
+			return;
+		}
+		if (size > maxInlinedHeadSize && fragments.fits((int)Math.min(size - maxInlinedHeadSize, blockSize))) {
+			packInlined((int)(size - maxInlinedHeadSize));
+			return;
+		}
+		int len = (int)(size & blockSizeMask);
+		if (!fragments.fits(len)) {
+			return;
+		}
+		long start = size - len;
+		ctx.mapRange(this, start, len, false, runs);
+		if (runs.isHole(0)) {
+			// takes no space already
+			return;
+		}
+		JafsBlockView block = view(runs.getVpos(0));
+		block.seekSet(0);
+		block.readBytes(bb2, len);
+		// free the block of the tail first, so that a new fragment block can take its place
+		size = start;
+		ctx.freeDataAndPtrBlocks(this);
+		size = start + len;
+		fragments.alloc(this, len);
+		fragments.write(this, bb2, 0, len);
+		type |= INODE_TAIL;
+		flushInode();
+	}
+
+	/*
+	 * A file that is a little too large to be inlined keeps its first bytes
+	 * inlined and the rest in a fragment, so it takes no data blocks at all.
+	 */
+	private void packInlined(int len) throws JafsException, IOException {
+		byte[] tail = new byte[len];
+		long keepFpos = fpos;
+		fpos = 0;
+		readBytes(bb2, 0, (int)maxInlinedHeadSize);
+		readBytes(tail, 0, len);
+		fpos = keepFpos;
+		long keepSize = size;
+		size = 0;
+		ctx.freeDataAndPtrBlocks(this);
+		size = keepSize;
+		Arrays.fill(ptrs, 0);
+		Arrays.fill(extentRoot, (byte)0);
+		resetCursor();
+		JafsFragments fragments = vfs.getFragments();
+		fragments.alloc(this, len);
+		fragments.write(this, tail, 0, len);
+		type |= INODE_INLINED | INODE_TAIL;
+		flushInode();
+		JafsBlockView iblock = view(vpos);
+		iblock.seekSet(INODE_HEADER_SIZE);
+		iblock.writeBytes(bb2, (int)maxInlinedHeadSize);
+	}
+
+	private void unpackTail() throws JafsException, IOException {
+		if (!hasTail()) {
+			return;
+		}
+		if (isInlined()) {
+			unpackInlined();
+			return;
+		}
+		int len = getTailLength();
+		vfs.getFragments().read(this, 0, bb2, 0, len);
+		releaseTail();
+		long keepFpos = fpos;
+		fpos = size - len;
+		writeBytes(bb2, len);
+		fpos = keepFpos;
+	}
+
+	/*
+	 * Moves the inlined bytes and the tail of the file back into data blocks
+	 */
+	private void unpackInlined() throws JafsException, IOException {
+		byte[] b = new byte[(int)size];
+		int head = (int)maxInlinedHeadSize;
+		JafsBlockView iblock = view(vpos);
+		iblock.seekSet(INODE_HEADER_SIZE);
+		iblock.readBytes(b, head);
+		vfs.getFragments().read(this, 0, b, head, b.length - head);
+		releaseTail();
+		long keepFpos = fpos;
+		size = 0;
+		fpos = 0;
+		writeBytes(b, b.length);
+		fpos = keepFpos;
+		flushInode();
+	}
+
+	private void releaseTail() throws JafsException, IOException {
+		if (hasTail()) {
+			vfs.getFragments().free(this, getTailLength());
+			type &= ~INODE_TAIL;
+			flushInode();
+		}
+	}
+
 	private void checkIfInlinedWillOverflow(int n) throws JafsException, IOException {
 		if (isInlined() && (fpos + n > maxInlinedSize)) {
 			undoInlined();
@@ -178,21 +441,22 @@ public class JafsInode {
 	    if ((fpos + 1) > maxFileSizeReal) {
 	        throw new IllegalStateException("exceeding maximum file size");
         }
+		unpackTail();
 		checkIfInlinedWillOverflow(1);
 		if (isInlined()) {
-            JafsBlockView iblock = new JafsBlockView(vfs, vpos);
+            JafsBlockView iblock = view(vpos);
             iblock.seekSet((int)(INODE_HEADER_SIZE + fpos));
 			iblock.writeByte(b & 0xff);
 			fpos++;
 		} else {
-			JafsBlockView dum = new JafsBlockView(vfs, ctx.getBlkPos(this, fpos));
+			JafsBlockView dum = view(ctx.getBlkPos(this, fpos));
 			dum.seekSet((int)(fpos & blockSizeMask));
 			dum.writeByte(b & 0xff);
 			fpos++;
 		}
 		if (fpos > size) {
 			size = fpos;
-			flushInode();
+			dirty = true;
 		}
 	}
 
@@ -203,30 +467,35 @@ public class JafsInode {
         if ((fpos + len) > maxFileSizeReal) {
             throw new IllegalStateException("exceeding maximum file size: " + (fpos + len) + " >= " + maxFileSizeReal);
         }
+        unpackTail();
         checkIfInlinedWillOverflow(len);
 		if (isInlined()) {
-            JafsBlockView iblock = new JafsBlockView(vfs, vpos);
+            JafsBlockView iblock = view(vpos);
             iblock.seekSet((int)(INODE_HEADER_SIZE + fpos));
             iblock.writeBytes(b, off, len);
             fpos += len;
 		} else {
             int todo = len;
-            while (todo > 0) {
-                JafsBlockView dum = new JafsBlockView(vfs, ctx.getBlkPos(this, fpos));
-                dum.seekSet((int)(fpos & blockSizeMask));
-                int done = dum.bytesLeft();
-                if (todo < done) {
-                    done = todo;
+            ctx.mapRange(this, fpos, len, true, runs);
+            for (int r = 0; r < runs.size(); r++) {
+                long bpos = runs.getVpos(r);
+                for (long n = runs.getBlocks(r); n > 0; n--) {
+                    JafsBlockView dum = view(bpos++);
+                    dum.seekSet((int)(fpos & blockSizeMask));
+                    int done = dum.bytesLeft();
+                    if (todo < done) {
+                        done = todo;
+                    }
+                    dum.writeBytes(b, off, done);
+                    fpos += done;
+                    off += done;
+                    todo -= done;
                 }
-                dum.writeBytes(b, off, done);
-                fpos += done;
-                off += done;
-                todo -= done;
             }
 		}
 		if (fpos > size) {
 			size = fpos;
-			flushInode();
+			dirty = true;
 		}
 	}
 
@@ -238,13 +507,24 @@ public class JafsInode {
 		if (fpos >= size) {
 			return -1;
 		}
-		if (isInlined()) {
-            JafsBlockView iblock = new JafsBlockView(vfs, vpos);
+		if (fpos >= getTailStart()) {
+			vfs.getFragments().read(this, (int)(fpos - getTailStart()), bb1, 0, 1);
+			fpos++;
+			return bb1[0] & 0xff;
+		} else if (isInlined()) {
+            JafsBlockView iblock = view(vpos);
             iblock.seekSet((int)(INODE_HEADER_SIZE+fpos));
 			fpos++;
 			return iblock.readByte();
 		} else {
-			JafsBlockView block = new JafsBlockView(vfs, ctx.getBlkPos(this, fpos));
+			ctx.mapRange(this, fpos, 1, false, runs);
+			long bpos = runs.getVpos(0);
+			if (bpos == 0) {
+				// hole
+				fpos++;
+				return 0;
+			}
+			JafsBlockView block = view(bpos);
 			block.seekSet((int)(fpos & blockSizeMask));
 			fpos++;
 			return block.readByte();
@@ -262,30 +542,115 @@ public class JafsInode {
 			len = (int)(size - fpos);
 		}
 		if (isInlined()) {
-            JafsBlockView iblock = new JafsBlockView(vfs, vpos);
-            iblock.seekSet((int)(INODE_HEADER_SIZE + fpos));
-            iblock.readBytes(b, off, len);
-            fpos += len;
+            // the inlined data can be followed by a packed tail
+            long tailStart = getTailStart();
+            int todo = (int)Math.min(len, Math.max(0, tailStart - fpos));
+            if (todo > 0) {
+                JafsBlockView iblock = view(vpos);
+                iblock.seekSet((int)(INODE_HEADER_SIZE + fpos));
+                iblock.readBytes(b, off, todo);
+                fpos += todo;
+            }
+            if (len > todo) {
+                vfs.getFragments().read(this, (int)(fpos - tailStart), b, off + todo, len - todo);
+                fpos += len - todo;
+            }
 		} else {
-            int todo = len;
+            // the packed tail is read from its fragment after the blocks
+            long tailStart = getTailStart();
+            int todo = (int)Math.min(len, Math.max(0, tailStart - fpos));
+            int rest = len - todo;
             int done;
-            while (todo > 0) {
-                long bpos = ctx.getBlkPos(this, fpos);
-                JafsBlockView dum = new JafsBlockView(vfs, bpos);
-                dum.seekSet((int)(fpos & blockSizeMask));
-                done = dum.bytesLeft();
-                if (todo < done) {
-                	done = todo;
-				}
-                dum.readBytes(b, off, done);
-                todo -= done;
-                off += done;
-                fpos += done;
+            ctx.mapRange(this, fpos, todo, false, runs);
+            for (int r = 0; r < runs.size(); r++) {
+                long bpos = runs.getVpos(r);
+                for (long n = runs.getBlocks(r); n > 0; n--) {
+                    done = blockSize - (int)(fpos & blockSizeMask);
+                    if (todo < done) {
+                        done = todo;
+                    }
+                    if (bpos == 0) {
+                        // hole
+                        Arrays.fill(b, off, off + done, (byte)0);
+                    } else {
+                        JafsBlockView dum = view(bpos++);
+                        dum.seekSet((int)(fpos & blockSizeMask));
+                        dum.readBytes(b, off, done);
+                    }
+                    todo -= done;
+                    off += done;
+                    fpos += done;
+                }
+            }
+            if (rest > 0) {
+                vfs.getFragments().read(this, (int)(fpos - tailStart), b, off, rest);
+                fpos += rest;
             }
 		}
 		return len;
 	}
 
+	/*
+	 * Reads from the file position into dst, returns -1 at the end of the file
+	 */
+	public int read(ByteBuffer dst) throws JafsException, IOException {
+		if (dst.hasArray()) {
+			int n = readBytes(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+			if (n > 0) {
+				dst.position(dst.position() + n);
+			}
+			return n;
+		}
+		// a direct buffer is filled a block at a time
+		int total = 0;
+		while (dst.hasRemaining()) {
+			int n = readBytes(bb2, 0, Math.min(bb2.length, dst.remaining()));
+			if (n <= 0) {
+				return total == 0 ? n : total;
+			}
+			dst.put(bb2, 0, n);
+			total += n;
+		}
+		return total;
+	}
+
+	public int write(ByteBuffer src) throws JafsException, IOException {
+		int len = src.remaining();
+		if (src.hasArray()) {
+			writeBytes(src.array(), src.arrayOffset() + src.position(), len);
+			src.position(src.position() + len);
+			return len;
+		}
+		// not bb2, writeBytes() uses that one when the inlined data moves to a block
+		byte[] b = new byte[Math.min(len, blockSize)];
+		while (src.hasRemaining()) {
+			int n = Math.min(b.length, src.remaining());
+			src.get(b, 0, n);
+			writeBytes(b, 0, n);
+		}
+		return len;
+	}
+
+	/*
+	 * Maps [pos, pos + len) onto runs of blocks that can be read from the
+	 * archive directly. Returns false when the range has to be read through
+	 * the block cache: inlined data, a packed tail or pending changes.
+	 */
+	public boolean mapClean(long pos, long len, JafsBlockRuns runs) throws JafsException, IOException {
+		if (isInlined() || pos + len > getTailStart()) {
+			return false;
+		}
+		ctx.mapRange(this, pos, len, false, runs);
+		JafsBlockCache cache = vfs.getBlockCache();
+		for (int r = 0; r < runs.size(); r++) {
+			long vpos = runs.getVpos(r);
+			if (!runs.isHole(r) && cache.isDirty(JafsBlockView.getPage(vpos, blockSize), JafsBlockView.getPage(vpos + runs.getBlocks(r) - 1, blockSize))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
 	int readShort() throws JafsException, IOException {
 		readBytes(bb1, 0, 2);
 		return Util.arrayToShort(bb1, 0);
@@ -306,6 +671,153 @@ public class JafsInode {
 		writeBytes(bb1, 0, 4);
 	}
 
+	long readLong() throws JafsException, IOException {
+		readBytes(bb1, 0, 8);
+		return Util.arrayToLong(bb1, 0);
+	}
+
+	void writeLong(long l) throws JafsException, IOException {
+		Util.longToArray(bb1, 0, l);
+		writeBytes(bb1, 0, 8);
+	}
+
+	/*
+	 * Copies len bytes from position pos through the block cache
+	 */
+	private long copyTo(WritableByteChannel target, long pos, long len) throws JafsException, IOException {
+		seekSet(pos);
+		ByteBuffer buf = ByteBuffer.wrap(bb2);
+		for (long todo = len; todo > 0; ) {
+			int n = readBytes(bb2, 0, (int)Math.min(bb2.length, todo));
+			buf.clear().limit(n);
+			while (buf.hasRemaining()) {
+				target.write(buf);
+			}
+			todo -= n;
+		}
+		return len;
+	}
+
+	/*
+	 * Writes the whole file to target. Runs of blocks that have no pending
+	 * changes in the block cache are sent straight from the archive with
+	 * FileChannel.transferTo(), holes, dirty blocks, the packed tail and
+	 * inlined data are copied through the block cache.
+	 */
+	public long transferTo(WritableByteChannel target) throws JafsException, IOException {
+		if (isInlined()) {
+			return copyTo(target, 0, size);
+		}
+		FileChannel archive = vfs.getRaf().getChannel();
+		JafsBlockCache cache = vfs.getBlockCache();
+		JafsBlockRuns chunkRuns = new JafsBlockRuns();
+		long tailStart = getTailStart();
+		long pos = 0;
+		while (pos < tailStart) {
+			ctx.mapRange(this, pos, Math.min(TRANSFER_CHUNK, tailStart - pos), false, chunkRuns);
+			for (int r = 0; r < chunkRuns.size(); r++) {
+				long vpos = chunkRuns.getVpos(r);
+				long blocks = chunkRuns.getBlocks(r);
+				long len = Math.min(blocks * blockSize, tailStart - pos);
+				if (chunkRuns.isHole(r) || cache.isDirty(JafsBlockView.getPage(vpos, blockSize), JafsBlockView.getPage(vpos + blocks - 1, blockSize))) {
+					copyTo(target, pos, len);
+				} else {
+					long filePos = (1 /* superblock */ + vpos) * blockSize;
+					for (long n = 0; n < len; ) {
+						n += archive.transferTo(filePos + n, len - n, target);
+					}
+				}
+				pos += len;
+			}
+		}
+		if (tailStart < size) {
+			copyTo(target, tailStart, size - tailStart);
+		}
+		fpos = size;
+		return size;
+	}
+
+	/*
+	 * Writes everything read from src to the file, starting at the file
+	 * position. Whole blocks are allocated in chunks and filled straight
+	 * from src with FileChannel.transferFrom(), the part up to the first
+	 * block boundary and small files go through the block cache. A chunk is
+	 * sized by what is left in src when it is a FileChannel, otherwise it
+	 * starts small and doubles, so a short src does not grow the archive.
+	 */
+	public long transferFrom(ReadableByteChannel src) throws JafsException, IOException {
+		long done = 0;
+		// not bb2, writeBytes() uses that one when the inlined data moves to a block
+		byte[] b = new byte[blockSize];
+		ByteBuffer buf = ByteBuffer.wrap(b);
+		while (isInlined() || (fpos & blockSizeMask) != 0) {
+			int len = (int)(blockSize - (fpos & blockSizeMask));
+			buf.clear().limit(len);
+			while (buf.hasRemaining() && src.read(buf) > 0);
+			int n = buf.position();
+			writeBytes(b, 0, n);
+			done += n;
+			if (n < len) {
+				return done;
+			}
+		}
+		FileChannel archive = vfs.getRaf().getChannel();
+		JafsBlockCache cache = vfs.getBlockCache();
+		JafsBlockRuns chunkRuns = new JafsBlockRuns();
+		boolean eof = false;
+		long chunk = TRANSFER_CHUNK_MIN * blockSize;
+		while (!eof && fpos < maxFileSizeReal) {
+			if (src instanceof FileChannel) {
+				FileChannel fc = (FileChannel)src;
+				long left = (fc.size() - fc.position() + blockSizeMask) & ~blockSizeMask;
+				chunk = Math.max(blockSize, Math.min(TRANSFER_CHUNK, left));
+			}
+			ctx.mapRange(this, fpos, Math.min(chunk, maxFileSizeReal - fpos), true, chunkRuns);
+			chunk = Math.min(2 * chunk, TRANSFER_CHUNK);
+			// with pointers the new blocks were zeroed in the block cache, that must not overwrite what is transferred
+			vfs.flushBlockCache();
+			for (int r = 0; r < chunkRuns.size() && !eof; r++) {
+				long vpos = chunkRuns.getVpos(r);
+				long blocks = chunkRuns.getBlocks(r);
+				long len = blocks * blockSize;
+				long filePos = (1 /* superblock */ + vpos) * blockSize;
+				long n = 0;
+				while (n < len) {
+					long t = archive.transferFrom(src, filePos + n, len - n);
+					if (t <= 0) {
+						eof = true;
+						break;
+					}
+					n += t;
+				}
+				long rest = blockSize - (n & blockSizeMask);
+				if (eof && rest != blockSize && fpos + n >= size) {
+					// the block was allocated for this transfer, it still holds what was on disk before
+					ByteBuffer zeros = ByteBuffer.allocate((int)rest);
+					while (zeros.hasRemaining()) {
+						archive.write(zeros, filePos + n + zeros.position());
+					}
+				}
+				cache.invalidate(JafsBlockView.getPage(vpos, blockSize), JafsBlockView.getPage(vpos + blocks - 1, blockSize));
+				fpos += n;
+				done += n;
+			}
+			if (fpos > size) {
+				size = fpos;
+				dirty = true;
+			}
+		}
+		// blocks allocated beyond the end of the file
+		ctx.freeDataAndPtrBlocks(this);
+		if (!eof) {
+			buf.clear().limit(1);
+			if (src.read(buf) > 0) {
+				throw new IllegalStateException("exceeding maximum file size: " + maxFileSizeReal);
+			}
+		}
+		return done;
+	}
+
 	long calcBlocksUsed(long size) {
 		long blocksUsed = size / blockSize;
 		if ((size & (blockSize - 1)) != 0) {
@@ -315,16 +827,65 @@ public class JafsInode {
 	}
 
 	public void freeBlocksAndDeleteInode() throws JafsException, IOException {
-		ctx.freeDataAndPtrBlocks(this);
+		releaseTail();
+		if (!isInlined()) {
+			// the pointers of an inlined inode are not read by openInode()
+			ctx.freeDataAndPtrBlocks(this);
+		}
 		ctx.freeBlock(vpos);
 	}
 
+	/*
+	 * Sets the size of the file. Shrinking frees the blocks beyond the new
+	 * size, growing adds a hole that reads as zeros and takes no blocks.
+	 */
+	public void truncate(long newSize) throws JafsException, IOException {
+		if (newSize < 0) {
+			throw new JafsException("size must be >= 0, got: " + newSize);
+		}
+		if (newSize > maxFileSizeReal) {
+			throw new JafsException("size (" + newSize + ") exceeds maximum filesize (" + maxFileSizeReal + ")");
+		}
+		long oldSize = size;
+		if (newSize == oldSize) {
+			return;
+		}
+		unpackTail();
+		if (isInlined() && newSize > maxInlinedSize) {
+			undoInlined();
+		}
+		if (isInlined()) {
+			// bytes beyond the end of the file are zero
+			int from = (int)Math.min(oldSize, newSize);
+			int to = (int)Math.max(oldSize, newSize);
+			Arrays.fill(bb2, 0, to - from, (byte)0);
+			JafsBlockView iblock = view(vpos);
+			iblock.seekSet(INODE_HEADER_SIZE + from);
+			iblock.writeBytes(bb2, to - from);
+		} else if (newSize < oldSize && (newSize & blockSizeMask) != 0) {
+			// the tail of the last block becomes visible again when the file grows
+			ctx.mapRange(this, newSize, 1, false, runs);
+			if (!runs.isHole(0)) {
+				int off = (int)(newSize & blockSizeMask);
+				Arrays.fill(bb2, 0, blockSize - off, (byte)0);
+				JafsBlockView block = view(runs.getVpos(0));
+				block.seekSet(off);
+				block.writeBytes(bb2, blockSize - off);
+			}
+		}
+		size = newSize;
+		flushInode();
+		if (newSize < oldSize) {
+			freeBlocks(oldSize);
+		}
+	}
+
 	public void freeBlocks(long oldSize) throws JafsException, IOException {
         if (!isInlined()) {
 			if (calcBlocksUsed(size) < calcBlocksUsed(oldSize)) {
 				ctx.freeDataAndPtrBlocks(this);
 			}
-			if (ptrs[0] != 0 && size <= maxInlinedSize) {
+			if (hasBlocks() && size <= maxInlinedSize) {
 				redoInlined();
 			}
         }
@@ -5,108 +5,304 @@ import nl.v4you.jafs.JafsException;
 
 import java.io.IOException;
 
+/*
+ * The first pointers of an inode point to data blocks, the last pointers
+ * point to a single, double (and with 64-bit pointers a triple) indirect
+ * pointer block.
+ *
+ * With FEATURE_TAILS the inode block ends with a reference to the fragment
+ * holding the tail of the file (see JafsInode), so there is one pointer less.
+ */
 public class JafsInodeContext {
 	public static final long MAX_FILE_SIZE = 4L * 1024L * 1024L * 1024L;
+	public static final long MAX_FILE_SIZE_64 = 1L << 62;
 	public static final int BYTES_PER_PTR = 4;
+	public static final int BYTES_PER_PTR_64 = 8;
 
 	private final Jafs vfs;
+	private final int ptrSize;
 	private final int ptrsPerInode;
 	private final int ptrsPerPtrBlock;
-	
+	private final int indirectLevels;
+	private final int tailRefSize;
+	private final int directPtrs;
+	private final JafsExtents extents;
+	private final byte[] ptrBuf;
+	private final JafsBlockView view;
+
 	final long maxFileSizeReal;
 	final int blockSize;
-	final long level0MaxSize;
-	final long level1MaxSize;
+	// first file position and number of bytes covered by each indirect level
+	final long[] levelStart;
+	final long[] levelSpan;
+	final long maxExtentFileSize;
 
 	public static long calcMaxFileSize(long blkSize) {
-		long pPerInode = (blkSize - JafsInode.INODE_HEADER_SIZE) / BYTES_PER_PTR;
-		long pPerBlock = blkSize / JafsInodeContext.BYTES_PER_PTR;
-		long maxSize = blkSize * ((pPerInode - 2) + pPerBlock + (pPerBlock * pPerBlock));
-		if (maxSize > JafsInodeContext.MAX_FILE_SIZE) {
-			maxSize = JafsInodeContext.MAX_FILE_SIZE;
+		return calcMaxFileSize(blkSize, BYTES_PER_PTR);
+	}
+
+	public static long calcMaxFileSize(long blkSize, int ptrSize) {
+		return calcMaxFileSize(blkSize, ptrSize, 0);
+	}
+
+	static long calcMaxFileSize(long blkSize, int ptrSize, int tailRefSize) {
+		long pPerInode = (blkSize - JafsInode.INODE_HEADER_SIZE - tailRefSize) / ptrSize;
+		long pPerBlock = blkSize / ptrSize;
+		int levels = calcIndirectLevels(ptrSize);
+		long blocks = pPerInode - levels;
+		long levelBlocks = 1;
+		for (int l = 1; l <= levels; l++) {
+			levelBlocks *= pPerBlock;
+			blocks += levelBlocks;
+		}
+		long maxSize = blkSize * blocks;
+		long cap = ptrSize == BYTES_PER_PTR ? MAX_FILE_SIZE : MAX_FILE_SIZE_64;
+		if (maxSize > cap) {
+			maxSize = cap;
 		}
 		return maxSize;
 	}
 
+	private static int calcIndirectLevels(int ptrSize) {
+		return ptrSize == BYTES_PER_PTR ? 2 : 3;
+	}
+
 	public JafsInodeContext(Jafs vfs, int blockSize) {
 		this.vfs = vfs;
+		view = new JafsBlockView(vfs);
 		this.blockSize = blockSize;
-		ptrsPerInode = (blockSize - JafsInode.INODE_HEADER_SIZE) / BYTES_PER_PTR;
-		ptrsPerPtrBlock = blockSize / BYTES_PER_PTR;
-		level0MaxSize = (ptrsPerInode - 2) * (long)blockSize;
-		level1MaxSize = level0MaxSize + ptrsPerPtrBlock * (long)blockSize;
-		maxFileSizeReal = calcMaxFileSize(blockSize);
+		ptrSize = vfs.getSuper().hasFeature(JafsSuper.FEATURE_64BIT) ? BYTES_PER_PTR_64 : BYTES_PER_PTR;
+		tailRefSize = vfs.getSuper().hasFeature(JafsSuper.FEATURE_TAILS) ? ptrSize + 1 : 0;
+		ptrsPerInode = (blockSize - JafsInode.INODE_HEADER_SIZE - tailRefSize) / ptrSize;
+		ptrsPerPtrBlock = blockSize / ptrSize;
+		indirectLevels = calcIndirectLevels(ptrSize);
+		directPtrs = ptrsPerInode - indirectLevels;
+		levelStart = new long[indirectLevels + 1];
+		levelSpan = new long[indirectLevels + 1];
+		levelSpan[0] = directPtrs * (long)blockSize;
+		for (int l = 1; l <= indirectLevels; l++) {
+			levelStart[l] = levelStart[l - 1] + levelSpan[l - 1];
+			levelSpan[l] = (l == 1 ? blockSize : levelSpan[l - 1]) * (long)ptrsPerPtrBlock;
+		}
+		maxFileSizeReal = calcMaxFileSize(blockSize, ptrSize, tailRefSize);
+		maxExtentFileSize = ptrSize == BYTES_PER_PTR ? MAX_FILE_SIZE : MAX_FILE_SIZE_64;
+		extents = new JafsExtents(vfs, blockSize, ptrSize, blockSize - JafsInode.INODE_HEADER_SIZE - tailRefSize);
+		ptrBuf = new byte[blockSize];
+	}
+
+	private JafsBlockView view(long vpos) {
+		view.setVpos(vpos);
+		return view;
 	}
 
 	int getPtrsPerInode() {
 		return ptrsPerInode;
 	}
 
-	private void createNewBlock(JafsInode inode, int n, boolean isPtrBlock) throws JafsException, IOException {
+	int getPtrSize() {
+		return ptrSize;
+	}
+
+	int getTailRefSize() {
+		return tailRefSize;
+	}
+
+	int getIndirectLevels() {
+		return indirectLevels;
+	}
+
+	JafsExtents getExtents() {
+		return extents;
+	}
+
+	long getMaxFileSize(JafsInode inode) {
+		return inode.isExtents() ? maxExtentFileSize : maxFileSizeReal;
+	}
+
+	private void createNewBlock(JafsInode inode, int n) throws JafsException, IOException {
 		long ptr = vfs.getAvailableVpos();
-		if (isPtrBlock) {
-			JafsBlockView block = new JafsBlockView(vfs, ptr);
-			block.initZeros();
-		}
+		inode.forgetCursor(ptr);
+		// data blocks are zeroed too, the part that is not written might be a hole
+		JafsBlockView block = view(ptr);
+		block.initZeros();
 		inode.ptrs[n] = ptr;
 		inode.flushInode();
 	}
 
-	private long getBlkPos(int level, long bpos, long off, long len, long fpos) throws JafsException, IOException {
-		JafsBlockView block = new JafsBlockView(vfs, bpos);
-		if (level == 0) {
-			// data block is reached
-			return bpos;
-		} else {
-			// Create new data block (ptr in ptr block)
+	private void writePtr(long bpos, int idx, long ptr) throws JafsException, IOException {
+		JafsBlockView block = view(bpos);
+		block.seekSet(idx * ptrSize);
+		Util.ptrToArray(ptrBuf, 0, ptr, ptrSize);
+		block.writeBytes(ptrBuf, ptrSize);
+	}
+
+	private long readPtr(long bpos, int idx) throws JafsException, IOException {
+		JafsBlockView block = view(bpos);
+		block.seekSet(idx * ptrSize);
+		return ptrSize == BYTES_PER_PTR ? block.readInt() : block.readLong();
+	}
+
+	/*
+	 * Returns the pointers of pointer block bpos at the given level, the inode
+	 * remembers the last pointer block per level so walking a file sequentially
+	 * only reads a pointer block once.
+	 */
+	private long[] getPtrBlock(JafsInode inode, int level, long bpos) throws JafsException, IOException {
+		long[] blockPtrs = inode.cursorPtrs[level];
+		if (blockPtrs == null) {
+			blockPtrs = new long[ptrsPerPtrBlock];
+			inode.cursorPtrs[level] = blockPtrs;
+		}
+		if (inode.cursorBpos[level] != bpos) {
+			JafsBlockView block = view(bpos);
+			block.seekSet(0);
+			block.readPtrs(blockPtrs, ptrsPerPtrBlock, ptrSize);
+			inode.cursorBpos[level] = bpos;
+		}
+		return blockPtrs;
+	}
+
+	private long createNewBlock(JafsInode inode, long bpos, long[] blockPtrs, int idx) throws JafsException, IOException {
+		// Create new data block (ptr in ptr block)
+		long ptr = vfs.getAvailableVpos();
+		inode.forgetCursor(ptr);
+		writePtr(bpos, idx, ptr);
+		blockPtrs[idx] = ptr;
+		// init ptr block with zeros
+		JafsBlockView block = view(ptr);
+		block.initZeros();
+		return ptr;
+	}
+
+	private long getBlkPos(JafsInode inode, int level, long bpos, long off, long len, long fpos) throws JafsException, IOException {
+		while (level > 0) {
+			long[] blockPtrs = getPtrBlock(inode, level, bpos);
 			long nextLen = len / ptrsPerPtrBlock;
 			int idx = (int)((fpos - off) / nextLen);
-			block.seekSet(idx << 2);
-			long ptr = block.readInt();
+			long ptr = blockPtrs[idx];
 			if (ptr == 0) {
-				ptr = vfs.getAvailableVpos();
-				block.seekSet(idx << 2);
-				block.writeInt(ptr);
-				// init ptr block with zeros
-				block = new JafsBlockView(vfs, ptr);
-				block.initZeros();
+				ptr = createNewBlock(inode, bpos, blockPtrs, idx);
 			}
-			return getBlkPos(level - 1, ptr, off + idx * nextLen, nextLen, fpos);
+			off += idx * nextLen;
+			len = nextLen;
+			bpos = ptr;
+			level--;
 		}
+		// data block is reached
+		return bpos;
 	}
 
 	long getBlkPos(JafsInode inode, long fpos) throws JafsException, IOException {
 		if (fpos < 0) {
 			throw new JafsException("file position cannot be negative, got: " + fpos);
 		}
-		if (fpos >= maxFileSizeReal) {
+		if (fpos >= getMaxFileSize(inode)) {
 			// fpos is zero-based
-			throw new JafsException("file position (" + fpos + ") exceeds maximum filesize (" + maxFileSizeReal + ")");
+			throw new JafsException("file position (" + fpos + ") exceeds maximum filesize (" + getMaxFileSize(inode) + ")");
+		}
+		if (inode.isExtents()) {
+			return extents.getBlkPos(inode, fpos);
 		}
-		if (fpos < level0MaxSize) {
+		if (fpos < levelStart[1]) {
 			int idx = (int)(fpos / blockSize);
 			if (inode.ptrs[idx] == 0) {
 				// Create new data block (ptr in inode)
-				createNewBlock(inode, idx, false);
+				createNewBlock(inode, idx);
 			}
 			return inode.ptrs[idx];
 		}
-		if (fpos < level1MaxSize) {
-			int idx = ptrsPerInode - 2;
-			if (inode.ptrs[idx] == 0) {
-				// Create new ptr block
-				createNewBlock(inode, idx, true);
-			}
-			long lengthRemaining = level1MaxSize - level0MaxSize;
-			return getBlkPos(1, inode.ptrs[idx], level0MaxSize, lengthRemaining, fpos);
+		int level = 1;
+		while (fpos >= levelStart[level] + levelSpan[level]) {
+			level++;
 		}
-		int idx = ptrsPerInode - 1;
+		int idx = directPtrs + level - 1;
 		if (inode.ptrs[idx] == 0) {
 			// Create new ptr block
-			createNewBlock(inode, idx, true);
+			createNewBlock(inode, idx);
+		}
+		return getBlkPos(inode, level, inode.ptrs[idx], levelStart[level], levelSpan[level], fpos);
+	}
+
+	/*
+	 * Maps the byte range [fpos, fpos + len) of the file onto runs of
+	 * consecutive blocks, walking the pointer tree only once. Missing
+	 * blocks are allocated when allocate is true, otherwise they are
+	 * reported as holes.
+	 */
+	public void mapRange(JafsInode inode, long fpos, long len, boolean allocate, JafsBlockRuns runs) throws JafsException, IOException {
+		runs.clear();
+		if (len <= 0) {
+			return;
+		}
+		if (fpos < 0) {
+			throw new JafsException("file position cannot be negative, got: " + fpos);
+		}
+		if (fpos + len > getMaxFileSize(inode)) {
+			throw new JafsException("file position (" + (fpos + len) + ") exceeds maximum filesize (" + getMaxFileSize(inode) + ")");
+		}
+		if (inode.isExtents()) {
+			extents.mapRange(inode, fpos, len, allocate, runs);
+			return;
+		}
+		long first = fpos / blockSize;
+		long last = (fpos + len - 1) / blockSize;
+		for (; first <= last && first < directPtrs; first++) {
+			int idx = (int)first;
+			if (inode.ptrs[idx] == 0 && allocate) {
+				createNewBlock(inode, idx);
+			}
+			runs.add(inode.ptrs[idx], 1);
+		}
+		for (int level = 1; level <= indirectLevels && first <= last; level++) {
+			long levelFirst = levelStart[level] / blockSize;
+			long levelEnd = levelFirst + levelSpan[level] / blockSize;
+			if (first < levelEnd) {
+				long end = Math.min(last, levelEnd - 1);
+				mapRange(inode, directPtrs + level - 1, level, first - levelFirst, end - levelFirst, allocate, runs);
+				first = end + 1;
+			}
+		}
+	}
+
+	private void mapRange(JafsInode inode, int n, int level, long from, long to, boolean allocate, JafsBlockRuns runs) throws JafsException, IOException {
+		if (inode.ptrs[n] == 0) {
+			if (!allocate) {
+				runs.add(0, to - from + 1);
+				return;
+			}
+			createNewBlock(inode, n);
+		}
+		mapPtrBlock(inode, level, inode.ptrs[n], from, to, allocate, runs);
+	}
+
+	/*
+	 * from and to are block numbers relative to the first block covered by pointer block bpos
+	 */
+	private void mapPtrBlock(JafsInode inode, int level, long bpos, long from, long to, boolean allocate, JafsBlockRuns runs) throws JafsException, IOException {
+		// the cursor keeps the pointers of this level while the level below is walked
+		long[] blockPtrs = getPtrBlock(inode, level, bpos);
+		long perChild = 1;
+		for (int l = 1; l < level; l++) {
+			perChild *= ptrsPerPtrBlock;
+		}
+		for (int idx = (int)(from / perChild); idx <= (int)(to / perChild); idx++) {
+			long childStart = idx * perChild;
+			long childFrom = Math.max(from, childStart) - childStart;
+			long childTo = Math.min(to, childStart + perChild - 1) - childStart;
+			long ptr = blockPtrs[idx];
+			if (ptr == 0) {
+				if (!allocate) {
+					runs.add(0, childTo - childFrom + 1);
+					continue;
+				}
+				ptr = createNewBlock(inode, bpos, blockPtrs, idx);
+			}
+			if (level == 1) {
+				runs.add(ptr, 1);
+			} else {
+				mapPtrBlock(inode, level - 1, ptr, childFrom, childTo, allocate, runs);
+			}
 		}
-		long lengthRemaining = maxFileSizeReal - level1MaxSize;
-		return getBlkPos(2, inode.ptrs[idx], level1MaxSize, lengthRemaining, fpos);
 	}
 
 	void freeBlock(long bpos) throws JafsException, IOException {
@@ -125,45 +321,54 @@ public class JafsInodeContext {
 		} else {
 		    // this is a pointer block
 			levelSize /= ptrsPerPtrBlock;
-			JafsBlockView dum = new JafsBlockView(vfs, bpos);
-			dum.seekSet(0);
-			boolean allHasBeenDeleted = true;
-			for (int n = 0; n < ptrsPerPtrBlock; n++) {
-				long ptr = dum.readInt();
+			// children that end before size are kept, so they are not visited at all
+			int first = size <= fPosStart ? 0 : (int)((size - fPosStart) / levelSize);
+			boolean allHasBeenDeleted = first == 0;
+			for (int n = first; n < ptrsPerPtrBlock; n++) {
+				long ptr = readPtr(bpos, n);
 				if (ptr != 0) {
 					long posStart = fPosStart + n * levelSize;
-					if (size <= posStart) {
-						if (free(size, ptr, posStart, levelSize)) {
-							dum.seekSet(n * 4);
-							dum.writeInt(0);
-						} else {
-							allHasBeenDeleted = false;
-						}
+					if (size < (posStart + levelSize) && free(size, ptr, posStart, levelSize)) {
+						writePtr(bpos, n, 0);
+					} else {
+						allHasBeenDeleted = false;
 					}
-				} else {
-					break;
 				}
 			}
+			if (allHasBeenDeleted) {
+				// the pointer block itself is no longer needed
+				freeBlock(bpos);
+			}
 			return allHasBeenDeleted;
 		}
 	}
 
 	void freeDataAndPtrBlocks(JafsInode inode) throws JafsException, IOException {
+		// pointer blocks are about to change or be freed
+		inode.resetCursor();
+		if (inode.isExtents()) {
+			extents.truncate(inode);
+			return;
+		}
 		boolean flushInode = false;
-		for (int n = 0; n < ptrsPerInode && inode.ptrs[n] != 0; n++) {
-			long fPosStart = 0;
-			long fPosEnd = 0;
-			if (n < (ptrsPerInode - 2)) {
+		// the data blocks before the end of the file are kept
+		int firstPtr = (int)Math.min(directPtrs, (inode.size + blockSize - 1) / blockSize);
+		for (int n = firstPtr; n < ptrsPerInode; n++) {
+			if (inode.ptrs[n] == 0) {
+				// a hole
+				continue;
+			}
+			long fPosStart;
+			long fPosEnd;
+			if (n < directPtrs) {
 				fPosStart = n * (long)blockSize;
 				fPosEnd = (n + 1) * (long)blockSize;
-			} else if (n == (ptrsPerInode - 2)) {
-				fPosStart = level0MaxSize;
-				fPosEnd = level1MaxSize;
-			} else if (n == (ptrsPerInode - 1)) {
-				fPosStart = level1MaxSize;
-				fPosEnd = maxFileSizeReal;
+			} else {
+				int level = n - directPtrs + 1;
+				fPosStart = levelStart[level];
+				fPosEnd = levelStart[level] + levelSpan[level];
 			}
-			if ((inode.size <= fPosStart) && (free(inode.size, inode.ptrs[n], fPosStart, fPosEnd - fPosStart))) {
+			if ((inode.size < fPosEnd) && (free(inode.size, inode.ptrs[n], fPosStart, fPosEnd - fPosStart))) {
 				inode.ptrs[n] = 0;
 				flushInode = true;
 			}
@@ -180,11 +385,12 @@ public class JafsInodeContext {
 		sb.append("Max file size real : ").append(maxFileSizeReal).append("\n");
 		sb.append("Pointers per iNode : ").append(getPtrsPerInode()).append("\n");
 		sb.append("Pointers per block : ").append(this.ptrsPerPtrBlock).append("\n");
-		for (int i = 0; i < ptrsPerInode - 2; i++) {
+		for (int i = 0; i < directPtrs; i++) {
 			sb.append(i).append(": depth=0, start=").append(i * blockSize).append(", end=").append((i + 1) * blockSize).append("\n");
 		}
-		sb.append((ptrsPerInode - 2)).append(": depth=1, start=").append(level0MaxSize).append(", end=").append(level1MaxSize).append("\n");
-		sb.append((ptrsPerInode - 1)).append(": depth=2, start=").append(level1MaxSize).append(", end=").append(maxFileSizeReal).append("\n");
+		for (int l = 1; l <= indirectLevels; l++) {
+			sb.append(directPtrs + l - 1).append(": depth=").append(l).append(", start=").append(levelStart[l]).append(", end=").append(Math.min(maxFileSizeReal, levelStart[l] + levelSpan[l])).append("\n");
+		}
 		return sb.toString();
 	}
 }
@@ -1,7 +1,9 @@
 package nl.v4you.jafs.internal;
 
 import nl.v4you.jafs.Jafs;
+import nl.v4you.jafs.JafsException;
 
+import java.io.IOException;
 import java.util.LinkedList;
 
 public class JafsInodePool {
@@ -26,11 +28,33 @@ public class JafsInodePool {
 //        return new JafsInode(vfs);
     }
 
-    public void release(JafsInode inode) {
+    public void release(JafsInode inode) throws JafsException, IOException {
         busy.remove(inode);
+        inode.flush();
         free.add(inode);
     }
 
+    /*
+     * Writes the deferred sizes of the claimed inodes
+     */
+    public void flush() throws JafsException, IOException {
+        for (JafsInode inode : busy) {
+            inode.flush();
+        }
+    }
+
+    /*
+     * A claimed inode at vpos whose size is not written yet, like the one of an open output stream
+     */
+    public JafsInode getUnflushed(long vpos) {
+        for (JafsInode inode : busy) {
+            if (inode.getVpos() == vpos && inode.isSizeDirty()) {
+                return inode;
+            }
+        }
+        return null;
+    }
+
     public String stats() {
         return "   free    : " + free.size()+"\n   busy    : " + busy.size()+"\n";
     }
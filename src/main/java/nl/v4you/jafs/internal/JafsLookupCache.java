@@ -0,0 +1,74 @@
+package nl.v4you.jafs.internal;
+
+import nl.v4you.hash.OneAtATimeHash;
+
+/*
+ * Answers lookups of names that do not exist. It remembers the names that were
+ * not found, by the bpos of their directory, until they are created there.
+ * Hashed directories can also get a Bloom filter of their names, it is built
+ * when the first name is looked up and updated when names are created.
+ */
+public class JafsLookupCache {
+
+    private final LRUCache<JafsDirName, Boolean> misses;
+    private final LRUCache<Long, JafsBloomFilter> filters;
+    private boolean filtersEnabled = false;
+
+    public JafsLookupCache(int missesSize, int filtersSize) {
+        misses = new LRUCache<>(missesSize);
+        filters = new LRUCache<>(filtersSize);
+    }
+
+    public void setFiltersEnabled(boolean enabled) {
+        filtersEnabled = enabled;
+        if (!enabled) {
+            filters.clear();
+        }
+    }
+
+    boolean isFiltersEnabled() {
+        return filtersEnabled;
+    }
+
+    boolean isMiss(long dirBpos, byte[] name) {
+        return misses.get(new JafsDirName(dirBpos, name)) != null;
+    }
+
+    void addMiss(long dirBpos, byte[] name) {
+        JafsDirName miss = new JafsDirName(dirBpos, name);
+        if (misses.get(miss) == null) {
+            misses.add(miss, Boolean.TRUE);
+        }
+    }
+
+    /*
+     * Called when name is created in the directory at dirBpos
+     */
+    void created(long dirBpos, byte[] name) {
+        misses.remove(new JafsDirName(dirBpos, name));
+        JafsBloomFilter filter = filters.get(dirBpos);
+        if (filter != null) {
+            if (filter.isFull()) {
+                filters.remove(dirBpos);
+            } else {
+                filter.add(OneAtATimeHash.calcHash(name));
+            }
+        }
+    }
+
+    JafsBloomFilter getFilter(long dirBpos) {
+        return filters.get(dirBpos);
+    }
+
+    void addFilter(long dirBpos, JafsBloomFilter filter) {
+        filters.add(dirBpos, filter);
+    }
+
+    void removeFilter(long dirBpos) {
+        filters.remove(dirBpos);
+    }
+
+    public String stats() {
+        return "  misses:\n" + misses.stats() + "  filters:\n" + filters.stats();
+    }
+}
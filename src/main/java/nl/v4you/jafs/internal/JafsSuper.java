@@ -6,31 +6,87 @@ import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 
+/*
+ * The super block header is structured as follows:
+ * 4 bytes : magic "JAFS"
+ * 2 bytes : version
+ * 4 bytes : block size
+ * 4 bytes : blocks used
+ * 4 bytes : blocks total
+ * 1 byte  : is locked (archive is in use or was not closed properly)
+ * Version 2 and up:
+ * 4 bytes : feature flags
+ * 4 bytes : generation, incremented each time the archive is opened
+ * With FEATURE_64BIT:
+ * 8 bytes : blocks used
+ * 8 bytes : blocks total
+ * With FEATURE_TAILS the rest of the block, from offset 43, holds the
+ * start of the fragment index that is written on close (see JafsFragments).
+ */
 public class JafsSuper {
-	private static final int VERSION = 1;
+	private static final int VERSION_1 = 1;
+	private static final int VERSION = 2;
 	private static final int POS_BLOCK_SIZE = 6;
 	private static final int POS_BLOCKS_USED = 10;
 	private static final int POS_BLOCKS_TOTAL = 14;
 	private static final int POS_IS_LOCKED = 18;
+	private static final int POS_FEATURES = 19;
+	private static final int POS_GENERATION = 23;
+	private static final int POS_BLOCKS_USED_64 = 27;
+	private static final int POS_BLOCKS_TOTAL_64 = 35;
+	private static final int POS_FRAGMENT_INDEX = 43;
+	private static final long MAX_32 = 0xffffffffL;
 	private static final int FALSE = 0;
 	private static final int TRUE = 1;
-	private static final int HEADER_SIZE = 19;
+	private static final int HEADER_SIZE_V1 = 19;
+	private static final int HEADER_SIZE = 27;
+	private static final int HEADER_SIZE_64 = 43;
+
+	// Every unused map ends with a trailer holding its used blocks count
+	public static final int FEATURE_MAP_COUNTERS = 0x1;
+	// New inodes map their blocks with extents instead of block pointers
+	public static final int FEATURE_EXTENTS = 0x2;
+	// 8 byte block pointers, triple indirect pointer blocks and 64-bit block counters
+	public static final int FEATURE_64BIT = 0x4;
+	// The last partial block of a file is packed into a fragment shared with other files
+	public static final int FEATURE_TAILS = 0x8;
+	// Large directories are converted to a hashed directory (see JafsDir)
+	public static final int FEATURE_HASHED_DIRS = 0x10;
+	// Directory entries hold the size of their file, so that it can be listed without reading the inode
+	public static final int FEATURE_DIR_SIZES = 0x20;
+	// Directory entries hold the full 32-bit hash of their name instead of a 1-byte checksum
+	public static final int FEATURE_DIR_HASH32 = 0x40;
+
+	private static final int SUPPORTED_FEATURES = FEATURE_MAP_COUNTERS | FEATURE_EXTENTS | FEATURE_64BIT | FEATURE_TAILS | FEATURE_HASHED_DIRS | FEATURE_DIR_SIZES | FEATURE_DIR_HASH32;
+
+	public static final int DEFAULT_FEATURES = FEATURE_MAP_COUNTERS | FEATURE_EXTENTS | FEATURE_TAILS | FEATURE_HASHED_DIRS | FEATURE_DIR_SIZES | FEATURE_DIR_HASH32;
+
 	private final RandomAccessFile raf;
 	private final byte[] buf;
 
+	private int version = VERSION;
+	private int features = DEFAULT_FEATURES;
+	private long generation = 0;
 	private int blockSize = 0;
 	private long blocksTotal = 0;
 	private long blocksUsed = 0;
 	int isLocked = FALSE;
 
 	public void lock(File myFile, JafsUnusedMap unusedMap) throws JafsException, IOException {
+		// Maps stamped with the generation of the session that did not
+		// close properly are the only ones that might have stale counters
+		int suspectStamp = getGenerationStamp();
+		nextGeneration();
 		if (isLocked == TRUE) {
 			setBlocksTotal(myFile);
-			setBlocksUsed(unusedMap);
+			blocksUsed = unusedMap.recountUsedBlocks(blocksTotal, suspectStamp);
+			// the repaired maps must be on disk before the new generation is,
+			// another crash would leave them with a stamp that is trusted
+			unusedMap.flush();
 		} else {
 			isLocked = TRUE;
-			flush();
 		}
+		flush();
 	}
 
 	public void close() throws IOException {
@@ -38,13 +94,17 @@ public class JafsSuper {
 		flush();
 	}
 
-	public JafsSuper(RandomAccessFile raf, int blockSize) throws JafsException, IOException {
+	public JafsSuper(RandomAccessFile raf, int blockSize, int features) throws JafsException, IOException {
 		this.raf = raf;
 		if (raf.length() == 0) {
 			if (blockSize <= 0) {
 				throw new JafsException("Unable to create new jafs file with supplied blockSize " + blockSize);
 			}
 			this.blockSize = blockSize;
+			if ((features & ~SUPPORTED_FEATURES) != 0) {
+				throw new JafsException("Unsupported features 0x" + Integer.toHexString(features & ~SUPPORTED_FEATURES));
+			}
+			this.features = features;
 			buf = new byte[this.blockSize];
 			flush();
 		} else {
@@ -56,6 +116,11 @@ public class JafsSuper {
 				throw new JafsException("Malformed jafs file, file length (" + raf.length() + ") < block size (" + blockSize + ")");
 			}
 			buf = new byte[this.blockSize];
+			// when the archive was not closed properly the blocks of the index might have been reused
+			if (hasFeature(FEATURE_TAILS) && isLocked == FALSE) {
+				raf.seek(POS_FRAGMENT_INDEX);
+				raf.readFully(buf, POS_FRAGMENT_INDEX, getFragmentIndexSize());
+			}
 		}
 	}
 
@@ -77,7 +142,10 @@ public class JafsSuper {
 	}
 
 	void setBlocksUsed() {
-		Util.intToArray(buf, POS_BLOCKS_USED, blocksUsed);
+		Util.intToArray(buf, POS_BLOCKS_USED, Math.min(blocksUsed, MAX_32));
+		if (hasFeature(FEATURE_64BIT)) {
+			Util.longToArray(buf, POS_BLOCKS_USED_64, blocksUsed);
+		}
 	}
 
 	public void incBlocksUsed() {
@@ -95,30 +163,88 @@ public class JafsSuper {
 		setBlocksUsed();
 	}
 
+	int getFragmentIndexSize() {
+		return blockSize - POS_FRAGMENT_INDEX;
+	}
+
+	void readFragmentIndex(byte[] b) {
+		System.arraycopy(buf, POS_FRAGMENT_INDEX, b, 0, getFragmentIndexSize());
+	}
+
+	/*
+	 * Written to disk with the rest of the super block
+	 */
+	void writeFragmentIndex(byte[] b) {
+		System.arraycopy(b, 0, buf, POS_FRAGMENT_INDEX, getFragmentIndexSize());
+	}
+
 	public int getBlockSize() {
 		return blockSize;
 	}
 
+	public int getVersion() {
+		return version;
+	}
+
+	public boolean hasFeature(int feature) {
+		return (features & feature) != 0;
+	}
+
+	/*
+	 * The stamp is the lower 16 bits of the generation, 0 is never used
+	 * so a stamp of 0 always means "not written by any session".
+	 */
+	int getGenerationStamp() {
+		return (int)(generation & 0xffff);
+	}
+
+	private void nextGeneration() {
+		generation = (generation + 1) & 0xffffffffL;
+		if (getGenerationStamp() == 0) {
+			generation++;
+		}
+	}
+
 	private void readHeader() throws IOException, JafsException {
-		if (raf.length() < HEADER_SIZE) {
+		if (raf.length() < HEADER_SIZE_V1) {
 			throw new JafsException("File too small, only " + raf.length() + " bytes");
 		}
-		final byte[] header = new byte[HEADER_SIZE];
+		final byte[] header = new byte[HEADER_SIZE_64];
 		raf.seek(0);
-		if (HEADER_SIZE != raf.read(header, 0, HEADER_SIZE)) {
+		if (HEADER_SIZE_V1 != raf.read(header, 0, HEADER_SIZE_V1)) {
 			throw new JafsException("Could not read header");
 		}
 		if (!(header[0] == 'J' && header[1] == 'A' && header[2] == 'F' && header[3] == 'S')) {
 			throw new JafsException("Magic is incorrect");
 		}
-		int version = ((header[4] & 0xff) << 8) | (header[5] & 0xff);
-		if (version != VERSION) {
-			throw new JafsException("Version is incorrect, should be " + VERSION + " but got " + version);
+		version = ((header[4] & 0xff) << 8) | (header[5] & 0xff);
+		if (version != VERSION_1 && version != VERSION) {
+			throw new JafsException("Version is incorrect, should be " + VERSION_1 + " up to " + VERSION + " but got " + version);
 		}
 		blockSize = (int)Util.arrayToInt(header, POS_BLOCK_SIZE);
 		blocksUsed =  Util.arrayToInt(header, POS_BLOCKS_USED);
 		blocksTotal = Util.arrayToInt(header, POS_BLOCKS_TOTAL);
 		isLocked = header[POS_IS_LOCKED];
+		if (version == VERSION_1) {
+			features = 0;
+			generation = 0;
+		} else {
+			if (HEADER_SIZE - HEADER_SIZE_V1 != raf.read(header, HEADER_SIZE_V1, HEADER_SIZE - HEADER_SIZE_V1)) {
+				throw new JafsException("Could not read header");
+			}
+			features = (int)Util.arrayToInt(header, POS_FEATURES);
+			generation = Util.arrayToInt(header, POS_GENERATION);
+			if ((features & ~SUPPORTED_FEATURES) != 0) {
+				throw new JafsException("Archive uses unsupported features 0x" + Integer.toHexString(features & ~SUPPORTED_FEATURES));
+			}
+			if (hasFeature(FEATURE_64BIT)) {
+				if (HEADER_SIZE_64 - HEADER_SIZE != raf.read(header, HEADER_SIZE, HEADER_SIZE_64 - HEADER_SIZE)) {
+					throw new JafsException("Could not read header");
+				}
+				blocksUsed = Util.arrayToLong(header, POS_BLOCKS_USED_64);
+				blocksTotal = Util.arrayToLong(header, POS_BLOCKS_TOTAL_64);
+			}
+		}
 	}
 
 	private void flush() throws IOException {
@@ -128,30 +254,25 @@ public class JafsSuper {
 		buf[2] = 'F';
 		buf[3] = 'S';
 		buf[4] = 0;
-		buf[5] = VERSION;
+		buf[5] = (byte)version;
 		Util.intToArray(buf, POS_BLOCK_SIZE, blockSize);
-		Util.intToArray(buf, POS_BLOCKS_USED, blocksUsed);
-		Util.intToArray(buf, POS_BLOCKS_TOTAL, blocksTotal);
+		// with 64-bit counters the 32-bit fields are capped
+		Util.intToArray(buf, POS_BLOCKS_USED, Math.min(blocksUsed, MAX_32));
+		Util.intToArray(buf, POS_BLOCKS_TOTAL, Math.min(blocksTotal, MAX_32));
 		buf[POS_IS_LOCKED] = (byte)isLocked;
+		if (version != VERSION_1) {
+			Util.intToArray(buf, POS_FEATURES, features);
+			Util.intToArray(buf, POS_GENERATION, generation);
+			if (hasFeature(FEATURE_64BIT)) {
+				Util.longToArray(buf, POS_BLOCKS_USED_64, blocksUsed);
+				Util.longToArray(buf, POS_BLOCKS_TOTAL_64, blocksTotal);
+			}
+		}
 		raf.seek(0);
 		raf.write(buf, 0, blockSize);
 	}
 
 	public void setBlocksTotal(File myFile) {
-		blocksTotal = (int)(myFile.length() / blockSize) - 1 /* minus superblock */;
-	}
-
-	public void setBlocksUsed(JafsUnusedMap unusedMap) throws JafsException, IOException {
-		int count = 0;
-		long mapNumber = 0;
-		while (true) {
-			long mapBlockNumber = mapNumber * blockSize * 8;
-			if (mapBlockNumber >= blocksTotal) {
-				break;
-			}
-			count += unusedMap.countUsedBlocks((int)mapNumber);
-			mapNumber++;
-		}
-		blocksUsed = count;
+		blocksTotal = myFile.length() / blockSize - 1 /* minus superblock */;
 	}
 }
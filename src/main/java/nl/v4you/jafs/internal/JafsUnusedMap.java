@@ -4,28 +4,78 @@ import nl.v4you.jafs.Jafs;
 import nl.v4you.jafs.JafsException;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+/*
+ * An unused map is a bitmap where a set bit means the block is available.
+ * The first bit is used as the skip map flag (the map itself is always in use).
+ *
+ * The maps are kept in memory as long[] (one bit per block, same bit order as on disk)
+ * and are read and written directly from and to the archive, not through the block cache.
+ * Changed maps are written back by flush().
+ *
+ * With FEATURE_MAP_COUNTERS the map ends with a trailer:
+ * <ushort: used blocks> number of blocks in use in this map, including the map itself
+ * <ushort: stamp> generation stamp of the session that last changed this map
+ */
 public class JafsUnusedMap {
     static final int SKIP_MAP = 0x80;
     static final int BLOCKS_PER_BYTE = 8;
+    static final int TRAILER_SIZE = 2 + 2; // used blocks + generation stamp
+    private static final int PARALLEL_RECOUNT_MIN_MAPS = 64;
     final Jafs vfs;
     final JafsSuper superBlock;
     final int blocksPerUnusedMap; // blocksPerUnusedMap includes the unusedMap itself
     final int blockSize;
+    final int bitmapSize; // bytes in a map that hold block bits
+    final boolean hasCounters;
+    private final int wordsPerMap;
     private final TreeSet<Long> availableMaps = new TreeSet<>(); // alleen free() mag hier aan toevoegen
+    private final BitSet dirtyMaps = new BitSet();
+    private final ByteBuffer ioBuf;
 
+    private Bitmap[] bitmaps = new Bitmap[16];
+    private int bitmapsLoaded = 0;
     private long startAtMapNumber = 0;
 
+    private static class Bitmap {
+        final long[] words;
+        int usedBlocks;
+        int firstFreeWord; // no available blocks before this word
+
+        Bitmap(int wordsPerMap) {
+            words = new long[wordsPerMap];
+        }
+    }
+
     public JafsUnusedMap(Jafs vfs) {
         this.vfs = vfs;
         superBlock = vfs.getSuper();
         blockSize = superBlock.getBlockSize();
+        hasCounters = superBlock.hasFeature(JafsSuper.FEATURE_MAP_COUNTERS);
+        bitmapSize = hasCounters ? blockSize - TRAILER_SIZE : blockSize;
 
         // blocksPerUnusedMap includes the unusedMap itself
         // the first position however is used to indicate
         // if an unusedMap should be skipped or not (see SKIP_MAP_POSITION)
-        blocksPerUnusedMap = blockSize * BLOCKS_PER_BYTE;
+        blocksPerUnusedMap = bitmapSize * BLOCKS_PER_BYTE;
+        wordsPerMap = (bitmapSize + 7) / 8;
+        ioBuf = ByteBuffer.allocate(blockSize);
+    }
+
+    public int getBlocksPerUnusedMap() {
+        return blocksPerUnusedMap;
     }
 
     public long getMapNumber(long bpos) {
@@ -37,56 +87,70 @@ public class JafsUnusedMap {
         return n * blocksPerUnusedMap;
     }
 
+    private long getFilePos(long mapNumber) {
+        return (1 /* superblock */ + mapNumber * blocksPerUnusedMap) * blockSize;
+    }
+
+    private void readMap(FileChannel channel, ByteBuffer map, long mapNumber) throws JafsException, IOException {
+        long filePos = getFilePos(mapNumber);
+        map.clear();
+        while (map.hasRemaining()) {
+            if (channel.read(map, filePos + map.position()) < 0) {
+                throw new JafsException("Malformed jafs file, unused map " + mapNumber + " is beyond the end of the file");
+            }
+        }
+    }
+
+    private void putBitmap(int mapNumber, Bitmap bitmap) {
+        if (mapNumber >= bitmaps.length) {
+            bitmaps = Arrays.copyOf(bitmaps, Math.max(mapNumber + 1, 2 * bitmaps.length));
+        }
+        if (bitmaps[mapNumber] == null) {
+            bitmapsLoaded++;
+        }
+        bitmaps[mapNumber] = bitmap;
+    }
+
+    private Bitmap getBitmap(long mapNumber) throws JafsException, IOException {
+        if (mapNumber < bitmaps.length && bitmaps[(int)mapNumber] != null) {
+            return bitmaps[(int)mapNumber];
+        }
+        readMap(vfs.getRaf().getChannel(), ioBuf, mapNumber);
+        Bitmap bitmap = new Bitmap(wordsPerMap);
+        int freeBlocks = 0;
+        for (int w = 0; w < wordsPerMap; w++) {
+            int idx = w << 3;
+            long word;
+            if (idx + 8 <= bitmapSize) {
+                word = ioBuf.getLong(idx);
+            } else {
+                // a partial last word, the padding is never available
+                word = (ioBuf.getInt(idx) & 0xffffffffL) << 32;
+            }
+            if (w == 0) {
+                word &= ~0x8000000000000000L; // skip map flag, the map itself is in use
+            }
+            bitmap.words[w] = word;
+            freeBlocks += Long.bitCount(word);
+        }
+        bitmap.usedBlocks = blocksPerUnusedMap - freeBlocks;
+        putBitmap((int)mapNumber, bitmap);
+        return bitmap;
+    }
+
     private long getBposFromUnusedMap(long mapNumber) throws JafsException, IOException {
-        long curBpos = mapNumber * blocksPerUnusedMap;
-        JafsBlockView block = new JafsBlockView(vfs, curBpos);
-        block.seekSet(0);
-        if ((block.peekSkipMapByte() & SKIP_MAP) != 0) {
+        Bitmap bitmap = getBitmap(mapNumber);
+        if (bitmap.usedBlocks == blocksPerUnusedMap) {
             return 0;
         }
-        block.seekSet(0);
-        int blockSizeDiv4 = blockSize / 4;
-        for (int m = 0; m < blockSizeDiv4; m++) {
-            long b = block.readInt();
-            if (b != 0) {
-                if ((b & 0x80000000L) != 0) return curBpos;
-                if ((b & 0x40000000L) != 0) return curBpos + 1;
-                if ((b & 0x20000000L) != 0) return curBpos + 2;
-                if ((b & 0x10000000L) != 0) return curBpos + 3;
-                if ((b & 0x8000000L) != 0) return curBpos + 4;
-                if ((b & 0x4000000L) != 0) return curBpos + 5;
-                if ((b & 0x2000000L) != 0) return curBpos + 6;
-                if ((b & 0x1000000L) != 0) return curBpos + 7;
-                if ((b & 0x800000L) != 0) return curBpos + 8;
-                if ((b & 0x400000L) != 0) return curBpos + 9;
-                if ((b & 0x200000L) != 0) return curBpos + 10;
-                if ((b & 0x100000L) != 0) return curBpos + 11;
-                if ((b & 0x80000L) != 0) return curBpos + 12;
-                if ((b & 0x40000L) != 0) return curBpos + 13;
-                if ((b & 0x20000L) != 0) return curBpos + 14;
-                if ((b & 0x10000L) != 0) return curBpos + 15;
-                if ((b & 0x8000L) != 0) return curBpos + 16;
-                if ((b & 0x4000L) != 0) return curBpos + 17;
-                if ((b & 0x2000L) != 0) return curBpos + 18;
-                if ((b & 0x1000L) != 0) return curBpos + 19;
-                if ((b & 0x800L) != 0) return curBpos + 20;
-                if ((b & 0x400L) != 0) return curBpos + 21;
-                if ((b & 0x200L) != 0) return curBpos + 22;
-                if ((b & 0x100L) != 0) return curBpos + 23;
-                if ((b & 0x80L) != 0) return curBpos + 24;
-                if ((b & 0x40L) != 0) return curBpos + 25;
-                if ((b & 0x20L) != 0) return curBpos + 26;
-                if ((b & 0x10L) != 0) return curBpos + 27;
-                if ((b & 0x8L) != 0) return curBpos + 28;
-                if ((b & 0x4L) != 0) return curBpos + 29;
-                if ((b & 0x2L) != 0) return curBpos + 30;
-                if ((b & 0x1L) != 0) return curBpos + 31;
-            }
-            curBpos += 4 * BLOCKS_PER_BYTE;
-        }
-        // skip this unusedMap next time it gets visited
-        block.seekSet(0);
-        block.pokeSkipMapByte(0x80);
+        long[] words = bitmap.words;
+        for (int w = bitmap.firstFreeWord; w < wordsPerMap; w++) {
+            if (words[w] != 0) {
+                bitmap.firstFreeWord = w;
+                return mapNumber * blocksPerUnusedMap + (w << 6) + Long.numberOfLeadingZeros(words[w]);
+            }
+        }
+        bitmap.firstFreeWord = wordsPerMap;
         return 0;
     }
 
@@ -119,58 +183,201 @@ public class JafsUnusedMap {
         return 0;
     }
 
-    private int getUnusedIdx(long bpos) {
-        return (int)((bpos & (blocksPerUnusedMap - 1)) >>> 3);
+    public boolean isAvailable(long bpos) throws JafsException, IOException {
+        long mapNumber = getMapNumber(bpos);
+        Bitmap bitmap = getBitmap(mapNumber);
+        int idx = (int)(bpos - mapNumber * blocksPerUnusedMap);
+        return (bitmap.words[idx >>> 6] & (0x8000000000000000L >>> (idx & 63))) != 0;
     }
 
     public void setUnavailable(long bpos) throws JafsException, IOException {
-        JafsBlockView block = new JafsBlockView(vfs, getUnusedMapBpos(bpos));
-        // Set to 0
-        int idx = getUnusedIdx(bpos);
-        int b = block.peekByte(idx);
-        b &= ~(0b10000000 >>> (bpos & 0x7)); // set block data bit to unused (0)
-        block.pokeByte(idx, b);
+        long mapNumber = getMapNumber(bpos);
+        Bitmap bitmap = getBitmap(mapNumber);
+        int idx = (int)(bpos - mapNumber * blocksPerUnusedMap);
+        long mask = 0x8000000000000000L >>> (idx & 63);
+        long[] words = bitmap.words;
+        if ((words[idx >>> 6] & mask) != 0) {
+            // Set to 0
+            words[idx >>> 6] &= ~mask;
+            bitmap.usedBlocks++;
+            dirtyMaps.set((int)mapNumber);
+        }
     }
 
     public void setAvailable(long bpos) throws JafsException, IOException {
-        JafsBlockView block = new JafsBlockView(vfs, getUnusedMapBpos(bpos));
-        // Set to 1
-        int idx = getUnusedIdx(bpos);
-        int b = block.peekByte(idx);
-        b |= 0b10000000 >>> (bpos & 0x7); // set block data bit to used (1)
-        block.pokeByte(idx, b);
-
-        // don't skip this map next time we look for a free block
-        b = block.peekSkipMapByte();
-        block.pokeSkipMapByte(b & 0x7f);
-
-        availableMaps.add(getMapNumber(bpos));
+        long mapNumber = getMapNumber(bpos);
+        Bitmap bitmap = getBitmap(mapNumber);
+        int idx = (int)(bpos - mapNumber * blocksPerUnusedMap);
+        long mask = 0x8000000000000000L >>> (idx & 63);
+        long[] words = bitmap.words;
+        if ((words[idx >>> 6] & mask) == 0) {
+            // Set to 1
+            words[idx >>> 6] |= mask;
+            bitmap.usedBlocks--;
+            if ((idx >>> 6) < bitmap.firstFreeWord) {
+                bitmap.firstFreeWord = idx >>> 6;
+            }
+            dirtyMaps.set((int)mapNumber);
+        }
+        availableMaps.add(mapNumber);
     }
 
     public void initializeUnusedMap(long unusedMapBpos) throws JafsException, IOException {
         if (unusedMapBpos != getUnusedMapBpos(unusedMapBpos)) {
             throw new JafsException("supplied bpos is not an unused map bpos");
         }
-        JafsBlockView block = new JafsBlockView(vfs, unusedMapBpos);
-        block.initOnes();
-        block.pokeSkipMapByte(0b01111111);
+        long mapNumber = getMapNumber(unusedMapBpos);
+        Bitmap bitmap = new Bitmap(wordsPerMap);
+        Arrays.fill(bitmap.words, -1L);
+        if ((bitmapSize & 7) != 0) {
+            bitmap.words[wordsPerMap - 1] = 0xffffffff00000000L;
+        }
+        bitmap.words[0] &= ~0x8000000000000000L; // the map itself
+        bitmap.usedBlocks = 1;
+        putBitmap((int)mapNumber, bitmap);
+        dirtyMaps.set((int)mapNumber);
     }
 
-    public int countUsedBlocks(int mapNumber) throws JafsException, IOException {
-        long curBpos = mapNumber * (long)blocksPerUnusedMap;
-        JafsBlockView block = new JafsBlockView(vfs, curBpos);
-        block.seekSet(0);
+    /*
+     * Writes the changed maps to the archive
+     */
+    public void flush() throws IOException {
+        FileChannel channel = vfs.getRaf().getChannel();
+        int stamp = superBlock.getGenerationStamp();
+        for (int mapNumber = dirtyMaps.nextSetBit(0); mapNumber >= 0; mapNumber = dirtyMaps.nextSetBit(mapNumber + 1)) {
+            Bitmap bitmap = bitmaps[mapNumber];
+            ioBuf.clear();
+            for (int w = 0; w < wordsPerMap; w++) {
+                int idx = w << 3;
+                if (idx + 8 <= bitmapSize) {
+                    ioBuf.putLong(idx, bitmap.words[w]);
+                } else {
+                    ioBuf.putInt(idx, (int)(bitmap.words[w] >>> 32));
+                }
+            }
+            if (bitmap.usedBlocks == blocksPerUnusedMap) {
+                // skip this unusedMap next time it gets visited
+                ioBuf.put(0, (byte)(ioBuf.get(0) | SKIP_MAP));
+            }
+            if (hasCounters) {
+                ioBuf.putShort(bitmapSize, (short)bitmap.usedBlocks);
+                ioBuf.putShort(bitmapSize + 2, (short)stamp);
+            }
+            long filePos = getFilePos(mapNumber);
+            while (ioBuf.hasRemaining()) {
+                channel.write(ioBuf, filePos + ioBuf.position());
+            }
+        }
+        dirtyMaps.clear();
+    }
 
+    public String stats() {
+        return "   loaded  : " + bitmapsLoaded + "\n   dirty   : " + dirtyMaps.cardinality() + "\n";
+    }
+
+    /*
+     * Counts the used blocks of a map straight from its bitmap, a word at a time.
+     */
+    private int countUsedBlocks(ByteBuffer map) {
         int count = 1; // unused block itself
-        int b = block.readByte();
-        for (int i = 6; i >= 0; i--) {
-            if ((b & (1 << i)) == 0) count++;
+        // the first bit is the skip map flag, not a block
+        count += Long.bitCount(~(map.getLong(0) | 0x8000000000000000L));
+        int idx = 8;
+        for (; idx + 8 <= bitmapSize; idx += 8) {
+            count += Long.bitCount(~map.getLong(idx));
+        }
+        for (; idx < bitmapSize; idx += 4) {
+            count += Integer.bitCount(~map.getInt(idx));
         }
-        for (int j = 1; j < blockSize; j++) {
-            b = block.readByte();
-            for (int i = 7; i >= 0; i--) {
-                if ((b & (1 << i)) == 0) count++;
+        return count;
+    }
+
+    /*
+     * Returns the number of used blocks of the maps [mapFrom, mapTo). Maps with
+     * a trusted trailer are not recounted, the others are added to repairs so
+     * their trailer gets rewritten.
+     */
+    private long recountUsedBlocks(FileChannel channel, long mapFrom, long mapTo, int suspectStamp, List<Long> repairs) throws JafsException, IOException {
+        ByteBuffer map = ByteBuffer.allocate(blockSize);
+        long count = 0;
+        for (long mapNumber = mapFrom; mapNumber < mapTo; mapNumber++) {
+            readMap(channel, map, mapNumber);
+            if (hasCounters) {
+                int stamp = map.getShort(bitmapSize + 2) & 0xffff;
+                if (stamp != 0 && stamp != suspectStamp) {
+                    count += map.getShort(bitmapSize) & 0xffff;
+                    continue;
+                }
+            }
+            if (hasCounters) {
+                repairs.add(mapNumber);
             }
+            count += countUsedBlocks(map);
+        }
+        return count;
+    }
+
+    /*
+     * Recalculates the used blocks after the archive was not closed properly.
+     * Only maps that could have been changed by the session that did not close
+     * properly are recounted. The bitmaps are read directly from the archive,
+     * bypassing the block cache, by multiple threads if there are many maps.
+     */
+    long recountUsedBlocks(long blocksTotal, final int suspectStamp) throws JafsException, IOException {
+        final FileChannel channel = vfs.getRaf().getChannel();
+        final long maps = (blocksTotal + blocksPerUnusedMap - 1) / blocksPerUnusedMap;
+        List<Long> repairs = new ArrayList<>();
+        long count;
+        int threads = Runtime.getRuntime().availableProcessors();
+        if (maps < PARALLEL_RECOUNT_MIN_MAPS || threads < 2) {
+            count = recountUsedBlocks(channel, 0, maps, suspectStamp, repairs);
+        } else {
+            ExecutorService pool = Executors.newFixedThreadPool(threads);
+            try {
+                List<Future<Long>> futures = new ArrayList<>();
+                List<List<Long>> repairLists = new ArrayList<>();
+                long mapsPerThread = (maps + threads - 1) / threads;
+                for (long from = 0; from < maps; from += mapsPerThread) {
+                    final long mapFrom = from;
+                    final long mapTo = Math.min(maps, from + mapsPerThread);
+                    final List<Long> threadRepairs = new ArrayList<>();
+                    repairLists.add(threadRepairs);
+                    futures.add(pool.submit(new Callable<Long>() {
+                        @Override
+                        public Long call() throws Exception {
+                            return recountUsedBlocks(channel, mapFrom, mapTo, suspectStamp, threadRepairs);
+                        }
+                    }));
+                }
+                count = 0;
+                for (Future<Long> future : futures) {
+                    count += future.get();
+                }
+                for (List<Long> threadRepairs : repairLists) {
+                    repairs.addAll(threadRepairs);
+                }
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while counting used blocks");
+            }
+            catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof JafsException) {
+                    throw (JafsException)cause;
+                }
+                if (cause instanceof IOException) {
+                    throw (IOException)cause;
+                }
+                throw new IOException(cause);
+            }
+            finally {
+                pool.shutdown();
+            }
+        }
+        for (long mapNumber : repairs) {
+            getBitmap(mapNumber);
+            dirtyMaps.set((int)mapNumber);
         }
         return count;
     }
@@ -79,13 +79,22 @@ class LRUCache<K, V> {
         return ce.value;
     }
 
-    void remove(K key) {
+    V remove(K key) {
         GenericCacheEntry ce = cache.get(key);
         if (ce != null) {
             removeEntry(cache.get(key));
             cache.remove(ce.key);
             cntRemoved++;
+            return ce.value;
         }
+        return null;
+    }
+
+    void clear() {
+        cntRemoved += cache.size();
+        cache.clear();
+        mostLeft = null;
+        mostRight = null;
     }
 
     private void addEntry(GenericCacheEntry ce) {
@@ -54,6 +54,18 @@ public class Util {
         return i;
     }
 
+    static void ptrToArray(byte[] b, int off, long ptr, int ptrSize) {
+        if (ptrSize == 8) {
+            longToArray(b, off, ptr);
+        } else {
+            intToArray(b, off, ptr);
+        }
+    }
+
+    static long arrayToPtr(byte[] b, int off, int ptrSize) {
+        return ptrSize == 8 ? arrayToLong(b, off) : arrayToInt(b, off);
+    }
+
     static int byteArrayIndexOf(byte[] source, byte[] target) {
         if (target.length == 0) {
             return 0;
@@ -85,4 +97,37 @@ public class Util {
     static boolean contains(byte[] str, byte[] subStr) {
         return byteArrayIndexOf(str, subStr) != -1;
     }
+
+    /*
+     * Encodes s[start, end) as UTF-8 into b, like String.getBytes() does but
+     * without allocating. A lone surrogate becomes '?'. b must hold 3 bytes
+     * per char. Returns the number of bytes written.
+     */
+    static int utf8ToArray(String s, int start, int end, byte[] b) {
+        int off = 0;
+        for (int n = start; n < end; n++) {
+            char c = s.charAt(n);
+            if (c < 0x80) {
+                b[off++] = (byte)c;
+            } else if (c < 0x800) {
+                b[off++] = (byte)(0xc0 | (c >> 6));
+                b[off++] = (byte)(0x80 | (c & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && n + 1 < end && Character.isLowSurrogate(s.charAt(n + 1))) {
+                    int cp = Character.toCodePoint(c, s.charAt(++n));
+                    b[off++] = (byte)(0xf0 | (cp >> 18));
+                    b[off++] = (byte)(0x80 | ((cp >> 12) & 0x3f));
+                    b[off++] = (byte)(0x80 | ((cp >> 6) & 0x3f));
+                    b[off++] = (byte)(0x80 | (cp & 0x3f));
+                } else {
+                    b[off++] = '?';
+                }
+            } else {
+                b[off++] = (byte)(0xe0 | (c >> 12));
+                b[off++] = (byte)(0x80 | ((c >> 6) & 0x3f));
+                b[off++] = (byte)(0x80 | (c & 0x3f));
+            }
+        }
+        return off;
+    }
 }
@@ -1,13 +1,27 @@
 package nl.v4you.jafs;
 
+import nl.v4you.jafs.internal.JafsDirEntry;
+import nl.v4you.jafs.internal.JafsSuper;
 import org.junit.*;
 import org.junit.rules.ExpectedException;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
 
 import static nl.v4you.jafs.AppTest.TEST_ARCHIVE;
 import static org.junit.Assert.*;
@@ -125,6 +139,26 @@ public class DirectoriesTest {
         }
     }
 
+    @Test
+    public void pathsAreNormalized() throws JafsException, IOException {
+        try (Jafs vfs = new Jafs(TEST_ARCHIVE, 256)) {
+            JafsFile f = vfs.getFile("//a//b/./c/../");
+            assertEquals("/a/b/./c/..", f.getPath());
+            assertEquals("/a/b", f.getCanonicalPath());
+            assertEquals("..", f.getName());
+            assertEquals("/a/b/./c", f.getParent());
+            assertSame("/a/b", vfs.getFile("/a/b").getCanonicalPath());
+            assertEquals("/", vfs.getFile("/a/./..//.").getCanonicalPath());
+            assertEquals("/..a/.b", vfs.getFile("/..a/.b/").getCanonicalPath());
+            try {
+                vfs.getFile("/../..");
+                fail("/../.. goes beyond root");
+            } catch (JafsException e) {
+                // expected
+            }
+        }
+    }
+
     @Test(expected = JafsException.class)
     public void rootSlashMandatory() throws JafsException, IOException {
         try (Jafs vfs = new Jafs(TEST_ARCHIVE, 256)) {
@@ -282,6 +316,627 @@ public class DirectoriesTest {
         vfs.close();
     }
 
+    private void largeDirectory(int features) throws JafsException, IOException {
+        int entries = 3000;
+        Jafs vfs = new Jafs(TEST_ARCHIVE, 1024, features);
+        long blocksUsed = vfs.getBlocksUsed();
+        JafsFile dir = vfs.getFile("/big");
+        assertTrue(dir.mkdir());
+        for (int n = 0; n < entries; n++) {
+            JafsFile f = vfs.getFile(String.format("/big/%08x", n));
+            if (n % 100 == 51) {
+                assertTrue(f.mkdir());
+            } else {
+                assertTrue(f.createNewFile());
+            }
+        }
+        JafsOutputStream jos = vfs.getOutputStream(vfs.getFile("/big/00000001"));
+        jos.write("hallo".getBytes());
+        jos.close();
+        assertFalse(vfs.getFile("/big/00000002").createNewFile());
+        assertEquals(entries, dir.list().length);
+        for (int n = 0; n < entries; n += 2) {
+            assertTrue(vfs.getFile(String.format("/big/%08x", n)).delete());
+        }
+        vfs.close();
+
+        vfs = new Jafs(TEST_ARCHIVE);
+        dir = vfs.getFile("/big");
+        for (int n = 0; n < entries; n++) {
+            assertEquals(n % 2 == 1, vfs.getFile(String.format("/big/%08x", n)).exists());
+        }
+        assertEquals(5, vfs.getFile("/big/00000001").length());
+        assertTrue(vfs.getFile("/big/00000033").isDirectory());
+        vfs.getFile("/big/00000003").renameTo(vfs.getFile("/big/renamed"));
+        assertTrue(vfs.getFile("/big/renamed").exists());
+        assertFalse(vfs.getFile("/big/00000003").exists());
+        String[] names = dir.list();
+        assertEquals(entries / 2, names.length);
+        for (String name : names) {
+            assertTrue(vfs.getFile("/big/" + name).delete());
+        }
+        assertEquals(0, dir.list().length);
+        assertTrue(dir.delete());
+        assertEquals(blocksUsed, vfs.getBlocksUsed());
+        vfs.close();
+    }
+
+    @Test
+    public void largeDirectoryHashed() throws JafsException, IOException {
+        largeDirectory(JafsSuper.DEFAULT_FEATURES);
+    }
+
+    @Test
+    public void largeDirectoryLinear() throws JafsException, IOException {
+        largeDirectory(JafsSuper.FEATURE_MAP_COUNTERS | JafsSuper.FEATURE_EXTENTS);
+    }
+
+    @Test
+    public void largeLinearDirectoryReusesEntries() throws JafsException, IOException {
+        Jafs vfs = new Jafs(TEST_ARCHIVE, 256, JafsSuper.FEATURE_MAP_COUNTERS | JafsSuper.FEATURE_EXTENTS);
+        LinkedList<String> names = new LinkedList<>();
+        for (int n = 0; n < 1000; n++) {
+            names.add("file" + n);
+            assertTrue(vfs.getFile("/file" + n).createNewFile());
+        }
+        Random r = new Random(0);
+        for (int round = 0; round < 2000; round++) {
+            String name = names.remove(r.nextInt(names.size()));
+            assertTrue(vfs.getFile("/" + name).delete());
+            assertFalse(vfs.getFile("/" + name).exists());
+            name = "f" + Integer.toHexString(r.nextInt());
+            if (!names.contains(name)) {
+                names.add(name);
+                assertTrue(vfs.getFile("/" + name).createNewFile());
+            }
+            assertFalse(vfs.getFile("/" + name).createNewFile());
+        }
+        assertEquals(names.size(), vfs.getFile("/").list().length);
+        vfs.close();
+
+        vfs = new Jafs(TEST_ARCHIVE);
+        for (String name : names) {
+            assertTrue(vfs.getFile("/" + name).exists());
+        }
+        assertEquals(names.size(), vfs.getFile("/").list().length);
+        vfs.close();
+    }
+
+    private void directoryStream(int entries) throws JafsException, IOException {
+        Jafs vfs = new Jafs(TEST_ARCHIVE, 256);
+        JafsFile dir = vfs.getFile("/dir");
+        assertTrue(dir.mkdir());
+        try (JafsDirectoryStream stream = dir.newDirectoryStream()) {
+            assertFalse(stream.iterator().hasNext());
+        }
+        for (int n = 0; n < entries; n++) {
+            JafsFile f = vfs.getFile("/dir/" + n + (n % 3 == 0 ? ".txt" : ".bin"));
+            if (n % 10 == 0) {
+                assertTrue(f.mkdir());
+            } else {
+                assertTrue(f.createNewFile());
+            }
+        }
+        Set<String> names = new HashSet<>();
+        try (JafsDirectoryStream stream = dir.newDirectoryStream()) {
+            for (JafsDirEntry entry : stream) {
+                assertTrue(names.add(entry.getName()));
+                assertEquals(Integer.parseInt(entry.getName().substring(0, entry.getName().indexOf('.'))) % 10 == 0, entry.isDirectory());
+            }
+        }
+        assertEquals(entries, names.size());
+
+        // delete while iterating
+        int txt = 0;
+        try (JafsDirectoryStream stream = dir.newDirectoryStream(new DirectoryStream.Filter<JafsDirEntry>() {
+            @Override
+            public boolean accept(JafsDirEntry entry) {
+                return entry.getName().endsWith(".txt");
+            }
+        })) {
+            for (JafsDirEntry entry : stream) {
+                assertTrue(entry.getName().endsWith(".txt"));
+                assertTrue(vfs.getFile("/dir/" + entry.getName()).delete());
+                txt++;
+            }
+        }
+        assertEquals((entries + 2) / 3, txt);
+        assertEquals(entries - txt, dir.list().length);
+        vfs.close();
+    }
+
+    @Test
+    public void directoryStreamSmall() throws JafsException, IOException {
+        directoryStream(20);
+    }
+
+    @Test
+    public void directoryStreamLarge() throws JafsException, IOException {
+        directoryStream(2000);
+    }
+
+    private void compactDirectory(int features) throws JafsException, IOException {
+        Jafs vfs = new Jafs(TEST_ARCHIVE, 256, features);
+        JafsFile dir = vfs.getFile("/dir");
+        assertTrue(dir.mkdir());
+        long blocksUsed = vfs.getBlocksUsed();
+        for (int n = 0; n < 2000; n++) {
+            JafsFile f = vfs.getFile("/dir/file" + n);
+            JafsOutputStream jos = vfs.getOutputStream(f);
+            jos.write(("content" + n).getBytes());
+            jos.close();
+        }
+        long blocksFull = vfs.getBlocksUsed();
+        for (int n = 0; n < 2000; n++) {
+            if (n % 40 != 0) {
+                assertTrue(vfs.getFile("/dir/file" + n).delete());
+            }
+        }
+        try (JafsDirectoryStream stream = dir.newDirectoryStream()) {
+            // entries do not move while they are listed
+            assertFalse(dir.compact());
+            int listed = 0;
+            for (JafsDirEntry entry : stream) {
+                assertTrue(entry.getName().startsWith("file"));
+                listed++;
+            }
+            assertEquals(50, listed);
+        }
+        assertTrue(dir.compact());
+        assertTrue(vfs.getBlocksUsed() - blocksUsed < (blocksFull - blocksUsed) / 10);
+        assertEquals(50, dir.list().length);
+        for (int n = 0; n < 2000; n += 40) {
+            assertEquals(("content" + n).length(), vfs.getFile("/dir/file" + n).length());
+        }
+        assertTrue(vfs.getFile("/dir/file0").delete());
+        assertTrue(vfs.getFile("/dir/new").createNewFile());
+        vfs.close();
+
+        vfs = new Jafs(TEST_ARCHIVE);
+        dir = vfs.getFile("/dir");
+        assertEquals(50, dir.list().length);
+        assertTrue(vfs.getFile("/dir/new").exists());
+        assertFalse(vfs.getFile("/dir/file0").exists());
+        for (int n = 40; n < 2000; n += 40) {
+            JafsInputStream jis = vfs.getInputStream(vfs.getFile("/dir/file" + n));
+            byte[] buf = new byte[20];
+            assertEquals(("content" + n), new String(buf, 0, jis.read(buf)));
+            jis.close();
+        }
+        vfs.close();
+    }
+
+    @Test
+    public void compactHashedDirectory() throws JafsException, IOException {
+        compactDirectory(JafsSuper.DEFAULT_FEATURES);
+    }
+
+    @Test
+    public void compactLinearDirectory() throws JafsException, IOException {
+        compactDirectory(JafsSuper.FEATURE_MAP_COUNTERS | JafsSuper.FEATURE_EXTENTS);
+    }
+
+    @Test
+    public void largeLinearDirectoryIsCompactedAutomatically() throws JafsException, IOException {
+        Jafs vfs = new Jafs(TEST_ARCHIVE, 256, JafsSuper.FEATURE_MAP_COUNTERS | JafsSuper.FEATURE_EXTENTS);
+        long blocksUsed = vfs.getBlocksUsed();
+        for (int n = 0; n < 1000; n++) {
+            assertTrue(vfs.getFile("/file" + n).createNewFile());
+        }
+        long blocksFull = vfs.getBlocksUsed();
+        for (int n = 0; n < 1000; n++) {
+            if (n % 10 != 0) {
+                assertTrue(vfs.getFile("/file" + n).delete());
+            }
+        }
+        assertTrue(vfs.getBlocksUsed() - blocksUsed < (blocksFull - blocksUsed) / 2);
+        for (int n = 0; n < 1000; n++) {
+            assertEquals(n % 10 == 0, vfs.getFile("/file" + n).exists());
+        }
+        vfs.close();
+    }
+
+    @Test
+    public void hashedDirectoryBucketsAreCompactedAutomatically() throws JafsException, IOException {
+        Jafs vfs = new Jafs(TEST_ARCHIVE, 256);
+        long blocksUsed = vfs.getBlocksUsed();
+        for (int n = 0; n < 4000; n++) {
+            assertTrue(vfs.getFile("/file" + n).createNewFile());
+        }
+        long blocksFull = vfs.getBlocksUsed();
+        for (int n = 0; n < 4000; n++) {
+            if (n % 10 != 0) {
+                assertTrue(vfs.getFile("/file" + n).delete());
+            }
+        }
+        // buckets are not merged, but they do shrink
+        assertTrue(vfs.getBlocksUsed() - blocksUsed < (blocksFull - blocksUsed) * 2 / 3);
+        for (int n = 0; n < 4000; n++) {
+            assertEquals(n % 10 == 0, vfs.getFile("/file" + n).exists());
+        }
+        vfs.close();
+    }
+
+    private void sameLengthNames(int features) throws JafsException, IOException {
+        Jafs vfs = new Jafs(TEST_ARCHIVE, 256, features);
+        assertTrue(vfs.getFile("/dir").mkdir());
+        // names of the same length only differ in their hash or checksum
+        for (int n = 0; n < 1500; n++) {
+            JafsFile f = vfs.getFile(String.format("/dir/a%04d", n));
+            if (n % 7 == 0) {
+                JafsOutputStream jos = vfs.getOutputStream(f);
+                jos.write(("content" + n).getBytes());
+                jos.close();
+            } else {
+                assertTrue(f.createNewFile());
+            }
+        }
+        for (int n = 0; n < 1500; n += 3) {
+            assertTrue(vfs.getFile(String.format("/dir/a%04d", n)).delete());
+        }
+        // new names take the place of the deleted ones
+        for (int n = 0; n < 500; n++) {
+            assertTrue(vfs.getFile(String.format("/dir/b%04d", n)).createNewFile());
+        }
+        vfs.close();
+
+        // the index of the directory is built again after reopening
+        vfs = new Jafs(TEST_ARCHIVE);
+        for (int n = 0; n < 1500; n++) {
+            JafsFile f = vfs.getFile(String.format("/dir/a%04d", n));
+            assertEquals(n % 3 != 0, f.exists());
+            if (n % 3 != 0 && n % 7 == 0) {
+                assertEquals(("content" + n).length(), f.length());
+            }
+            assertFalse(vfs.getFile(String.format("/dir/c%04d", n)).exists());
+        }
+        for (int n = 0; n < 500; n++) {
+            assertTrue(vfs.getFile(String.format("/dir/b%04d", n)).exists());
+            assertFalse(vfs.getFile(String.format("/dir/b%04d", n)).createNewFile());
+        }
+        for (int n = 1; n < 1500; n += 3) {
+            assertTrue(vfs.getFile(String.format("/dir/a%04d", n)).delete());
+            assertTrue(vfs.getFile(String.format("/dir/c%04d", n)).createNewFile());
+        }
+        assertEquals(1500, vfs.getFile("/dir").list().length);
+        vfs.close();
+
+        vfs = new Jafs(TEST_ARCHIVE);
+        for (int n = 0; n < 1500; n++) {
+            assertEquals(n % 3 == 2, vfs.getFile(String.format("/dir/a%04d", n)).exists());
+            assertEquals(n % 3 == 1, vfs.getFile(String.format("/dir/c%04d", n)).exists());
+        }
+        vfs.close();
+    }
+
+    @Test
+    public void sameLengthNamesHash32() throws JafsException, IOException {
+        sameLengthNames(JafsSuper.DEFAULT_FEATURES & ~JafsSuper.FEATURE_HASHED_DIRS);
+    }
+
+    @Test
+    public void sameLengthNamesChecksum() throws JafsException, IOException {
+        sameLengthNames(JafsSuper.DEFAULT_FEATURES & ~JafsSuper.FEATURE_HASHED_DIRS & ~JafsSuper.FEATURE_DIR_HASH32);
+    }
+
+    @Test
+    public void sameLengthNamesHashed() throws JafsException, IOException {
+        sameLengthNames(JafsSuper.DEFAULT_FEATURES);
+    }
+
+    @Test
+    public void sameLengthNamesHashedChecksum() throws JafsException, IOException {
+        sameLengthNames(JafsSuper.DEFAULT_FEATURES & ~JafsSuper.FEATURE_DIR_HASH32);
+    }
+
+    private void bulkCreate(int features) throws JafsException, IOException {
+        Jafs vfs = new Jafs(TEST_ARCHIVE, 256, features);
+        JafsFile dir = vfs.getFile("/dir");
+        assertTrue(dir.mkdir());
+        for (int n = 0; n < 100; n++) {
+            assertTrue(vfs.getFile("/dir/f" + n).createNewFile());
+        }
+        for (int n = 0; n < 100; n += 3) {
+            assertTrue(vfs.getFile("/dir/f" + n).delete());
+        }
+        List<String> names = new ArrayList<>();
+        for (int n = 0; n < 3000; n++) {
+            names.add("f" + n);
+        }
+        names.add("f5");
+        assertEquals(3000 - 66, vfs.createFiles(dir, names));
+        assertEquals(3000, dir.list().length);
+        for (int n = 0; n < 3000; n++) {
+            assertTrue(vfs.getFile("/dir/f" + n).isFile());
+        }
+        assertFalse(vfs.getFile("/dir/f3000").exists());
+        assertEquals(0, vfs.createFiles(dir, names));
+
+        names.clear();
+        for (int n = 0; n < 50; n++) {
+            names.add("d" + n);
+        }
+        assertEquals(50, vfs.mkdirs(dir, names));
+        assertTrue(vfs.getFile("/dir/d7/x").createNewFile());
+        vfs.close();
+
+        vfs = new Jafs(TEST_ARCHIVE);
+        assertEquals(3050, vfs.getFile("/dir").list().length);
+        for (int n = 0; n < 3000; n++) {
+            assertTrue(vfs.getFile("/dir/f" + n).isFile());
+        }
+        for (int n = 0; n < 50; n++) {
+            assertTrue(vfs.getFile("/dir/d" + n).isDirectory());
+        }
+        assertTrue(vfs.getFile("/dir/d7/x").isFile());
+        assertEquals(1, vfs.createFiles(vfs.getFile("/dir/d8"), Arrays.asList("y")));
+        assertTrue(vfs.getFile("/dir/d8/y").isFile());
+        vfs.close();
+    }
+
+    @Test
+    public void bulkCreateHashed() throws JafsException, IOException {
+        bulkCreate(JafsSuper.DEFAULT_FEATURES);
+    }
+
+    @Test
+    public void bulkCreateLinear() throws JafsException, IOException {
+        bulkCreate(JafsSuper.FEATURE_MAP_COUNTERS | JafsSuper.FEATURE_EXTENTS);
+    }
+
+    @Test
+    public void deleteTree() throws JafsException, IOException {
+        Jafs vfs = new Jafs(TEST_ARCHIVE, 256);
+        assertTrue(vfs.getFile("/keep").mkdir());
+        long blocksUsed = vfs.getBlocksUsed();
+        byte[] content = new byte[3000];
+        for (int d = 0; d < 5; d++) {
+            assertTrue(vfs.getFile("/a/d" + d + "/sub").mkdirs());
+            for (int n = 0; n < 40; n++) {
+                JafsOutputStream jos = vfs.getOutputStream(vfs.getFile("/a/d" + d + "/f" + n));
+                jos.write(content, 0, n * 70);
+                jos.close();
+            }
+            assertTrue(vfs.getFile("/a/d" + d + "/sub/empty").createNewFile());
+        }
+        List<String> names = new ArrayList<>();
+        for (int n = 0; n < 2000; n++) {
+            names.add("big" + n);
+        }
+        assertTrue(vfs.getFile("/a/big").mkdir());
+        assertEquals(2000, vfs.createFiles(vfs.getFile("/a/big"), names));
+        assertTrue(vfs.getFile("/a/d3/f7").exists());
+
+        assertFalse(vfs.getFile("/nothing").deleteTree());
+        assertTrue(vfs.getFile("/a").deleteTree());
+        assertFalse(vfs.getFile("/a").exists());
+        assertFalse(vfs.getFile("/a/d3/f7").exists());
+        assertEquals(blocksUsed, vfs.getBlocksUsed());
+
+        // the freed inodes are reused, nothing below the old tree is found there
+        assertTrue(vfs.getFile("/a/d3").mkdirs());
+        assertTrue(vfs.getFile("/b/d3").mkdirs());
+        assertFalse(vfs.getFile("/a/d3/f7").exists());
+        assertFalse(vfs.getFile("/b/d3/f7").exists());
+        assertTrue(vfs.getFile("/keep").isDirectory());
+        vfs.close();
+
+        vfs = new Jafs(TEST_ARCHIVE);
+        assertEquals(3, vfs.getFile("/").list().length);
+        assertTrue(vfs.getFile("/b/d3").deleteTree());
+        assertTrue(vfs.getFile("/b").deleteTree());
+        assertTrue(vfs.getFile("/a").deleteTree());
+        assertEquals(blocksUsed, vfs.getBlocksUsed());
+        vfs.close();
+    }
+
+    @Test
+    public void renamedDirectoryTakesItsTree() throws JafsException, IOException {
+        Jafs vfs = new Jafs(TEST_ARCHIVE, 256);
+        assertTrue(vfs.getFile("/a/b/c").mkdirs());
+        assertTrue(vfs.getFile("/a/b/c/f.txt").createNewFile());
+        assertTrue(vfs.getFile("/a/b/g.txt").createNewFile());
+        assertTrue(vfs.getFile("/a/b/c/f.txt").exists());
+        vfs.getFile("/a/b").renameTo(vfs.getFile("/z"));
+        assertFalse(vfs.getFile("/a/b").exists());
+        assertFalse(vfs.getFile("/a/b/c").exists());
+        assertFalse(vfs.getFile("/a/b/c/f.txt").exists());
+        assertTrue(vfs.getFile("/z/c/f.txt").isFile());
+        assertTrue(vfs.getFile("/z/g.txt").isFile());
+        assertTrue(vfs.getFile("/a/b/c").mkdirs());
+        assertFalse(vfs.getFile("/a/b/c/f.txt").exists());
+        assertTrue(vfs.getFile("/z/c/f.txt").delete());
+        assertTrue(vfs.getFile("/z/c").delete());
+        assertEquals(1, vfs.getFile("/z").list().length);
+        vfs.close();
+    }
+
+    @Test
+    public void lookupsOfMissingNames() throws JafsException, IOException {
+        Jafs vfs = new Jafs(TEST_ARCHIVE, 256);
+        vfs.setBloomFilters(true);
+        assertTrue(vfs.getFile("/dir").mkdir());
+        for (int n = 0; n < 1000; n += 2) {
+            assertTrue(vfs.getFile("/dir/" + n).createNewFile());
+        }
+        for (int round = 0; round < 2; round++) {
+            for (int n = 0; n < 1000; n++) {
+                assertEquals(n % 2 == 0, vfs.getFile("/dir/" + n).exists());
+            }
+        }
+        // misses are forgotten when the name is created, also after the Bloom filter has to grow
+        for (int n = 1; n < 1000; n += 2) {
+            JafsFile f = vfs.getFile("/dir/" + n);
+            if (n % 4 == 1) {
+                assertTrue(f.createNewFile());
+            } else {
+                assertTrue(f.mkdir());
+            }
+            assertTrue(f.exists());
+        }
+        assertFalse(vfs.getFile("/dir/moved").exists());
+        vfs.getFile("/dir/0").renameTo(vfs.getFile("/dir/moved"));
+        assertTrue(vfs.getFile("/dir/moved").exists());
+        assertFalse(vfs.getFile("/dir/0").exists());
+        assertTrue(vfs.getFile("/dir/0").createNewFile());
+        for (int n = 0; n < 1000; n++) {
+            assertTrue(vfs.getFile("/dir/" + n).exists());
+            assertFalse(vfs.getFile("/dir/x" + n).exists());
+        }
+
+        // a deleted directory and its replacement
+        assertFalse(vfs.getFile("/dir/3/a").exists());
+        assertTrue(vfs.getFile("/dir/3").delete());
+        assertTrue(vfs.getFile("/dir/3").mkdir());
+        assertTrue(vfs.getFile("/dir/3/a").createNewFile());
+        assertTrue(vfs.getFile("/dir/3/a").exists());
+        vfs.close();
+    }
+
+    private void checkSizes(Jafs vfs, Map<String, Long> sizes) throws JafsException, IOException {
+        int n = 0;
+        try (JafsDirectoryStream stream = vfs.getFile("/dir").newDirectoryStream()) {
+            for (JafsDirEntry entry : stream) {
+                assertEquals((long)sizes.get(entry.getName()), entry.getSize());
+                n++;
+            }
+        }
+        assertEquals(sizes.size(), n);
+        for (Map.Entry<String, Long> e : sizes.entrySet()) {
+            assertEquals((long)e.getValue(), vfs.getFile("/dir/" + e.getKey()).length());
+        }
+    }
+
+    @Test
+    public void directoryEntriesHoldFileSizes() throws JafsException, IOException {
+        Jafs vfs = new Jafs(TEST_ARCHIVE, 256);
+        assertTrue(vfs.getFile("/dir").mkdir());
+        Map<String, Long> sizes = new HashMap<>();
+        byte[] buf = new byte[1000];
+        for (int n = 0; n < 500; n++) {
+            JafsFile f = vfs.getFile("/dir/" + n);
+            JafsOutputStream jos = vfs.getOutputStream(f);
+            jos.write(buf, 0, n);
+            assertEquals(n, f.length());
+            jos.write(buf, 0, 10);
+            assertEquals(n + 10, f.length());
+            jos.close();
+            sizes.put("" + n, n + 10L);
+        }
+        assertTrue(vfs.getFile("/dir/sub").mkdir());
+        sizes.put("sub", 0L);
+        checkSizes(vfs, sizes);
+
+        vfs.getFile("/dir/1").truncate(5000);
+        sizes.put("1", 5000L);
+        vfs.getFile("/dir/2").truncate(3);
+        sizes.put("2", 3L);
+        try (SeekableByteChannel channel = vfs.newByteChannel(vfs.getFile("/dir/3"), StandardOpenOption.WRITE)) {
+            channel.position(100).write(ByteBuffer.wrap(buf));
+        }
+        sizes.put("3", 1100L);
+        JafsOutputStream jos = vfs.getOutputStream(vfs.getFile("/dir/4"));
+        jos.close();
+        sizes.put("4", 0L);
+        vfs.getFile("/dir/5").renameTo(vfs.getFile("/dir/renamed"));
+        sizes.remove("5");
+        sizes.put("renamed", 15L);
+        checkSizes(vfs, sizes);
+        vfs.close();
+
+        vfs = new Jafs(TEST_ARCHIVE);
+        checkSizes(vfs, sizes);
+        vfs.close();
+    }
+
+    private void walk(int features, ForkJoinPool pool) throws JafsException, IOException {
+        Jafs vfs = new Jafs(TEST_ARCHIVE, 256, features);
+        Set<String> expected = new HashSet<>();
+        byte[] buf = new byte[300];
+        for (int d = 0; d < 6; d++) {
+            String dir = "/top/dir" + d + (d % 2 == 0 ? "" : "/sub" + d);
+            assertTrue(vfs.getFile(dir).mkdirs());
+            for (int n = 0; n < 150; n++) {
+                String name = dir + "/f" + n + (n % 3 == 0 ? ".txt" : ".bin");
+                JafsOutputStream jos = vfs.getOutputStream(vfs.getFile(name));
+                jos.write(buf, 0, n * 2);
+                jos.close();
+                if (n % 3 == 0 && n * 2 > 100) {
+                    expected.add(name);
+                }
+            }
+        }
+        assertTrue(vfs.getFile("/top/empty.txt").createNewFile());
+        assertTrue(vfs.getFile("/top/dir.txt").mkdir());
+        assertTrue(vfs.getFile("/other.txt").createNewFile());
+
+        final Set<String> found = Collections.synchronizedSet(new HashSet<String>());
+        DirectoryStream.Filter<JafsDirEntry> filter = new DirectoryStream.Filter<JafsDirEntry>() {
+            @Override
+            public boolean accept(JafsDirEntry entry) {
+                return entry.isFile() && entry.getName().endsWith(".txt") && entry.getSize() > 100;
+            }
+        };
+        JafsVisitor visitor = new JafsVisitor() {
+            @Override
+            public void visit(String path, JafsDirEntry entry) throws JafsException, IOException {
+                assertTrue(found.add(path));
+            }
+        };
+        vfs.walk(vfs.getFile("/top/"), filter, visitor, pool);
+        assertEquals(expected, found);
+
+        // the size of a file that is still being written is the one in memory
+        JafsOutputStream open = vfs.getOutputStream(vfs.getFile("/top/dir0/open.txt"));
+        open.write(buf, 0, 50);
+        open.flush();
+        open.write(buf, 0, 100);
+        expected.add("/top/dir0/open.txt");
+        found.clear();
+        vfs.walk(vfs.getFile("/top/"), filter, visitor, pool);
+        assertEquals(expected, found);
+        open.close();
+
+        found.clear();
+        vfs.walk(vfs.getFile("/top/dir1"), null, visitor, pool);
+        assertEquals(151, found.size());
+        assertTrue(found.contains("/top/dir1/sub1"));
+
+        try {
+            vfs.walk(vfs.getFile("/top"), null, new JafsVisitor() {
+                @Override
+                public void visit(String path, JafsDirEntry entry) throws JafsException {
+                    if (path.endsWith("f99.txt")) {
+                        throw new JafsException("stop at " + path);
+                    }
+                }
+            }, pool);
+            fail("visitor exception expected");
+        } catch (JafsException e) {
+            assertTrue(e.getMessage().startsWith("stop at "));
+        }
+        vfs.close();
+    }
+
+    @Test
+    public void walk() throws JafsException, IOException {
+        walk(JafsSuper.DEFAULT_FEATURES, null);
+    }
+
+    @Test
+    public void walkParallel() throws JafsException, IOException {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            walk(JafsSuper.DEFAULT_FEATURES, pool);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void walkWithoutStoredSizes() throws JafsException, IOException {
+        walk(JafsSuper.DEFAULT_FEATURES & ~JafsSuper.FEATURE_DIR_SIZES, null);
+    }
 
 //    @Test
 //    public void creatingRootDirAsFileShouldNotResultInANullPointerException() throws JafsException, IOException {
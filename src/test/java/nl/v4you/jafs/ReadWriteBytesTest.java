@@ -1,12 +1,26 @@
 package nl.v4you.jafs;
 
+import nl.v4you.jafs.internal.JafsInode;
+import nl.v4you.jafs.internal.JafsInodeContext;
+import nl.v4you.jafs.internal.JafsSuper;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Ignore;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.Random;
@@ -205,6 +219,34 @@ public class ReadWriteBytesTest {
         assertEquals(7 * blockSize, g.length());
     }
 
+    @Test
+    public void emptiedFileDoesNotKeepItsInode() throws JafsException, IOException {
+        int blockSize = 256;
+        Jafs jafs = new Jafs(TEST_ARCHIVE, blockSize);
+        JafsFile f1 = jafs.getFile("/f1.txt");
+        JafsFile f2 = jafs.getFile("/f2.txt");
+        JafsOutputStream jos = jafs.getOutputStream(f1);
+        jos.write(new byte[blockSize + 10]);
+        jos.close();
+        jafs.getOutputStream(f1).close();
+        assertEquals(0, f1.length());
+        // f2 gets the inode that f1 had before
+        byte[] content = new byte[blockSize + 10];
+        rnd.nextBytes(content);
+        jos = jafs.getOutputStream(f2);
+        jos.write(content);
+        jos.close();
+        jos = jafs.getOutputStream(f1);
+        jos.write("ab".getBytes());
+        jos.close();
+        JafsInputStream jis = jafs.getInputStream(f2);
+        byte[] buf = new byte[content.length];
+        assertEquals(content.length, jis.read(buf));
+        assertTrue(Arrays.equals(content, buf));
+        assertEquals(2, f1.length());
+        jafs.close();
+    }
+
     @Test
     public void switchFromInlineToBlock() throws JafsException, IOException {
         int blockSize = 256;
@@ -407,6 +449,37 @@ public class ReadWriteBytesTest {
         assertEquals("abcdef",new String(buf, StandardCharsets.UTF_8));
     }
 
+    @Test
+    public void writeReadBytesDoubleIndirect() throws JafsException, IOException {
+        int blockSize = 64;
+        int maxFileSize = (int)JafsInodeContext.calcMaxFileSize(blockSize);
+        // the pointer format
+        Jafs jafs = new Jafs(TEST_ARCHIVE, blockSize, JafsSuper.FEATURE_MAP_COUNTERS);
+        JafsFile f = jafs.getFile("/abc.txt");
+        byte[] content = new byte[maxFileSize];
+        rnd.nextBytes(content);
+
+        // small writes and reads so every block goes through the pointer blocks on its own
+        JafsOutputStream jos = jafs.getOutputStream(f);
+        for (int off = 0; off < maxFileSize; off += 50) {
+            jos.write(content, off, Math.min(50, maxFileSize - off));
+        }
+        jos.close();
+        assertEquals(maxFileSize, f.length());
+
+        byte[] buf = new byte[maxFileSize];
+        JafsInputStream jis = jafs.getInputStream(f);
+        for (int off = 0; off < maxFileSize; off += 30) {
+            jis.read(buf, off, Math.min(30, maxFileSize - off));
+        }
+        jis.close();
+        assertArrayEquals(content, buf);
+
+        f.delete();
+        assertBlocks(jafs, 2, jafs.getBlocksTotal());
+        jafs.close();
+    }
+
     @Ignore
     @Test
     public void writeReadBytesUsingMaxFileSize() throws JafsException, IOException {
@@ -491,4 +564,388 @@ public class ReadWriteBytesTest {
         jos.write("again".getBytes());
         jafs.close();
     }
+
+    private byte[] readAll(Jafs jafs, JafsFile f) throws JafsException, IOException {
+        byte[] buf = new byte[(int)f.length()];
+        JafsInputStream jis = jafs.getInputStream(f);
+        int off = 0;
+        while (off < buf.length) {
+            off += jis.read(buf, off, buf.length - off);
+        }
+        jis.close();
+        return buf;
+    }
+
+    private void truncateShrinks(int features) throws JafsException, IOException {
+        int blockSize = 128;
+        Jafs jafs = new Jafs(TEST_ARCHIVE, blockSize, features);
+        JafsFile f = jafs.getFile("/abc.bin");
+        byte[] content = new byte[100 * blockSize];
+        rnd.nextBytes(content);
+        JafsOutputStream jos = jafs.getOutputStream(f);
+        jos.write(content);
+        jos.close();
+        long blocksUsed = jafs.getBlocksUsed();
+
+        f.truncate(10 * blockSize + blockSize / 2);
+        assertEquals(10 * blockSize + blockSize / 2, f.length());
+        assertTrue(blocksUsed - 89 >= jafs.getBlocksUsed());
+        assertArrayEquals(Arrays.copyOf(content, 10 * blockSize + blockSize / 2), readAll(jafs, f));
+
+        // the tail of the last block reads as zeros after growing again
+        f.truncate(12 * blockSize);
+        byte[] expected = Arrays.copyOf(content, 12 * blockSize);
+        Arrays.fill(expected, 10 * blockSize + blockSize / 2, expected.length, (byte)0);
+        assertArrayEquals(expected, readAll(jafs, f));
+
+        // back to an inlined file
+        f.truncate(5);
+        assertArrayEquals(Arrays.copyOf(content, 5), readAll(jafs, f));
+        f.truncate(0);
+        assertEquals(0, f.length());
+        jafs.close();
+    }
+
+    @Test
+    public void truncateShrinksPointers() throws JafsException, IOException {
+        truncateShrinks(JafsSuper.FEATURE_MAP_COUNTERS);
+    }
+
+    @Test
+    public void truncateShrinksExtents() throws JafsException, IOException {
+        truncateShrinks(JafsSuper.DEFAULT_FEATURES);
+    }
+
+    private void truncateGrowsSparse(int features) throws JafsException, IOException {
+        int blockSize = 128;
+        Jafs jafs = new Jafs(TEST_ARCHIVE, blockSize, features);
+        JafsFile f = jafs.getFile("/sparse.bin");
+        f.createNewFile();
+        long blocksUsed = jafs.getBlocksUsed();
+        int size = 500 * blockSize;
+        f.truncate(size);
+        assertEquals(size, f.length());
+        // only the inode
+        assertEquals(blocksUsed + 1, jafs.getBlocksUsed());
+
+        JafsOutputStream jos = jafs.getOutputStream(f, true);
+        jos.write("tail".getBytes());
+        jos.close();
+        assertTrue(jafs.getBlocksUsed() <= blocksUsed + 1 + 4);
+
+        byte[] expected = new byte[size + 4];
+        System.arraycopy("tail".getBytes(), 0, expected, size, 4);
+        assertArrayEquals(expected, readAll(jafs, f));
+        JafsInputStream jis = jafs.getInputStream(f);
+        assertEquals(0, jis.read());
+        jis.close();
+
+        f.delete();
+        assertEquals(blocksUsed, jafs.getBlocksUsed());
+        jafs.close();
+    }
+
+    @Test
+    public void truncateGrowsSparsePointers() throws JafsException, IOException {
+        truncateGrowsSparse(JafsSuper.FEATURE_MAP_COUNTERS);
+    }
+
+    @Test
+    public void truncateGrowsSparseExtents() throws JafsException, IOException {
+        truncateGrowsSparse(JafsSuper.DEFAULT_FEATURES);
+    }
+
+    private void tailsShareABlock(int features) throws JafsException, IOException {
+        int blockSize = 1024;
+        Jafs jafs = new Jafs(TEST_ARCHIVE, blockSize, features | JafsSuper.FEATURE_TAILS);
+        long blocksUsed = jafs.getBlocksUsed();
+        byte[][] content = new byte[20][];
+        for (int n = 0; n < content.length; n++) {
+            // two full blocks and a tail of 2 slots
+            content[n] = new byte[2 * blockSize + 100];
+            rnd.nextBytes(content[n]);
+            JafsOutputStream jos = jafs.getOutputStream(jafs.getFile("/f" + n));
+            jos.write(content[n]);
+            jos.close();
+        }
+        // inode and full blocks per file, 8 tails per fragment block
+        assertEquals(blocksUsed + 20 * 3 + 3, jafs.getBlocksUsed());
+        jafs.close();
+
+        jafs = new Jafs(TEST_ARCHIVE);
+        for (int n = 0; n < content.length; n++) {
+            assertArrayEquals(content[n], readAll(jafs, jafs.getFile("/f" + n)));
+        }
+        JafsInputStream jis = jafs.getInputStream(jafs.getFile("/f0"));
+        jis.skip(2 * blockSize + 99);
+        assertEquals(content[0][2 * blockSize + 99] & 0xff, jis.read());
+        assertEquals(-1, jis.read());
+        jis.close();
+
+        // appending unpacks the tail, closing packs it again
+        JafsOutputStream jos = jafs.getOutputStream(jafs.getFile("/f1"), true);
+        jos.write(content[2], 0, 500);
+        jos.close();
+        byte[] expected = Arrays.copyOf(content[1], content[1].length + 500);
+        System.arraycopy(content[2], 0, expected, content[1].length, 500);
+        assertArrayEquals(expected, readAll(jafs, jafs.getFile("/f1")));
+
+        // a truncated file gets its tail packed
+        JafsFile f = jafs.getFile("/f3");
+        f.truncate(blockSize + 10);
+        assertArrayEquals(Arrays.copyOf(content[3], blockSize + 10), readAll(jafs, f));
+        f.truncate(blockSize + 200);
+        expected = Arrays.copyOf(content[3], blockSize + 200);
+        Arrays.fill(expected, blockSize + 10, expected.length, (byte)0);
+        assertArrayEquals(expected, readAll(jafs, f));
+        for (int n = 0; n < content.length; n++) {
+            jafs.getFile("/f" + n).delete();
+        }
+        assertEquals(blocksUsed, jafs.getBlocksUsed());
+        jafs.close();
+    }
+
+    private void writeAll(Jafs jafs, JafsFile f, byte[] content, boolean append) throws JafsException, IOException {
+        JafsOutputStream jos = jafs.getOutputStream(f, append);
+        jos.write(content);
+        jos.close();
+    }
+
+    @Test
+    public void tailsAfterInlinedData() throws JafsException, IOException {
+        int blockSize = 256;
+        Jafs jafs = new Jafs(TEST_ARCHIVE, blockSize);
+        long blocksUsed = jafs.getBlocksUsed();
+        // one byte too large to be inlined
+        byte[] content = new byte[blockSize - JafsInode.INODE_HEADER_SIZE + 1];
+        rnd.nextBytes(content);
+        JafsFile a = jafs.getFile("/a");
+        writeAll(jafs, a, content, false);
+        // the inode and a fragment block, no data block
+        assertEquals(blocksUsed + 2, jafs.getBlocksUsed());
+        assertArrayEquals(content, readAll(jafs, a));
+        jafs.close();
+
+        // the fragment block with available slots is used again after reopening
+        jafs = new Jafs(TEST_ARCHIVE);
+        blocksUsed = jafs.getBlocksUsed();
+        a = jafs.getFile("/a");
+        JafsFile b = jafs.getFile("/b");
+        writeAll(jafs, b, content, false);
+        assertEquals(blocksUsed + 1, jafs.getBlocksUsed());
+        assertArrayEquals(content, readAll(jafs, a));
+        assertArrayEquals(content, readAll(jafs, b));
+
+        // appending unpacks the file, closing packs it again
+        byte[] more = new byte[100];
+        rnd.nextBytes(more);
+        writeAll(jafs, a, more, true);
+        byte[] expected = Arrays.copyOf(content, content.length + more.length);
+        System.arraycopy(more, 0, expected, content.length, more.length);
+        assertArrayEquals(expected, readAll(jafs, a));
+        assertEquals(blocksUsed + 1, jafs.getBlocksUsed());
+        JafsInputStream jis = jafs.getInputStream(a);
+        jis.skip(content.length + 50);
+        assertEquals(expected[content.length + 50] & 0xff, jis.read());
+        jis.close();
+
+        // truncating into the inlined data frees the fragment
+        b.truncate(10);
+        assertArrayEquals(Arrays.copyOf(content, 10), readAll(jafs, b));
+        a.truncate(3 * blockSize);
+        expected = Arrays.copyOf(expected, 3 * blockSize);
+        assertArrayEquals(expected, readAll(jafs, a));
+        assertTrue(a.delete());
+        assertTrue(b.delete());
+        assertEquals(blocksUsed - 2, jafs.getBlocksUsed());
+        jafs.close();
+    }
+
+    @Test
+    public void tailsShareABlockPointers() throws JafsException, IOException {
+        tailsShareABlock(JafsSuper.FEATURE_MAP_COUNTERS);
+    }
+
+    @Test
+    public void tailsShareABlockExtents() throws JafsException, IOException {
+        tailsShareABlock(JafsSuper.DEFAULT_FEATURES);
+    }
+
+    @Test
+    public void tailsShareABlock64Bit() throws JafsException, IOException {
+        tailsShareABlock(JafsSuper.DEFAULT_FEATURES | JafsSuper.FEATURE_64BIT);
+    }
+
+    private byte[] transferTo(JafsFile f) throws JafsException, IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        assertEquals(f.length(), f.transferTo(Channels.newChannel(bos)));
+        return bos.toByteArray();
+    }
+
+    private void transfer(int features) throws JafsException, IOException {
+        int blockSize = 256;
+        Jafs jafs = new Jafs(TEST_ARCHIVE, blockSize, features);
+        int[] sizes = {0, 10, blockSize, 3 * blockSize + 17, 3000 * blockSize + 100};
+        for (int size : sizes) {
+            byte[] content = new byte[size];
+            rnd.nextBytes(content);
+            JafsFile f = jafs.getFile("/t" + size);
+            assertEquals(size, f.transferFrom(Channels.newChannel(new ByteArrayInputStream(content))));
+            assertEquals(size, f.length());
+            assertArrayEquals(content, readAll(jafs, f));
+            assertArrayEquals(content, transferTo(f));
+        }
+
+        // replacing the content frees the blocks that are no longer needed
+        JafsFile f = jafs.getFile("/t" + sizes[4]);
+        long blocksUsed = jafs.getBlocksUsed();
+        f.transferFrom(Channels.newChannel(new ByteArrayInputStream(new byte[blockSize + 1])));
+        assertTrue(jafs.getBlocksUsed() < blocksUsed - 2500);
+
+        // holes are sent as zeros
+        f = jafs.getFile("/t" + sizes[3]);
+        f.truncate(100 * blockSize);
+        byte[] expected = readAll(jafs, f);
+        assertArrayEquals(expected, transferTo(f));
+
+        // a short transfer does not grow the archive, nor show what was on disk before
+        JafsFile junk = jafs.getFile("/junk");
+        byte[] fill = new byte[8 * blockSize];
+        Arrays.fill(fill, (byte)0x55);
+        JafsOutputStream jos = jafs.getOutputStream(junk);
+        jos.write(fill);
+        jos.close();
+        assertTrue(junk.delete());
+        long blocksTotal = jafs.getBlocksTotal();
+        f = jafs.getFile("/short");
+        f.transferFrom(Channels.newChannel(new ByteArrayInputStream(new byte[blockSize + 10])));
+        f.truncate(2 * blockSize);
+        assertArrayEquals(new byte[2 * blockSize], readAll(jafs, f));
+        assertEquals(blocksTotal, jafs.getBlocksTotal());
+        jafs.close();
+
+        // straight to a file on disk
+        jafs = new Jafs(TEST_ARCHIVE);
+        f = jafs.getFile("/t" + sizes[4]);
+        File out = new File(TEST_ARCHIVE + ".out");
+        try (RandomAccessFile raf = new RandomAccessFile(out, "rw")) {
+            FileChannel ch = raf.getChannel();
+            ch.truncate(0);
+            assertEquals(blockSize + 1, f.transferTo(ch));
+            assertEquals(blockSize + 1, ch.size());
+        }
+        finally {
+            out.delete();
+        }
+        jafs.close();
+    }
+
+    @Test
+    public void transferPointers() throws JafsException, IOException {
+        transfer(JafsSuper.FEATURE_MAP_COUNTERS);
+    }
+
+    @Test
+    public void transferExtents() throws JafsException, IOException {
+        transfer(JafsSuper.DEFAULT_FEATURES);
+    }
+
+    @Test
+    public void transferTails() throws JafsException, IOException {
+        transfer(JafsSuper.DEFAULT_FEATURES | JafsSuper.FEATURE_TAILS);
+    }
+
+    @Test
+    public void byteChannel() throws JafsException, IOException {
+        int blockSize = 256;
+        Jafs jafs = new Jafs(TEST_ARCHIVE, blockSize);
+        JafsFile f = jafs.getFile("/channel.bin");
+        byte[] content = new byte[50 * blockSize + 7];
+        rnd.nextBytes(content);
+        try (SeekableByteChannel ch = jafs.newByteChannel(f, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.READ)) {
+            // back to front, a direct buffer now and then
+            for (int pos = content.length; pos > 0; ) {
+                int len = Math.min(pos, 1 + rnd.nextInt(3 * blockSize));
+                pos -= len;
+                ByteBuffer buf = rnd.nextBoolean() ? ByteBuffer.allocate(len) : ByteBuffer.allocateDirect(len);
+                buf.put(content, pos, len).flip();
+                ch.position(pos);
+                assertEquals(len, ch.write(buf));
+                assertEquals(pos + len, ch.position());
+            }
+            assertEquals(content.length, ch.size());
+            for (int n = 0; n < 200; n++) {
+                int pos = rnd.nextInt(content.length);
+                ByteBuffer buf = rnd.nextBoolean() ? ByteBuffer.allocate(1 + rnd.nextInt(600)) : ByteBuffer.allocateDirect(1 + rnd.nextInt(600));
+                ch.position(pos);
+                int len = ch.read(buf);
+                assertEquals(Math.min(buf.capacity(), content.length - pos), len);
+                buf.flip();
+                for (int i = 0; i < len; i++) {
+                    assertEquals(content[pos + i], buf.get(i));
+                }
+            }
+            ch.position(content.length);
+            assertEquals(-1, ch.read(ByteBuffer.allocate(10)));
+            ch.truncate(blockSize + 1);
+            assertEquals(blockSize + 1, ch.size());
+            assertEquals(blockSize + 1, ch.position());
+        }
+        assertArrayEquals(Arrays.copyOf(content, blockSize + 1), readAll(jafs, f));
+
+        try (SeekableByteChannel ch = jafs.newByteChannel(f, StandardOpenOption.APPEND)) {
+            ch.write(ByteBuffer.wrap(content, 0, 10));
+        }
+        assertEquals(blockSize + 11, f.length());
+        try (SeekableByteChannel ch = jafs.newByteChannel(f, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            assertEquals(0, ch.size());
+        }
+        jafs.close();
+    }
+
+    @Test
+    public void preadFromThreads() throws Exception {
+        int blockSize = 512;
+        final Jafs jafs = new Jafs(TEST_ARCHIVE, blockSize);
+        final JafsFile f = jafs.getFile("/index.bin");
+        final byte[] content = new byte[2000 * blockSize + 99];
+        rnd.nextBytes(content);
+        f.transferFrom(Channels.newChannel(new ByteArrayInputStream(content)));
+
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Random r = new Random();
+                    try {
+                        for (int n = 0; n < 2000; n++) {
+                            int pos = r.nextInt(content.length);
+                            ByteBuffer buf = r.nextBoolean() ? ByteBuffer.allocate(1 + r.nextInt(2000)) : ByteBuffer.allocateDirect(1 + r.nextInt(2000));
+                            int len = jafs.pread(f, pos, buf);
+                            assertEquals(Math.min(buf.capacity(), content.length - pos), len);
+                            assertEquals(len, buf.position());
+                            for (int i = 0; i < len; i++) {
+                                assertEquals(content[pos + i], buf.get(i));
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+        assertEquals(-1, jafs.pread(f, content.length, ByteBuffer.allocate(1)));
+        jafs.close();
+    }
 }
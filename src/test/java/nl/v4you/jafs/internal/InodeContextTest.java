@@ -0,0 +1,327 @@
+package nl.v4you.jafs.internal;
+
+import nl.v4you.jafs.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static nl.v4you.jafs.AppTest.TEST_ARCHIVE;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class InodeContextTest {
+
+    Random rnd = new Random();
+
+    @Before
+    public void doBefore() {
+        File f = new File(TEST_ARCHIVE);
+        if (f.exists()) {
+            f.delete();
+        }
+    }
+
+    @After
+    public void doAfter() {
+        File f = new File(TEST_ARCHIVE);
+        if (f.exists()) {
+            f.delete();
+        }
+    }
+
+    private long countBlocks(JafsBlockRuns runs) {
+        long blocks = 0;
+        for (int r = 0; r < runs.size(); r++) {
+            blocks += runs.getBlocks(r);
+        }
+        return blocks;
+    }
+
+    private long getMaps(Jafs jafs) {
+        long blocksPerUnusedMap = jafs.getUnusedMap().getBlocksPerUnusedMap();
+        return (jafs.getBlocksTotal() + blocksPerUnusedMap - 1) / blocksPerUnusedMap;
+    }
+
+    private void mapRangeMatchesGetBlkPos(int features) throws JafsException, IOException {
+        int blockSize = 64;
+        Jafs jafs = new Jafs(TEST_ARCHIVE, blockSize, features);
+        JafsInodeContext ctx = jafs.getINodeContext();
+        JafsInode inode = new JafsInode(jafs);
+        inode.createInode(JafsInode.INODE_FILE);
+        int size = (int)ctx.maxFileSizeReal;
+        byte[] content = new byte[size];
+        rnd.nextBytes(content);
+        inode.writeBytes(content, size);
+
+        JafsBlockRuns runs = new JafsBlockRuns();
+        long fpos = 100;
+        long len = size - 300;
+        ctx.mapRange(inode, fpos, len, false, runs);
+        assertEquals((fpos + len - 1) / blockSize - fpos / blockSize + 1, countBlocks(runs));
+        // the blocks were allocated one after the other, so consecutive data blocks form runs
+        assertTrue(runs.size() < countBlocks(runs));
+        long blk = fpos / blockSize;
+        for (int r = 0; r < runs.size(); r++) {
+            assertTrue(!runs.isHole(r));
+            for (long n = 0; n < runs.getBlocks(r); n++) {
+                assertEquals(ctx.getBlkPos(inode, blk * blockSize), runs.getVpos(r) + n);
+                blk++;
+            }
+        }
+
+        byte[] buf = new byte[size];
+        inode.seekSet(0);
+        inode.readBytes(buf, 0, size);
+        assertArrayEquals(content, buf);
+        jafs.close();
+    }
+
+    @Test
+    public void mapRangeMatchesGetBlkPosPointers() throws JafsException, IOException {
+        mapRangeMatchesGetBlkPos(JafsSuper.FEATURE_MAP_COUNTERS);
+    }
+
+    @Test
+    public void mapRangeMatchesGetBlkPosExtents() throws JafsException, IOException {
+        mapRangeMatchesGetBlkPos(JafsSuper.DEFAULT_FEATURES);
+    }
+
+    @Test
+    public void mapRangeMatchesGetBlkPos64BitPointers() throws JafsException, IOException {
+        mapRangeMatchesGetBlkPos(JafsSuper.FEATURE_MAP_COUNTERS | JafsSuper.FEATURE_64BIT);
+    }
+
+    @Test
+    public void mapRangeMatchesGetBlkPos64BitExtents() throws JafsException, IOException {
+        mapRangeMatchesGetBlkPos(JafsSuper.DEFAULT_FEATURES | JafsSuper.FEATURE_64BIT);
+    }
+
+    @Test
+    public void tripleIndirection() throws JafsException, IOException {
+        int blockSize = 64;
+        Jafs jafs = new Jafs(TEST_ARCHIVE, blockSize, JafsSuper.FEATURE_MAP_COUNTERS | JafsSuper.FEATURE_64BIT);
+        JafsInodeContext ctx = jafs.getINodeContext();
+        assertEquals(3, ctx.getIndirectLevels());
+        assertEquals(JafsInodeContext.calcMaxFileSize(blockSize, JafsInodeContext.BYTES_PER_PTR_64), ctx.maxFileSizeReal);
+        long blocksUsed = jafs.getBlocksUsed();
+        long maps = getMaps(jafs);
+        JafsInode inode = new JafsInode(jafs);
+        inode.createInode(JafsInode.INODE_FILE);
+        int size = (int)ctx.maxFileSizeReal;
+        // the last block is reached through the triple indirect pointer block
+        assertTrue(size > ctx.levelStart[3]);
+        byte[] content = new byte[size];
+        rnd.nextBytes(content);
+        for (int off = 0; off < size; off += 100) {
+            inode.writeBytes(content, off, Math.min(100, size - off));
+        }
+        byte[] buf = new byte[size];
+        inode.seekSet(0);
+        inode.readBytes(buf, 0, size);
+        assertArrayEquals(content, buf);
+        inode.resetSize();
+        inode.freeBlocksAndDeleteInode();
+        assertEquals(blocksUsed - maps + getMaps(jafs), jafs.getBlocksUsed());
+        jafs.close();
+    }
+
+    @Test
+    public void archiveWith64BitPointers() throws JafsException, IOException {
+        int blockSize = 128;
+        Jafs jafs = new Jafs(TEST_ARCHIVE, blockSize, JafsSuper.DEFAULT_FEATURES | JafsSuper.FEATURE_64BIT);
+        byte[] content = new byte[50 * blockSize];
+        rnd.nextBytes(content);
+        jafs.getFile("/a/b").mkdirs();
+        for (int n = 0; n < 20; n++) {
+            JafsOutputStream jos = jafs.getOutputStream(jafs.getFile("/a/b/" + n + ".bin"));
+            jos.write(content, 0, n * blockSize + n);
+            jos.close();
+        }
+        long blocksUsed = jafs.getBlocksUsed();
+        long blocksTotal = jafs.getBlocksTotal();
+        jafs.close();
+
+        jafs = new Jafs(TEST_ARCHIVE);
+        assertTrue(jafs.getSuper().hasFeature(JafsSuper.FEATURE_64BIT));
+        assertEquals(blocksUsed, jafs.getBlocksUsed());
+        assertEquals(blocksTotal, jafs.getBlocksTotal());
+        assertEquals(20, jafs.getFile("/a/b").list().length);
+        for (int n = 0; n < 20; n++) {
+            JafsFile f = jafs.getFile("/a/b/" + n + ".bin");
+            assertEquals(n * blockSize + n, f.length());
+            byte[] buf = new byte[(int)f.length()];
+            JafsInputStream jis = jafs.getInputStream(f);
+            jis.read(buf);
+            jis.close();
+            assertArrayEquals(Arrays.copyOf(content, buf.length), buf);
+        }
+        jafs.close();
+    }
+
+    @Test
+    public void mapRangeReportsHoles() throws JafsException, IOException {
+        int blockSize = 64;
+        Jafs jafs = new Jafs(TEST_ARCHIVE, blockSize);
+        JafsInodeContext ctx = jafs.getINodeContext();
+        JafsInode inode = new JafsInode(jafs);
+        inode.createInode(JafsInode.INODE_FILE);
+        byte[] content = new byte[2 * blockSize];
+        rnd.nextBytes(content);
+        inode.writeBytes(content, content.length);
+
+        long blocksUsed = jafs.getBlocksUsed();
+        JafsBlockRuns runs = new JafsBlockRuns();
+        ctx.mapRange(inode, 0, 100 * blockSize, false, runs);
+        assertEquals(2, runs.size());
+        assertEquals(2, runs.getBlocks(0));
+        assertTrue(runs.isHole(1));
+        assertEquals(98, runs.getBlocks(1));
+        assertEquals(blocksUsed, jafs.getBlocksUsed());
+
+        ctx.mapRange(inode, 0, 100 * blockSize, true, runs);
+        assertEquals(100, countBlocks(runs));
+        for (int r = 0; r < runs.size(); r++) {
+            assertTrue(!runs.isHole(r));
+        }
+        jafs.close();
+    }
+
+    @Test
+    public void contiguousFileNeedsFewExtents() throws JafsException, IOException {
+        int blockSize = 64;
+        Jafs jafs = new Jafs(TEST_ARCHIVE, blockSize);
+        JafsInode inode = new JafsInode(jafs);
+        inode.createInode(JafsInode.INODE_FILE);
+        // way beyond the maximum file size of the pointer format
+        int size = 100 * 1024;
+        byte[] content = new byte[size];
+        rnd.nextBytes(content);
+        inode.writeBytes(content, size);
+
+        JafsBlockRuns runs = new JafsBlockRuns();
+        jafs.getINodeContext().mapRange(inode, 0, size, false, runs);
+        assertEquals(size / blockSize, countBlocks(runs));
+        // only the unused maps interrupt the file
+        assertTrue(runs.size() <= 2 + size / blockSize / jafs.getUnusedMap().getBlocksPerUnusedMap());
+
+        byte[] buf = new byte[size];
+        inode.seekSet(0);
+        inode.readBytes(buf, 0, size);
+        assertArrayEquals(content, buf);
+        jafs.close();
+    }
+
+    @Test
+    public void fragmentedFilesGrowTheExtentTree() throws JafsException, IOException {
+        int blockSize = 64;
+        int blocks = 3000;
+        Jafs jafs = new Jafs(TEST_ARCHIVE, blockSize);
+        long blocksUsed = jafs.getBlocksUsed();
+        long maps = getMaps(jafs);
+        JafsInode a = new JafsInode(jafs);
+        JafsInode b = new JafsInode(jafs);
+        a.createInode(JafsInode.INODE_FILE);
+        b.createInode(JafsInode.INODE_FILE);
+        byte[] contentA = new byte[blocks * blockSize];
+        byte[] contentB = new byte[blocks * blockSize];
+        rnd.nextBytes(contentA);
+        rnd.nextBytes(contentB);
+        // alternate the writes so every block of a file ends up in an extent of its own
+        for (int n = 0; n < blocks; n++) {
+            a.writeBytes(contentA, n * blockSize, blockSize);
+            b.writeBytes(contentB, n * blockSize, blockSize);
+        }
+        long vposA = a.getVpos();
+
+        JafsBlockRuns runs = new JafsBlockRuns();
+        jafs.getINodeContext().mapRange(a, 0, contentA.length, false, runs);
+        assertEquals(blocks, runs.size());
+
+        a.openInode(vposA);
+        byte[] buf = new byte[contentA.length];
+        a.readBytes(buf, 0, buf.length);
+        assertArrayEquals(contentA, buf);
+
+        // truncate a to 10 blocks
+        long oldSize = a.getSize();
+        a.setSize(10 * blockSize);
+        a.flushInode();
+        a.freeBlocks(oldSize);
+        jafs.getINodeContext().mapRange(a, 0, a.getSize(), false, runs);
+        assertEquals(10, runs.size());
+        a.seekSet(0);
+        buf = new byte[10 * blockSize];
+        a.readBytes(buf, 0, buf.length);
+        assertArrayEquals(Arrays.copyOf(contentA, buf.length), buf);
+
+        a.resetSize();
+        a.freeBlocksAndDeleteInode();
+        b.seekSet(0);
+        buf = new byte[contentB.length];
+        b.readBytes(buf, 0, buf.length);
+        assertArrayEquals(contentB, buf);
+        b.resetSize();
+        b.freeBlocksAndDeleteInode();
+        // only the unused maps that were added stay in use
+        assertEquals(blocksUsed - maps + getMaps(jafs), jafs.getBlocksUsed());
+        jafs.close();
+    }
+
+    @Test
+    public void pointerFormatStaysReadable() throws JafsException, IOException {
+        int blockSize = 128;
+        Jafs jafs = new Jafs(TEST_ARCHIVE, blockSize, JafsSuper.FEATURE_MAP_COUNTERS);
+        byte[] content = new byte[20 * blockSize];
+        rnd.nextBytes(content);
+        JafsOutputStream jos = jafs.getOutputStream(jafs.getFile("/abc.bin"));
+        jos.write(content);
+        jos.close();
+        jafs.close();
+
+        jafs = new Jafs(TEST_ARCHIVE);
+        assertFalse(jafs.getSuper().hasFeature(JafsSuper.FEATURE_EXTENTS));
+        JafsFile f = jafs.getFile("/abc.bin");
+        jos = jafs.getOutputStream(f, true);
+        jos.write(content);
+        jos.close();
+        byte[] buf = new byte[2 * content.length];
+        JafsInputStream jis = jafs.getInputStream(f);
+        assertEquals(buf.length, jis.read(buf));
+        jis.close();
+        assertArrayEquals(content, Arrays.copyOf(buf, content.length));
+        assertArrayEquals(content, Arrays.copyOfRange(buf, content.length, buf.length));
+        jafs.close();
+    }
+
+    @Test
+    public void appendingDefersTheSize() throws JafsException, IOException {
+        Jafs jafs = new Jafs(TEST_ARCHIVE, 64, JafsSuper.FEATURE_MAP_COUNTERS);
+        JafsInode inode = new JafsInode(jafs);
+        inode.createInode(JafsInode.INODE_FILE);
+        byte[] content = new byte[1000];
+        rnd.nextBytes(content);
+        for (int n = 0; n < content.length; n += 10) {
+            inode.writeBytes(content, n, 10);
+        }
+        assertEquals(content.length, inode.getSize());
+        JafsInode other = new JafsInode(jafs);
+        other.openInode(inode.getVpos());
+        // blocks are added to the inode right away, the size only when flushed
+        assertTrue(other.getSize() < content.length);
+
+        inode.flush();
+        other.openInode(inode.getVpos());
+        assertEquals(content.length, other.getSize());
+        byte[] buf = new byte[content.length];
+        other.readBytes(buf, 0, buf.length);
+        assertArrayEquals(content, buf);
+        jafs.close();
+    }
+}
@@ -8,6 +8,7 @@ import org.junit.Test;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.util.Arrays;
 import java.util.Random;
 
@@ -122,57 +123,168 @@ public class UnusedMapTest {
         assertEquals(flen1, flen2);
     }
 
+    private long getMaps(Jafs jafs) {
+        long blocksPerUnusedMap = jafs.getUnusedMap().getBlocksPerUnusedMap();
+        return (jafs.getBlocksTotal() + blocksPerUnusedMap - 1) / blocksPerUnusedMap;
+    }
+
+    private long writeFilesAndCrash(int blockSize, int files, int fileSize) throws JafsException, IOException {
+        Jafs jafs = new Jafs(TEST_ARCHIVE, blockSize);
+        byte[] content = new byte[fileSize];
+        for (int i = 0; i < files; i++) {
+            rnd.nextBytes(content);
+            JafsOutputStream jos = jafs.getOutputStream(jafs.getFile("/abc" + i + ".bin"));
+            jos.write(content);
+            jos.close();
+        }
+        jafs.getFile("/abc0.bin").delete();
+        // The unused maps in the headroom become part of the archive after an unclean shutdown
+        long blocksUsed = jafs.getBlocksUsed() - getMaps(jafs);
+        // Simulate an unclean shutdown, the super block stays locked
+        jafs.flushBlockCache();
+        jafs.getRaf().close();
+        return blocksUsed;
+    }
+
+    @Test
+    public void blocksUsedAfterUncleanShutdown() throws JafsException, IOException {
+        long blocksUsed = writeFilesAndCrash(128, 4 * 128, 3 * 128);
+
+        Jafs jafs = new Jafs(TEST_ARCHIVE);
+        assertEquals(blocksUsed + getMaps(jafs), jafs.getBlocksUsed());
+        jafs.getRaf().close();
+
+        // Nothing changed, so the map counters are trusted this time
+        jafs = new Jafs(TEST_ARCHIVE);
+        assertEquals(blocksUsed + getMaps(jafs), jafs.getBlocksUsed());
+        jafs.close();
+    }
+
+    @Test
+    public void blocksUsedAfterTwoUncleanShutdowns() throws JafsException, IOException {
+        int blockSize = 128;
+        long blocksUsed = writeFilesAndCrash(blockSize, 4 * 128, 3 * 128);
+
+        // A stale counter of the first map, stamped by the session that crashed
+        try (RandomAccessFile raf = new RandomAccessFile(TEST_ARCHIVE, "rw")) {
+            raf.seek(blockSize + blockSize - JafsUnusedMap.TRAILER_SIZE);
+            raf.writeShort(1);
+        }
+
+        // The repaired map must be on disk before the next crash
+        Jafs jafs = new Jafs(TEST_ARCHIVE);
+        assertEquals(blocksUsed + getMaps(jafs), jafs.getBlocksUsed());
+        jafs.getRaf().close();
+
+        jafs = new Jafs(TEST_ARCHIVE);
+        assertEquals(blocksUsed + getMaps(jafs), jafs.getBlocksUsed());
+        jafs.close();
+    }
+
+    @Test
+    public void blocksUsedAfterUncleanShutdownManyMaps() throws JafsException, IOException {
+        // enough unused maps to recount them in parallel
+        long blocksUsed = writeFilesAndCrash(64, 130, 18000);
+
+        Jafs jafs = new Jafs(TEST_ARCHIVE);
+        assertEquals(blocksUsed + getMaps(jafs), jafs.getBlocksUsed());
+        jafs.close();
+    }
+
+    @Test
+    public void archiveGrowsInChunksAndIsTrimmedOnClose() throws JafsException, IOException {
+        int blockSize = 256;
+        Jafs jafs = new Jafs(TEST_ARCHIVE, blockSize);
+        jafs.setGrowSize(64 * 1024, true);
+        byte[] content = new byte[40 * blockSize];
+        rnd.nextBytes(content);
+        JafsOutputStream jos = jafs.getOutputStream(jafs.getFile("/abc.bin"));
+        jos.write(content);
+        jos.close();
+        long blocksTotal = jafs.getBlocksTotal();
+        File g = new File(TEST_ARCHIVE);
+        assertTrue(g.length() >= (1 + blocksTotal) * blockSize + 64 * 1024 - 4096);
+        jafs.close();
+        assertEquals(((1 + blocksTotal) * blockSize + 4095) / 4096 * 4096, g.length());
+    }
+
+    @Test
+    public void headroomIsAvailableAfterUncleanShutdown() throws JafsException, IOException {
+        int blockSize = 64;
+        Jafs jafs = new Jafs(TEST_ARCHIVE, blockSize);
+        jafs.setGrowSize(1024 * 1024, false);
+        byte[] content = new byte[18000];
+        rnd.nextBytes(content);
+        JafsOutputStream jos = jafs.getOutputStream(jafs.getFile("/abc.bin"));
+        jos.write(content);
+        jos.close();
+        long blocksUsed = jafs.getBlocksUsed() - getMaps(jafs);
+        jafs.flushBlockCache();
+        jafs.getRaf().close();
+
+        // The headroom spans many unused maps, only the maps themselves are used
+        jafs = new Jafs(TEST_ARCHIVE);
+        assertEquals(blocksUsed + getMaps(jafs), jafs.getBlocksUsed());
+        assertTrue(jafs.getBlocksTotal() > blocksUsed + 1024);
+        jafs.close();
+    }
+
+    private int readMapByte(Jafs jafs, int blockSize, int idx) throws IOException {
+        // unused map 0 is the first block after the super block
+        RandomAccessFile raf = jafs.getRaf();
+        raf.seek(blockSize + idx);
+        return raf.read();
+    }
+
     @Test
     public void setUnused() throws JafsException, IOException {
         int blockSize = 128;
         Jafs jafs = new Jafs(TEST_ARCHIVE, blockSize);
+        JafsUnusedMap um = jafs.getUnusedMap();
 
-        JafsBlock block = jafs.getCacheBlock(0);
         for (int n = 0; n < 8; n++) {
             int mask = 0b10000000 >> n;
             int invMask = mask ^ 0xff;
 
-            block.seekSet(blockSize + 1);
-            block.writeByte(0);
-            block.writeToDisk();
-            JafsUnusedMap um = jafs.getUnusedMap();
             um.setAvailable(8 + n);
-            jafs.getBlockCache().flushBlocks();
-            block.readFromDisk();
-            block.seekSet(blockSize + 1);
-            assertEquals(mask, block.readByte());
-
-            block.seekSet(blockSize + 1);
-            block.writeByte(0b11111111);
-            block.writeToDisk();
-            um.setAvailable(8 + n);
-            jafs.getBlockCache().flushBlocks();
-            block.readFromDisk();
-            block.seekSet(blockSize + 1);
-            assertEquals(0b11111111, block.readByte());
-
-            block.seekSet(blockSize + 1);
-            block.writeByte(0b11111111);
-            block.writeToDisk();
+            jafs.flushBlockCache();
+            assertEquals(0b11111111, readMapByte(jafs, blockSize, 1));
+
             um.setUnavailable(8 + n);
-            jafs.getBlockCache().flushBlocks();
-            block.readFromDisk();
-            block.seekSet(blockSize + 1);
-            assertEquals( invMask, block.readByte());
-
-            block.seekSet(blockSize + 1);
-            block.writeByte(0);
-            block.writeToDisk();
+            jafs.flushBlockCache();
+            assertEquals(invMask, readMapByte(jafs, blockSize, 1));
+
             um.setUnavailable(8 + n);
-            jafs.getBlockCache().flushBlocks();
-            block.readFromDisk();
-            block.seekSet(blockSize + 1);
-            assertEquals( 0, block.readByte());
+            jafs.flushBlockCache();
+            assertEquals(invMask, readMapByte(jafs, blockSize, 1));
+
+            um.setAvailable(8 + n);
+            jafs.flushBlockCache();
+            assertEquals(0b11111111, readMapByte(jafs, blockSize, 1));
         }
 
         jafs.close();
     }
 
+    @Test
+    public void unusedMapSurvivesBlockCacheFlush() throws JafsException, IOException {
+        int blockSize = 128;
+        Jafs jafs = new Jafs(TEST_ARCHIVE, blockSize);
+        JafsUnusedMap um = jafs.getUnusedMap();
+
+        // The first block of the block cache holds unused map 0 too, writing
+        // that block must not overwrite the map
+        JafsBlock block = jafs.getCacheBlock(0);
+        um.setUnavailable(8);
+        jafs.flushBlockCache();
+        block.seekSet(blockSize + 1);
+        block.writeByte(0b11111111);
+        jafs.flushBlockCache();
+        assertEquals(0b01111111, readMapByte(jafs, blockSize, 1));
+
+        jafs.close();
+    }
+
     @Ignore
     @Test
     public void randomWrites() throws JafsException, IOException {